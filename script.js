@@ -7,27 +7,60 @@ async function subscribe(id,vers) {
     // may happen when the connection was pending for too long,
     // and the remote server or a proxy closed it
     // let's reconnect
-    await subscribe();
+    await subscribe(id,vers);
+  } else if (response.status == 204) {
+    // Nothing happened before the server gave up waiting,
+    // let's ask again.
+    await subscribe(id,vers);
   } else if (response.status != 200) {
     // An error - let's show it
     alert(response.statusText);
     // Reconnect in one second
     await new Promise(resolve => setTimeout(resolve, 1000));
-    await subscribe();
+    await subscribe(id,vers);
   } else {
-    // Get and show the message
+    // The first line is the new version, the second tells if the
+    // rest is the whole channel or only what changed.
     let message = await response.text();
-    let lineend = message.indexOf("\n")
+    let lineend = message.indexOf("\n");
     let newvers = message.substr(0, lineend);
+    message = message.substr(lineend+1);
+    lineend = message.indexOf("\n");
+    let mode = message.substr(0, lineend);
     let html = message.substr(lineend+1);
-    let chan = document.getElementById("channel");
-    let chanevents = document.getElementById("chanevents");
-    chan.replaceChild(htmlToElem(html),chanevents);
+    if (mode == "delta") {
+      mergeEvents(html);
+    } else {
+      let chan = document.getElementById("channel");
+      let chanevents = document.getElementById("chanevents");
+      chan.replaceChild(htmlToElem(html),chanevents);
+    }
     // Call subscribe() again to get the next message
     await subscribe(id,newvers);
   }
 }
 
+// Merge changed events into the channel: deleted events are
+// removed, edited events replaced and new events appended.
+function mergeEvents(html) {
+  let chanevents = document.getElementById("chanevents");
+  let temp = document.createElement('template');
+  temp.innerHTML = html;
+  for (let elem of Array.from(temp.content.children)) {
+    if (elem.classList.contains("deleted")) {
+      let old = document.getElementById("event-" + elem.dataset.event);
+      if (old) old.remove();
+    } else {
+      let old = document.getElementById(elem.id);
+      if (old) {
+        old.replaceWith(elem);
+      } else {
+        chanevents.appendChild(elem);
+      }
+    }
+  }
+}
+
 function htmlToElem(html) {
   let temp = document.createElement('template');
   html = html.trim(); // Never return a space text node as a result
@@ -44,3 +77,33 @@ function submitOnEnter(event){
 }
 
 
+
+async function loadOlder(button) {
+  button.disabled = true;
+  let response = await fetch("/history/" + button.dataset.alias
+                             + "?before=" + button.dataset.before);
+  if (response.status != 200) {
+    alert(response.statusText);
+    button.disabled = false;
+    return;
+  }
+  // The first line is the cursor of the next older page, if any.
+  let message = await response.text();
+  let lineend = message.indexOf("\n");
+  let before = message.substr(0, lineend);
+  let temp = document.createElement('template');
+  temp.innerHTML = message.substr(lineend+1);
+  button.after(temp.content);
+  if (before == "") {
+    button.remove();
+  } else {
+    button.dataset.before = before;
+    button.disabled = false;
+  }
+}
+
+document.addEventListener("click", function(event) {
+  if (event.target.id === "loadolder") {
+    loadOlder(event.target);
+  }
+});
@@ -7,6 +7,8 @@ import inf226.util.immutable.List;
 
 import inf226.storage.*;
 
+import java.util.UUID;
+
 /**
  * The Account class holds all information private to
  * a specific user.
@@ -24,13 +26,18 @@ public final class Account {
             Owner
         }
     public final Stored<User> user;
-    public final List<Pair<String,Stored<Channel>>> channels;
+    /* The channels of the account by alias. Only the identity
+     * of each channel is kept, and the channel is loaded when
+     * it is needed.
+     */
+    public final List<Pair<String,UUID>> channels;
     public final List<Pair<String, Role>> roles;
     public final Password key; //hashed password from KDF
 
     public Account(final Stored<User> user,
-                   final List<Pair<String,Stored<Channel>>> channels,
-                   final String password) {
+                   final List<Pair<String,UUID>> channels,
+                   final List<Pair<String,Role>> roles,
+                   final Password key) {
         this.user = user;
         this.channels = channels;
         this.key = key;
@@ -47,7 +54,7 @@ public final class Account {
     public static Account create(Stored<User> user,
                                  String password) {
         Password key = Password.createPassword(password);
-        return new Account(user,List.empty(), key);
+        return new Account(user,List.empty(),List.empty(), key);
     }
 
     /**
@@ -55,9 +62,9 @@ public final class Account {
      *
      * @return A new account object with the channel added.
      */
-    public Account joinChannel(String alias, Stored<Channel> channel, Role role) {
-        Pair<String,Stored<Channel>> entry
-                = new Pair<String,Stored<Channel>>(alias,channel);
+    public Account joinChannel(String alias, UUID channel, Role role) {
+        Pair<String,UUID> entry
+                = new Pair<String,UUID>(alias,channel);
         Pair<String, Role> entryRole = new Pair<String, Role>(alias, role);
         return new Account
                 (user, List.cons(entry, channels), List.cons(entryRole, roles),key);
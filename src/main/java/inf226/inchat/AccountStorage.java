@@ -1,7 +1,10 @@
 package inf226.inchat;
 
 import inf226.inchat.Account.Role;
+import inf226.storage.Batch;
 import inf226.storage.DeletedException;
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
 import inf226.storage.Storage;
 import inf226.storage.Stored;
 import inf226.storage.UpdatedException;
@@ -12,211 +15,333 @@ import inf226.util.Pair;
 import inf226.util.Util;
 import inf226.util.immutable.List;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
  * This class stores accounts in the database.
  */
 public final class AccountStorage
-    implements Storage<Account,SQLException> {
+    implements AccountStore {
 
-    final Connection connection;
+    final ConnectionManager connections;
+    final Format format;
     final Storage<User, SQLException> userStore;
-    final Storage<Channel, SQLException> channelStore;
 
     /**
      * Create a new account storage.
      *
-     * @param connection   The connection to the SQL database.
+     * @param connections  The connections to the SQL database.
      * @param userStore    The storage for User data.
-     * @param channelStore The storage for channels.
      */
-    public AccountStorage(Connection connection,
-                          Storage<User, SQLException> userStore,
-                          Storage<Channel, SQLException> channelStore)
+    public AccountStorage(ConnectionManager connections,
+                          Storage<User, SQLException> userStore)
             throws SQLException {
-        this.connection = connection;
+        this.connections = connections;
+        this.format = connections.format;
         this.userStore = userStore;
-        this.channelStore = channelStore;
 
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Account (id TEXT PRIMARY KEY, version TEXT, user TEXT, password TEXT, FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS AccountChannel (account TEXT, channel TEXT, alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+        connections.execute("CREATE TABLE IF NOT EXISTS Account (id " + format.uuid + " PRIMARY KEY, version " + format.uuid + ", user " + format.uuid + ", password TEXT, FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)");
+        connections.execute("CREATE TABLE IF NOT EXISTS AccountChannel (account " + format.uuid + ", channel " + format.uuid + ", alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
     }
 
     @Override
     public Stored<Account> save(Account account)
             throws SQLException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final Stored<Account> stored = new Stored<Account>(account);
+            connections.write("INSERT INTO Account VALUES(?,?,?,?)", stmt -> {
+                bindAccount(stmt, stored);
+                return stmt.executeUpdate();
+            });
 
-        final Stored<Account> stored = new Stored<Account>(account);
-        final PreparedStatement stmt = connection.prepareStatement("INSERT INTO Account VALUES(?,?,?,?)");
-        stmt.setObject(1, stored.identity);
-        stmt.setObject(2, stored.version);
-        stmt.setObject(3, account.user.identity);
-        stmt.setString(4, account.key.toString());
-        stmt.execute();
+            // Write the list of channels
+            writeChannels(List.singleton(stored));
+            transaction.commit();
+            return stored;
+        }
+    }
 
-        // Write the list of channels
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-        account.channels.forEach(element -> {
-            String alias = element.first;
-            Stored<Channel> channel = element.second;
-            try {
-                Role role = Util.lookup(account.roles, alias).get();
-                final PreparedStatement stmtb = connection.prepareStatement("INSERT INTO AccountChannel VALUES(?,?,?,?,?)");
-                //setObject, specify sqltype?
-                stmtb.setObject(1, stored.identity);
-                stmtb.setObject(2, channel.identity);
-                stmtb.setString(3, alias);
-                stmtb.setString(4, ordinal.get().toString());
-                stmtb.setObject(5, role);
-                stmtb.execute();
-            } catch (SQLException e) {
-                exception.accept(e);
-            } catch (NothingException e) {
-                System.err.println("Has no role for this channel!");
-                e.printStackTrace();
-            }
-            ordinal.accept(ordinal.get() + 1);
-        });
+    @Override
+    public List<Stored<Account>> saveAll(Collection<Account> accounts)
+            throws SQLException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final List.Builder<Stored<Account>> stored = List.builder();
+            connections.write("INSERT INTO Account VALUES(?,?,?,?)", stmt -> {
+                for(Account account : accounts) {
+                    final Stored<Account> s = new Stored<Account>(account);
+                    bindAccount(stmt, s);
+                    stmt.addBatch();
+                    stored.accept(s);
+                }
+                return stmt.executeBatch();
+            });
+            writeChannels(stored.getList());
+            transaction.commit();
+            return stored.getList().reverse();
+        }
+    }
 
-        Util.throwMaybe(exception.getMaybe());
-        return stored;
+    private void bindAccount(PreparedStatement stmt, Stored<Account> stored)
+            throws SQLException {
+        format.setUUID(stmt, 1, stored.identity);
+        format.setUUID(stmt, 2, stored.version);
+        format.setUUID(stmt, 3, stored.value.user.identity);
+        stmt.setString(4, stored.value.key.toString());
     }
 
     @Override
-    public synchronized Stored<Account> update(Stored<Account> account,
-                                               Account new_account)
+    public Stored<Account> update(Stored<Account> account,
+                                  Account new_account)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Account> current = get(account.identity);
-        final Stored<Account> updated = current.newVersion(new_account);
-        if (current.version.equals(account.version)) {
-            final PreparedStatement stmta = connection.prepareStatement("UPDATE Account SET (version,user) =(?,?) WHERE id =?");
-            stmta.setObject(1, updated.version);
-            stmta.setObject(2, new_account.user.identity);
-            stmta.setObject(3, updated.identity);
-            stmta.execute();
-            connection.createStatement().executeUpdate(sql);
-
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final Stored<Account> updated = account.newVersion(new_account);
+            final int rows = connections.write("UPDATE Account SET (version,user) =(?,?) WHERE id=? AND version=?", stmt -> {
+                format.setUUID(stmt, 1, updated.version);
+                format.setUUID(stmt, 2, new_account.user.identity);
+                format.setUUID(stmt, 3, updated.identity);
+                format.setUUID(stmt, 4, account.version);
+                return stmt.executeUpdate();
+            });
+            if(rows == 0)
+                throw new UpdatedException(get(account.identity));
 
             // Rewrite the list of channels
-            connection.createStatement().executeUpdate("DELETE FROM AccountChannel WHERE account='" + account.identity + "'");
-
-            final PreparedStatement stmtb = connection.prepareStatement("DELETE FROM AccountChannel WHERE account=?");
-            stmtb.setObject(1, account.identity);
-            stmtb.execute();
-            final Maybe.Builder<SQLException> exception = Maybe.builder();
-            final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-            new_account.channels.forEach(element -> {
-                String alias = element.first;
-                Stored<Channel> channel = element.second;
-                try {
-                    Role role = Util.lookup(new_account.roles, alias).get();
-                    final PreparedStatement stmtc = connection.prepareStatement("INSERT INTO AccountChannel VALUES(?,?,?,?,?)");
-                    stmtc.setObject(1, account.identity);
-                    stmtc.setObject(2, channel.identity);
-                    stmtc.setString(3, alias);
-                    stmtc.setString(4, ordinal.get().toString());
-                    stmtc.setObject(5, role);
-                    stmtc.execute();
-                } catch (SQLException e) {
-                    exception.accept(e);
-                } catch (NothingException e) {
-                    System.err.println("No role for that channel!");
-                    e.printStackTrace();
-                }
-                ordinal.accept(ordinal.get() + 1);
+            connections.write("DELETE FROM AccountChannel WHERE account=?", stmt -> {
+                format.setUUID(stmt, 1, account.identity);
+                return stmt.executeUpdate();
             });
-
-            Util.throwMaybe(exception.getMaybe());
-        } else {
-            throw new UpdatedException(current);
+            writeChannels(List.singleton(updated));
+            transaction.commit();
+            return updated;
         }
-        return updated;
+    }
+
+    /**
+     * Insert the AccountChannel rows of some accounts, in one batch.
+     */
+    private void writeChannels(List<Stored<Account>> accounts)
+            throws SQLException {
+        final Maybe.Builder<SQLException> exception = Maybe.builder();
+        connections.write("INSERT INTO AccountChannel VALUES(?,?,?,?,?)", stmt -> {
+            accounts.forEach(stored -> {
+                final Account account = stored.value;
+                final Mutable<Integer> ordinal = new Mutable<Integer>(0);
+                account.channels.forEach(element -> {
+                    String alias = element.first;
+                    UUID channel = element.second;
+                    try {
+                        Role role = Util.lookup(account.roles, alias).get();
+                        format.setUUID(stmt, 1, stored.identity);
+                        format.setUUID(stmt, 2, channel);
+                        stmt.setString(3, alias);
+                        stmt.setString(4, ordinal.get().toString());
+                        stmt.setString(5, role.toString());
+                        stmt.addBatch();
+                    } catch (SQLException e) {
+                        exception.accept(e);
+                    } catch (NothingException e) {
+                        System.err.println("Has no role for this channel!");
+                        e.printStackTrace();
+                    }
+                    ordinal.accept(ordinal.get() + 1);
+                });
+            });
+            return stmt.executeBatch();
+        });
+
+        Util.throwMaybe(exception.getMaybe());
     }
 
     @Override
-    public synchronized void delete(Stored<Account> account)
+    public void delete(Stored<Account> account)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Account> current = get(account.identity);
-        if (current.version.equals(account.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("DELETE FROM Account WHERE id =?");
-            stmt.setObject(1, account.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
-        }
+        final int rows = connections.write("DELETE FROM Account WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, account.identity);
+            format.setUUID(stmt, 2, account.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(account.identity));
     }
 
     @Override
     public Stored<Account> get(UUID id)
             throws DeletedException,
             SQLException {
-        final PreparedStatement accountstmt = connection.prepareStatement("SELECT version,user,key FROM Account WHERE id = ?");
-        accountstmt.setString(1, id.toString());
-
-        final PreparedStatement channelstmt = connection.prepareStatement("SELECT channel,alias,ordinal,role FROM AccountChannel WHERE account = ? ORDER BY ordinal DESC");
-        channelstmt.setString(1, id.toString());
-
-        final ResultSet accountResult = accountstmt.executeQuery();
-        final ResultSet channelResult = channelstmt.executeQuery();
-
-        if (accountResult.next()) {
-            final UUID version = UUID.fromString(accountResult.getString("version"));
-            final UUID userid =
-                    UUID.fromString(accountResult.getString("user"));
-            final Stored<User> user = userStore.get(userid);
-
-            final Password key = new Password(accountResult.getString("key"));
-
-            // Get all the channels associated with this account
-            final List.Builder<Pair<String, Stored<Channel>>> channels = List.builder();
-            final List.Builder<Pair<String, Role>> roles = List.builder();
-            while (channelResult.next()) {
-                final UUID channelId =
-                        UUID.fromString(channelResult.getString("channel"));
-                final String alias = channelResult.getString("alias");
-                final Role role = Role.valueOf(channelResult.getString("role"));
-                channels.accept(
-                        new Pair<String, Stored<Channel>>(
-                                alias, channelStore.get(channelId)));
-                roles.accept(
-                        new Pair<String, Role>(alias, role));
+        final Pair<UUID, Pair<UUID, Password>> row = connections.read("SELECT version,user,password FROM Account WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet accountResult = stmt.executeQuery()) {
+                if (accountResult.next()) {
+                    final UUID version = format.getUUID(accountResult, "version");
+                    final UUID userid =
+                            format.getUUID(accountResult, "user");
+                    final Password key = new Password(accountResult.getString("password"));
+                    return Pair.pair(version, Pair.pair(userid, key));
+                }
             }
-            return (new Stored<Account>(new Account(user, channels.getList(), roles.getList(), key), id, version));
-        } else {
             throw new DeletedException();
+        });
+        final UUID version = row.first;
+        final Stored<User> user = userStore.get(row.second.first);
+        final Password key = row.second.second;
+
+        // Get references to the channels associated with this account
+        final List.Builder<Pair<String, UUID>> channels = List.builder();
+        final List.Builder<Pair<String, Role>> roles = List.builder();
+        connections.read("SELECT channel,alias,ordinal,role FROM AccountChannel WHERE account = ? ORDER BY ordinal DESC", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet channelResult = stmt.executeQuery()) {
+                while (channelResult.next()) {
+                    final UUID channelId =
+                            format.getUUID(channelResult, "channel");
+                    final String alias = channelResult.getString("alias");
+                    final Role role = Role.valueOf(channelResult.getString("role"));
+                    channels.accept(
+                            new Pair<String, UUID>(alias, channelId));
+                    roles.accept(
+                            new Pair<String, Role>(alias, role));
+                }
+            }
+            return channels;
+        });
+        return (new Stored<Account>(new Account(user, channels.getList(), roles.getList(), key), id, version));
+    }
+
+    @Override
+    public Map<UUID,Stored<Account>> getAll(Collection<UUID> ids)
+            throws SQLException {
+        // The account rows, then their users and channels in bulk.
+        final Map<UUID, Pair<UUID, Pair<UUID, Password>>> rows = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(ids)) {
+            connections.read("SELECT id,version,user,password FROM Account WHERE id IN " + Batch.in(chunk), stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.put(format.getUUID(rs, "id"),
+                                 Pair.pair(format.getUUID(rs, "version"),
+                                           Pair.pair(format.getUUID(rs, "user"),
+                                                     new Password(rs.getString("password")))));
+                    }
+                }
+                return rows;
+            });
+        }
+        final ArrayList<UUID> userIds = new ArrayList<>();
+        for(Pair<UUID, Pair<UUID, Password>> row : rows.values())
+            userIds.add(row.second.first);
+        final Map<UUID,Stored<User>> users = userStore.getAll(userIds);
+
+        final Map<UUID, List.Builder<Pair<String, UUID>>> channels = new HashMap<>();
+        final Map<UUID, List.Builder<Pair<String, Role>>> roles = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(rows.keySet())) {
+            connections.read("SELECT account,channel,alias,ordinal,role FROM AccountChannel WHERE account IN " + Batch.in(chunk) + " ORDER BY ordinal DESC", stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        final UUID account = format.getUUID(rs, "account");
+                        final String alias = rs.getString("alias");
+                        channels.computeIfAbsent(account, a -> List.builder())
+                                .accept(new Pair<String, UUID>(alias, format.getUUID(rs, "channel")));
+                        roles.computeIfAbsent(account, a -> List.builder())
+                             .accept(new Pair<String, Role>(alias, Role.valueOf(rs.getString("role"))));
+                    }
+                }
+                return channels;
+            });
+        }
+
+        final Map<UUID,Stored<Account>> accounts = new HashMap<>();
+        for(Map.Entry<UUID, Pair<UUID, Pair<UUID, Password>>> row : rows.entrySet()) {
+            final Stored<User> user = users.get(row.getValue().second.first);
+            if(user == null)
+                continue;
+            final UUID id = row.getKey();
+            accounts.put(id, new Stored<Account>(
+                new Account(user,
+                            Maybe.just(channels.get(id)).map(List.Builder::getList).defaultValue(List.empty()),
+                            Maybe.just(roles.get(id)).map(List.Builder::getList).defaultValue(List.empty()),
+                            row.getValue().second.second),
+                id, row.getValue().first));
         }
+        return accounts;
+    }
+
+    /**
+     * Get the current version UUID for the specified account.
+     * @param id UUID for the account.
+     */
+    @Override
+    public UUID getCurrentVersion(UUID id)
+            throws DeletedException,
+            SQLException {
+        return connections.read("SELECT version FROM Account WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next())
+                    return format.getUUID(rs, "version");
+            }
+            throw new DeletedException();
+        });
+    }
+
+    /* The credentials of an account by username, through the
+     * UserName and AccountUser indexes.
+     */
+    static final String credentialsQuery =
+        "SELECT Account.id,Account.user,Account.password FROM Account INNER JOIN User ON user=User.id WHERE User.name=?";
+
+    /**
+     * Look up the credentials of an account based on their username,
+     * without loading the user or the channels of the account.
+     */
+    @Override
+    public Maybe<Credentials> credentials(String username)
+            throws SQLException {
+        return connections.read(credentialsQuery, stmt -> {
+            stmt.setString(1, username);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return Maybe.just(new Credentials(format.getUUID(rs, "id"),
+                                                      format.getUUID(rs, "user"),
+                                                      new Password(rs.getString("password"))));
+                }
+            }
+            return Maybe.<Credentials>nothing();
+        });
     }
 
     /**
      * Look up an account based on their username.
      */
+    @Override
     public Stored<Account> lookup(String username)
             throws DeletedException,
             SQLException {
-        final PreparedStatement stmt = connection.prepareStatement("SELECT Account.id from Account INNER JOIN User ON user=User.id where User.name=?");
-        stmt.setString(1, username);
+        final UUID identity = connections.read("SELECT Account.id from Account INNER JOIN User ON user=User.id where User.name=?", stmt -> {
+            stmt.setString(1, username);
 
-        System.err.println("lookup: " + stmt.toString());
+            System.err.println("lookup: " + stmt.toString());
 
-        final ResultSet rs = stmt.executeQuery();
-        if (rs.next()) {
-            final UUID identity =
-                    UUID.fromString(rs.getString("id"));
-            return get(identity);
-        }
-        throw new DeletedException();
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return format.getUUID(rs, "id");
+                }
+            }
+            throw new DeletedException();
+        });
+        return get(identity);
     }
 }
- 
@@ -0,0 +1,31 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * A storage of accounts, which can look them up by username.
+ */
+public interface AccountStore extends Storage<Account,SQLException> {
+
+    /**
+     * Look up an account based on their username.
+     */
+    public Stored<Account> lookup(String username) throws DeletedException, SQLException;
+
+    /**
+     * Look up only what is needed to check the password of the
+     * account with a username.
+     */
+    public Maybe<Credentials> credentials(String username) throws SQLException;
+
+    /**
+     * Get the current version UUID for the specified account.
+     */
+    public UUID getCurrentVersion(UUID id) throws DeletedException, SQLException;
+}
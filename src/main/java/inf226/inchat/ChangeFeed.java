@@ -0,0 +1,79 @@
+package inf226.inchat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+/**
+ * The ChangeFeed remembers the most recent version changes of
+ * one channel, so that subscribers can be sent what changed
+ * since the version they hold instead of the whole channel.
+ */
+public final class ChangeFeed {
+    private final int capacity;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+    private static final class Entry {
+        final UUID previous;
+        final UUID next;
+        final Maybe<Channel.Change> change;
+        Entry(UUID previous, UUID next, Maybe<Channel.Change> change) {
+            this.previous = previous;
+            this.next = next;
+            this.change = change;
+        }
+    }
+
+    /**
+     * @param capacity The number of version changes to remember.
+     */
+    public ChangeFeed(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Record that the channel went from one version to the next.
+     *
+     * @param change The change to an event, or nothing if it is not
+     *               known what changed.
+     */
+    public synchronized void record(UUID previous, UUID next, Maybe<Channel.Change> change) {
+        entries.addLast(new Entry(previous, next, change));
+        while(entries.size() > capacity)
+            entries.removeFirst();
+    }
+
+    /**
+     * Get the changes since a version.
+     *
+     * @return The newest version and the changes leading to it, oldest
+     *         first, or nothing if the version is no longer in the feed
+     *         or some change on the way is unknown.
+     */
+    public synchronized Maybe<Pair<UUID,List<Channel.Change>>> since(UUID version) {
+        final Iterator<Entry> i = entries.descendingIterator();
+        List<Channel.Change> changes = List.empty();
+        Maybe<UUID> newest = Maybe.nothing();
+        UUID expected = null;
+        while(i.hasNext()) {
+            final Entry entry = i.next();
+            if(expected == null && entry.next.equals(version))
+                return Maybe.just(Pair.pair(version, changes));
+            // The entries must form an unbroken chain of versions.
+            if(expected != null && !entry.next.equals(expected))
+                return Maybe.nothing();
+            if(entry.change.isNothing())
+                return Maybe.nothing();
+            newest = newest.supremum(Maybe.just(entry.next));
+            changes = List.cons(entry.change.defaultValue(null), changes);
+            if(entry.previous.equals(version))
+                return Maybe.just(Pair.pair(newest.defaultValue(null), changes));
+            expected = entry.previous;
+        }
+        return Maybe.nothing();
+    }
+}
@@ -1,5 +1,6 @@
 package inf226.inchat;
 
+import inf226.util.Maybe;
 import inf226.util.immutable.List;
 import inf226.storage.Stored;
 import java.time.Instant;
@@ -26,6 +27,55 @@ public final class Channel {
         return new Channel(name, List.cons(event,events));
     }
     
+    /**
+     * A Page holds a channel together with a window of its
+     * most recent events, and the cursor to the older events.
+     */
+    public static final class Page {
+        public final Stored<Channel> channel;
+        public final Maybe<Long> older;
+
+        public Page(Stored<Channel> channel, Maybe<Long> older) {
+            this.channel = channel;
+            this.older = older;
+        }
+    }
+
+    /**
+     * A Change records what happened to one event of a channel
+     * between two versions of the channel.
+     */
+    public static final class Change {
+        public static enum Kind { added, edited, deleted };
+        public final UUID event;
+        public final Kind kind;
+
+        public Change(UUID event, Kind kind) {
+            this.event = event;
+            this.kind = kind;
+        }
+        public static Change added(UUID event) { return new Change(event, Kind.added); }
+        public static Change edited(UUID event) { return new Change(event, Kind.edited); }
+        public static Change deleted(UUID event) { return new Change(event, Kind.deleted); }
+    }
+
+    /**
+     * A Delta holds the changes to a channel since an older version:
+     * the current state of the events added or edited, in the order
+     * they were changed, and the identities of the deleted events.
+     */
+    public static final class Delta {
+        public final UUID version;
+        public final List<Stored<Event>> events;
+        public final List<UUID> deleted;
+
+        public Delta(UUID version, List<Stored<Event>> events, List<UUID> deleted) {
+            this.version = version;
+            this.events = events;
+            this.deleted = deleted;
+        }
+    }
+
     /**
      * The Event class represents different kinds of events
      * in a channel, such as "join events" and "message events".
@@ -0,0 +1,200 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The change feeds and waiters of the channels in a ChannelStore.
+ */
+final class ChannelFeeds {
+    /* The futures to complete when each channel is updated.
+     */
+    private final ConcurrentHashMap<UUID,Set<CompletableFuture<Stored<Channel>>>> waiters
+        = new ConcurrentHashMap<UUID,Set<CompletableFuture<Stored<Channel>>>>();
+    /* The recent changes of each channel, used to send
+     * subscribers only what changed since their version.
+     */
+    private final Map<UUID,ChangeFeed> feeds
+        = new ConcurrentHashMap<UUID,ChangeFeed>();
+    private static final int feedCapacity = 256;
+
+    /**
+     * The change made by an update of a channel: a posted event is
+     * consed onto the event list.
+     */
+    static Maybe<Channel.Change> change(Channel previous, Channel next) {
+        return next.events.length > previous.events.length
+            ? next.events.head().map(e -> Channel.Change.added(e.identity))
+            : Maybe.nothing();
+    }
+
+    /**
+     * Record a new version in the change feed and notify waiters.
+     * Call this once the version has been committed.
+     */
+    void publish(UUID previous, Stored<Channel> channel, Maybe<Channel.Change> change) {
+        feeds.computeIfAbsent(channel.identity, id -> new ChangeFeed(feedCapacity))
+             .record(previous, channel.version, change);
+        giveNextVersion(channel);
+    }
+
+    /**
+     * Record a new version whose changes are not known, and give
+     * the waiters, if any, the channel loaded from storage.
+     * Call this once the version has been committed.
+     */
+    void publish(ChannelStore channels, UUID identity, UUID previous, UUID version) {
+        feeds.computeIfAbsent(identity, id -> new ChangeFeed(feedCapacity))
+             .record(previous, version, Maybe.nothing());
+        final Set<CompletableFuture<Stored<Channel>>> channelWaiters
+            = waiters.remove(identity);
+        if(channelWaiters == null)
+            return;
+        try {
+            final Stored<Channel> channel = channels.get(identity);
+            channelWaiters.forEach(w -> w.complete(channel));
+        } catch (DeletedException | SQLException e) {
+            channelWaiters.forEach(w -> w.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Get what changed in a channel since a version.
+     *
+     * @param events The storage to load the changed events from.
+     */
+    Maybe<Channel.Delta> getDelta(Storage<Channel.Event,SQLException> events,
+                                  UUID identity, UUID version)
+        throws SQLException {
+        final Maybe<Pair<UUID,List<Channel.Change>>> since =
+            Maybe.just(feeds.get(identity)).bind(feed -> feed.since(version));
+        final Pair<UUID,List<Channel.Change>> changes;
+        try {
+            changes = since.get();
+        } catch (Maybe.NothingException e) {
+            return Maybe.nothing();
+        }
+        // Deleted events are gone whatever happened to them before.
+        final Map<UUID,Boolean> seen = new TreeMap<UUID,Boolean>();
+        final List.Builder<UUID> deleted = List.builder();
+        changes.second.forEach(change -> {
+            if(change.kind.equals(Channel.Change.Kind.deleted)
+               && seen.put(change.event, true) == null)
+                deleted.accept(change.event);
+        });
+        // The others are sent once, in their current state.
+        final ArrayList<UUID> changed = new ArrayList<>();
+        changes.second.forEach(change -> {
+            if(seen.put(change.event, true) == null)
+                changed.add(change.event);
+        });
+        final Map<UUID,Stored<Channel.Event>> current = events.getAll(changed);
+        final List.Builder<Stored<Channel.Event>> updated = List.builder();
+        for(UUID id : changed) {
+            final Stored<Channel.Event> event = current.get(id);
+            if(event == null)
+                deleted.accept(id);
+            else
+                updated.accept(event);
+        }
+        return Maybe.just(new Channel.Delta(changes.first, updated.getList().reverse(), deleted.getList()));
+    }
+
+    /**
+     * Get a future of the next version of a channel.
+     *
+     * The future fails with a TimeoutException if no new version is
+     * committed within the timeout. Waiters which time out or are
+     * cancelled are forgotten.
+     *
+     * @param channels The storage of the channel.
+     * @param identity The identity of the channel.
+     * @param version  The previous version accessed.
+     */
+    CompletableFuture<Stored<Channel>> nextVersion(ChannelStore channels, UUID identity,
+                                                   UUID version, Duration timeout) {
+        return register(channels, identity, version)
+            .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for a new version of a channel.
+     * This is a blocking call to get the next version of a channel.
+     * @param channels The storage of the channel.
+     * @param identity The identity of the channel.
+     * @param version  The previous version accessed.
+     * @return The newest version after the specified one.
+     */
+    Stored<Channel> waitNextVersion(ChannelStore channels, UUID identity, UUID version)
+      throws DeletedException,
+             SQLException {
+        final CompletableFuture<Stored<Channel>> next = register(channels, identity, version);
+        while(true) {
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                System.err.println("Thread interrupted.");
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof DeletedException)
+                    throw (DeletedException)e.getCause();
+                if(e.getCause() instanceof SQLException)
+                    throw (SQLException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    private CompletableFuture<Stored<Channel>> register(ChannelStore channels, UUID identity,
+                                                        UUID version) {
+        final CompletableFuture<Stored<Channel>> next = new CompletableFuture<>();
+        waiters.compute(identity, (id, channelWaiters) -> {
+            final Set<CompletableFuture<Stored<Channel>>> registered
+                = channelWaiters == null ? ConcurrentHashMap.newKeySet() : channelWaiters;
+            registered.add(next);
+            return registered;
+        });
+        next.whenComplete((channel, e) -> forget(identity, next));
+        // Test if there already is a new version avaiable
+        try {
+            if(!channels.getCurrentVersion(identity).equals(version))
+                next.complete(channels.get(identity));
+        } catch (DeletedException | SQLException e) {
+            next.completeExceptionally(e);
+        }
+        return next;
+    }
+
+    private void forget(UUID identity, CompletableFuture<Stored<Channel>> waiter) {
+        waiters.computeIfPresent(identity, (id, channelWaiters) -> {
+            channelWaiters.remove(waiter);
+            return channelWaiters.isEmpty() ? null : channelWaiters;
+        });
+    }
+
+    /**
+     * Notify all waiters of a new version
+     */
+    private void giveNextVersion(Stored<Channel> channel) {
+        // Waiters registered from now on wait for the version after.
+        final Set<CompletableFuture<Stored<Channel>>> channelWaiters
+            = waiters.remove(channel.identity);
+        if(channelWaiters != null)
+            channelWaiters.forEach(w -> w.complete(channel));
+    }
+}
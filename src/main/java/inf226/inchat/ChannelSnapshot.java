@@ -0,0 +1,124 @@
+package inf226.inchat;
+
+import inf226.storage.Stored;
+import inf226.util.Mutable;
+import inf226.util.immutable.List;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * The encoding of the events of a channel in a snapshot, which is
+ * kept in the ChannelSnapshot table so that a channel can be loaded
+ * without reading its whole history.
+ */
+final class ChannelSnapshot {
+    private static final byte encoding = 1;
+
+    private ChannelSnapshot() {}
+
+    /**
+     * Encode the events of a channel, most recent at the head.
+     */
+    static byte[] encode(List<Stored<Channel.Event>> events) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(encoding);
+            out.writeInt(events.length);
+            // Oldest first, so that decoding conses them in order.
+            for(Stored<Channel.Event> event : iterable(events.reverse())) {
+                writeUUID(out, event.identity);
+                writeUUID(out, event.version);
+                out.writeLong(event.value.time.getEpochSecond());
+                out.writeInt(event.value.time.getNano());
+                out.writeInt(event.value.type.code);
+                writeString(out, event.value.sender);
+                writeString(out, event.value.message);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the events of a channel.
+     *
+     * @return The events, with the most recent one at the head.
+     * @throws IOException If the snapshot is not one this code wrote.
+     */
+    static List<Stored<Channel.Event>> decode(UUID channel, byte[] snapshot)
+        throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        if(in.readByte() != encoding)
+            throw new IOException("Unknown snapshot encoding");
+        final int count = in.readInt();
+        List<Stored<Channel.Event>> events = List.empty();
+        for(int i = 0; i < count; ++i) {
+            final UUID id = readUUID(in);
+            final UUID version = readUUID(in);
+            final Instant time = Instant.ofEpochSecond(in.readLong(), in.readInt());
+            final Channel.Event.Type type = Channel.Event.Type.fromInteger(in.readInt());
+            final String sender = readString(in);
+            final String message = readString(in);
+            events = List.cons(new Stored<Channel.Event>(
+                new Channel.Event(channel, time, sender, type, message), id, version), events);
+        }
+        return events;
+    }
+
+    /**
+     * Add events, most recent at the head, on top of older ones.
+     */
+    static List<Stored<Channel.Event>> append(List<Stored<Channel.Event>> older,
+                                              List<Stored<Channel.Event>> newer) {
+        final Mutable<List<Stored<Channel.Event>>> events = new Mutable<>(older);
+        newer.reverse().forEach(event -> events.accept(List.cons(event, events.get())));
+        return events.get();
+    }
+
+    private static <T> Iterable<T> iterable(List<T> list) {
+        final ArrayList<T> items = new ArrayList<>();
+        list.forEach(items::add);
+        return items;
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if(string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if(length < 0)
+            return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,14 +1,18 @@
 package inf226.inchat;
 
-import java.sql.Connection;
+import java.io.IOException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.UUID;
-import java.util.TreeMap;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import inf226.storage.*;
 
@@ -19,23 +23,51 @@ import inf226.util.*;
  * This class stores Channels in a SQL database.
  */
 public final class ChannelStorage
-    implements Storage<Channel,SQLException> {
+    implements ChannelStore {
     
-    final Connection connection;
-    /* The waiters object represent the callbacks to
-     * make when the channel is updated.
+    final ConnectionManager connections;
+    final Format format;
+    private final ChannelFeeds feeds = new ChannelFeeds();
+    public final EventStore eventStore;
+    /* Single events, through a cache if one is configured.
      */
-    private Map<UUID,List<Consumer<Stored<Channel>>>> waiters
-        = new TreeMap<UUID,List<Consumer<Stored<Channel>>>>();
-    public final EventStorage eventStore;
+    public final Storage<Channel.Event,SQLException> events;
+    /* How many events may be read after the latest snapshot before
+     * a new snapshot is due.
+     */
+    private final int snapshotInterval =
+        Integer.getInteger("inchat.snapshot.interval", 256);
+    /* The channels to write a new snapshot of in saveSnapshots.
+     */
+    private final Set<UUID> snapshotsDue = ConcurrentHashMap.newKeySet();
     
-    public ChannelStorage(Connection connection) 
+    public ChannelStorage(ConnectionManager connections) 
       throws SQLException {
-        this.connection = connection;
-        this.eventStore = new EventStorage(connection);
+        this(connections, new EventStorage(connections));
+    }
+
+    /**
+     * Store channels with their events in another event store.
+     * The event tables are created anyway, so that the migrations
+     * apply to the database whichever event store is used.
+     */
+    public ChannelStorage(ConnectionManager connections, EventStore eventStore)
+      throws SQLException {
+        EventStorage.createTables(connections);
+        this.connections = connections;
+        this.format = connections.format;
+        this.eventStore = eventStore;
+        this.events = CachingStorage.configured("event", eventStore,
+                                                eventStore::getCurrentVersion, 1024);
         
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)");
+        connections.execute("CREATE TABLE IF NOT EXISTS Channel (id " + format.uuid + " PRIMARY KEY, version " + format.uuid + ", name TEXT)");
+        connections.execute("CREATE TABLE IF NOT EXISTS ChannelRetention (channel " + format.uuid + " PRIMARY KEY, age INTEGER, events INTEGER, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+        connections.execute("CREATE TABLE IF NOT EXISTS ChannelSnapshot (channel " + format.uuid + " PRIMARY KEY, ordinal INTEGER, events BLOB, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+    }
+
+    @Override
+    public Storage<Channel.Event,SQLException> events() {
+        return events;
     }
     
     @Override
@@ -43,77 +75,256 @@ public final class ChannelStorage
       throws SQLException {
         
         final Stored<Channel> stored = new Stored<Channel>(channel);
-        String sql =  "INSERT INTO Channel VALUES('" + stored.identity + "','"
-                                                  + stored.version  + "','"
-                                                  + channel.name  + "')";
-        connection.createStatement().executeUpdate(sql);
+        connections.write("INSERT INTO Channel VALUES(?,?,?)", stmt -> {
+            bindChannel(stmt, stored);
+            return stmt.executeUpdate();
+        });
         return stored;
     }
+
+    @Override
+    public List<Stored<Channel>> saveAll(Collection<Channel> channels)
+      throws SQLException {
+        final List.Builder<Stored<Channel>> stored = List.builder();
+        connections.write("INSERT INTO Channel VALUES(?,?,?)", stmt -> {
+            for(Channel channel : channels) {
+                final Stored<Channel> s = new Stored<Channel>(channel);
+                bindChannel(stmt, s);
+                stmt.addBatch();
+                stored.accept(s);
+            }
+            return stmt.executeBatch();
+        });
+        return stored.getList().reverse();
+    }
+
+    private void bindChannel(PreparedStatement stmt, Stored<Channel> stored)
+      throws SQLException {
+        format.setUUID(stmt, 1, stored.identity);
+        format.setUUID(stmt, 2, stored.version);
+        stmt.setString(3, stored.value.name);
+    }
     
     @Override
-    public synchronized Stored<Channel> update(Stored<Channel> channel,
-                                            Channel new_channel)
+    public Stored<Channel> update(Stored<Channel> channel,
+                                  Channel new_channel)
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        final Stored<Channel> updated = current.newVersion(new_channel);
-        if(current.version.equals(channel.version)) {
-            String sql = "UPDATE Channel SET" +
-                " (version,name) =('" 
-                                + updated.version  + "','"
-                                + new_channel.name
-                                + "') WHERE id='"+ updated.identity + "'";
-            connection.createStatement().executeUpdate(sql);
-        } else {
-            throw new UpdatedException(current);
-        }
-        giveNextVersion(updated);
+        final Stored<Channel> updated = channel.newVersion(new_channel);
+        final int rows = connections.write("UPDATE Channel SET (version,name) =(?,?) WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, updated.version);
+            stmt.setString(2, new_channel.name);
+            format.setUUID(stmt, 3, updated.identity);
+            format.setUUID(stmt, 4, channel.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(channel.identity));
+        publish(channel.version, updated, ChannelFeeds.change(channel.value, new_channel));
         return updated;
     }
    
     @Override
-    public synchronized void delete(Stored<Channel> channel)
-       throws UpdatedException,
-              DeletedException,
-              SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        if(current.version.equals(channel.version)) {
-        String sql =  "DELETE FROM Channel WHERE id ='" + channel.identity + "'";
-        connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
-        }
+    public void delete(Stored<Channel> channel)
+            throws UpdatedException,
+            DeletedException,
+            SQLException {
+        final int rows = connections.write("DELETE FROM Channel WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, channel.identity);
+            format.setUUID(stmt, 2, channel.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(channel.identity));
     }
+    /**
+     * Get a channel, starting from its latest snapshot and reading
+     * only the events stored after it. When more than
+     * snapshotInterval events had to be read, a new snapshot is due,
+     * and is written by the next saveSnapshots.
+     */
     @Override
     public Stored<Channel> get(UUID id)
       throws DeletedException,
              SQLException {
+        final Pair<Snapshot,Pair<List<Stored<Channel.Event>>,Maybe<Long>>> read = read(id);
+        final Snapshot snapshot = read.first;
+        final List<Stored<Channel.Event>> tail = read.second.first;
+        if(tail.length >= snapshotInterval)
+            snapshotsDue.add(id);
+        return (new Stored<Channel>(new Channel(snapshot.name,
+                                                ChannelSnapshot.append(snapshot.events, tail)),
+                                    id, snapshot.version));
+    }
+
+    /**
+     * Read the latest snapshot of a channel and the events stored
+     * after it, in one read transaction so that they agree.
+     */
+    private Pair<Snapshot,Pair<List<Stored<Channel.Event>>,Maybe<Long>>> read(UUID id)
+      throws DeletedException,
+             SQLException {
+        return connections.readTransaction(() -> {
+            final Snapshot snapshot = getSnapshot(id);
+            // Get the events stored since the snapshot
+            return Pair.pair(snapshot, eventStore.getChannelEventsAfter(id, snapshot.ordinal));
+        });
+    }
 
-        final String channelsql = "SELECT version,name FROM Channel WHERE id = '" + id.toString() + "'";
-        final String eventsql = "SELECT id,rowid FROM Event WHERE channel = '" + id.toString() + "' ORDER BY rowid ASC";
-
-        final Statement channelStatement = connection.createStatement();
-        final Statement eventStatement = connection.createStatement();
-
-        final ResultSet channelResult = channelStatement.executeQuery(channelsql);
-        final ResultSet eventResult = eventStatement.executeQuery(eventsql);
-
-        if(channelResult.next()) {
-            final UUID version = 
-                UUID.fromString(channelResult.getString("version"));
-            final String name =
-                channelResult.getString("name");
-            // Get all the events associated with this channel
-            final List.Builder<Stored<Channel.Event>> events = List.builder();
-            while(eventResult.next()) {
-                final UUID eventId = UUID.fromString(eventResult.getString("id"));
-                events.accept(eventStore.get(eventId));
+    @Override
+    public int saveSnapshots() throws SQLException {
+        int saved = 0;
+        for(UUID id : snapshotsDue) {
+            snapshotsDue.remove(id);
+            try {
+                final Pair<Snapshot,Pair<List<Stored<Channel.Event>>,Maybe<Long>>> read = read(id);
+                final Snapshot snapshot = read.first;
+                final List<Stored<Channel.Event>> tail = read.second.first;
+                if(tail.length < snapshotInterval)
+                    continue;
+                if(saveSnapshot(id, snapshot.version, read.second.second.get(),
+                                ChannelSnapshot.append(snapshot.events, tail)))
+                    ++saved;
+            } catch (DeletedException e) {
+                // The channel has been deleted since.
+            } catch (Maybe.NothingException e) {
+                // The tail is not empty, so it has a cursor.
             }
-            return (new Stored<Channel>(new Channel(name,events.getList()),id,version));
-        } else {
-            throw new DeletedException();
         }
+        return saved;
+    }
+
+    @Override
+    public Map<UUID,Stored<Channel>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        // The channel rows, then the events of all of them at once.
+        final Map<UUID,Pair<UUID,String>> headers = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(ids)) {
+            connections.read("SELECT id,version,name FROM Channel WHERE id IN " + Batch.in(chunk), stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        headers.put(format.getUUID(rs, "id"),
+                                    Pair.pair(format.getUUID(rs, "version"),
+                                              rs.getString("name")));
+                    }
+                }
+                return headers;
+            });
+        }
+        final Map<UUID,List<Stored<Channel.Event>>> events =
+            eventStore.getChannelEvents(headers.keySet());
+        final Map<UUID,Stored<Channel>> channels = new HashMap<>();
+        headers.forEach((id, header) ->
+            channels.put(id, new Stored<Channel>(
+                new Channel(header.second,
+                            Maybe.just(events.get(id)).defaultValue(List.empty())),
+                id, header.first)));
+        return channels;
+    }
+
+    @Override
+    public Channel.Page getPage(UUID id, Maybe<Long> before, int limit)
+      throws DeletedException,
+             SQLException {
+        final Pair<UUID,String> channel = getHeader(id);
+        final Pair<List<Stored<Channel.Event>>,Maybe<Long>> page =
+            eventStore.getChannelPage(id, before, limit);
+        return new Channel.Page(
+            new Stored<Channel>(new Channel(channel.second,page.first),id,channel.first),
+            page.second);
+    }
+
+    /**
+     * The header of a channel with its latest snapshot, if any.
+     */
+    private static final class Snapshot {
+        final UUID version;
+        final String name;
+        final long ordinal;
+        final List<Stored<Channel.Event>> events;
+
+        Snapshot(UUID version, String name, long ordinal, List<Stored<Channel.Event>> events) {
+            this.version = version;
+            this.name = name;
+            this.ordinal = ordinal;
+            this.events = events;
+        }
+    }
+
+    /**
+     * Get the version and name of a channel together with its
+     * snapshot. A snapshot which cannot be decoded is ignored, and
+     * the channel is read from its first event.
+     */
+    private Snapshot getSnapshot(UUID id)
+      throws DeletedException,
+             SQLException {
+        return connections.read("SELECT Channel.version,Channel.name,ChannelSnapshot.ordinal,ChannelSnapshot.events FROM Channel LEFT JOIN ChannelSnapshot ON ChannelSnapshot.channel = Channel.id WHERE Channel.id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next()) {
+                    final UUID version = format.getUUID(rs, "version");
+                    final String name = rs.getString("name");
+                    final byte[] events = rs.getBytes("events");
+                    if(events != null) {
+                        try {
+                            return new Snapshot(version, name, rs.getLong("ordinal"),
+                                                ChannelSnapshot.decode(id, events));
+                        } catch (IOException e) {
+                            System.err.println("Ignoring snapshot of channel " + id + ": " + e);
+                        }
+                    }
+                    return new Snapshot(version, name, 0, List.empty());
+                }
+            }
+            throw new DeletedException();
+        });
+    }
+
+    /**
+     * Save a snapshot of the events of a channel, up to and including
+     * the event at ordinal. Nothing is saved if the channel has changed
+     * since its events were read, since an edit might be missing.
+     *
+     * @return Whether the snapshot was saved.
+     */
+    private boolean saveSnapshot(UUID id, UUID version, long ordinal,
+                                 List<Stored<Channel.Event>> events)
+      throws SQLException {
+        final byte[] snapshot = ChannelSnapshot.encode(events);
+        final int rows = connections.write("INSERT OR REPLACE INTO ChannelSnapshot SELECT ?,?,? WHERE EXISTS (SELECT 1 FROM Channel WHERE id=? AND version=?)", stmt -> {
+            format.setUUID(stmt, 1, id);
+            stmt.setLong(2, ordinal);
+            stmt.setBytes(3, snapshot);
+            format.setUUID(stmt, 4, id);
+            format.setUUID(stmt, 5, version);
+            return stmt.executeUpdate();
+        });
+        return rows > 0;
+    }
+
+    /**
+     * Get the version and name of a channel.
+     */
+    private Pair<UUID,String> getHeader(UUID id)
+      throws DeletedException,
+             SQLException {
+        return connections.read("SELECT version,name FROM Channel WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet channelResult = stmt.executeQuery()) {
+                if(channelResult.next()) {
+                    final UUID version = 
+                        format.getUUID(channelResult, "version");
+                    final String name =
+                        channelResult.getString("name");
+                    return Pair.pair(version,name);
+                }
+            }
+            throw new DeletedException();
+        });
     }
     
     /**
@@ -121,108 +332,168 @@ public final class ChannelStorage
      * This function should be called when events are changed or
      * deleted from the channel.
      */
+    @Override
     public Stored<Channel> noChangeUpdate(UUID channelId)
         throws SQLException, DeletedException {
-        String sql = "UPDATE Channel SET" +
-                " (version) =('" + UUID.randomUUID() + "') WHERE id='"+ channelId + "'";
-        connection.createStatement().executeUpdate(sql);
-        Stored<Channel> channel = get(channelId);
-        giveNextVersion(channel);
-        return channel;
+        return noChangeUpdate(channelId, Maybe.nothing());
     }
-    
+
     /**
-     * Get the current version UUID for the specified channel.
-     * @param id UUID for the channel.
+     * Create a "dummy" update recording which event was changed
+     * or deleted, so that subscribers are only sent that event.
      */
-    public UUID getCurrentVersion(UUID id)
-      throws DeletedException,
-             SQLException {
+    @Override
+    public Stored<Channel> noChangeUpdate(UUID channelId, Channel.Change change)
+        throws SQLException, DeletedException {
+        return noChangeUpdate(channelId, Maybe.just(change));
+    }
 
-        final String channelsql = "SELECT version FROM Channel WHERE id = '" + id.toString() + "'";
-        final Statement channelStatement = connection.createStatement();
+    private Stored<Channel> noChangeUpdate(UUID channelId, Maybe<Channel.Change> change)
+        throws SQLException, DeletedException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final UUID previous = getCurrentVersion(channelId);
+            // An event in the snapshot may have been changed.
+            connections.write("DELETE FROM ChannelSnapshot WHERE channel=?", stmt -> {
+                format.setUUID(stmt, 1, channelId);
+                return stmt.executeUpdate();
+            });
+            connections.write("UPDATE Channel SET (version) =(?) WHERE id=?", stmt -> {
+                format.setUUID(stmt, 1, UUID.randomUUID());
+                format.setUUID(stmt, 2, channelId);
+                return stmt.executeUpdate();
+            });
+            Stored<Channel> channel = get(channelId);
+            publish(previous, channel, change);
+            transaction.commit();
+            return channel;
+        }
+    }
 
-        final ResultSet channelResult = channelStatement.executeQuery(channelsql);
-        if(channelResult.next()) {
-            return UUID.fromString(
-                    channelResult.getString("version"));
+    @Override
+    public UUID touch(UUID channelId)
+        throws SQLException, DeletedException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final UUID previous = getCurrentVersion(channelId);
+            final UUID version = UUID.randomUUID();
+            connections.write("DELETE FROM ChannelSnapshot WHERE channel=?", stmt -> {
+                format.setUUID(stmt, 1, channelId);
+                return stmt.executeUpdate();
+            });
+            connections.write("UPDATE Channel SET (version) =(?) WHERE id=?", stmt -> {
+                format.setUUID(stmt, 1, version);
+                format.setUUID(stmt, 2, channelId);
+                return stmt.executeUpdate();
+            });
+            // Waiters load the channel after the writer is released.
+            connections.afterCommit(() -> feeds.publish(this, channelId, previous, version));
+            transaction.commit();
+            return version;
         }
-        throw new DeletedException();
+    }
+
+    @Override
+    public Maybe<Channel.Delta> getDelta(UUID identity, UUID version)
+        throws SQLException {
+        return feeds.getDelta(events, identity, version);
+    }
+
+    /**
+     * Record a new version in the change feed and notify waiters,
+     * once the version has been committed.
+     */
+    private void publish(UUID previous, Stored<Channel> channel, Maybe<Channel.Change> change) {
+        connections.afterCommit(() -> feeds.publish(previous, channel, change));
     }
     
     /**
-     * Wait for a new version of a channel.
-     * This is a blocking call to get the next version of a channel.
-     * @param identity The identity of the channel.
-     * @param version  The previous version accessed.
-     * @return The newest version after the specified one.
+     * Get the current version UUID for the specified channel.
+     * @param id UUID for the channel.
      */
-    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+    @Override
+    public UUID getCurrentVersion(UUID id)
       throws DeletedException,
              SQLException {
-        var result
-            = Maybe.<Stored<Channel>>builder();
-        // Insert our result consumer
-        synchronized(waiters) {
-            var channelWaiters 
-                = Maybe.just(waiters.get(identity));
-            waiters.put(identity
-                       ,List.cons(result
-                                 ,channelWaiters.defaultValue(List.empty())));
-        }
-        // Test if there already is a new version avaiable
-        if(!getCurrentVersion(identity).equals(version)) {
-            return get(identity);
-        }
-        // Wait
-        synchronized(result) {
-            while(true) {
-                try {
-                    result.wait();
-                    return result.getMaybe().get();
-                } catch (InterruptedException e) {
-                    System.err.println("Thread interrupted.");
-                } catch (Maybe.NothingException e) {
-                    // Still no result, looping
+
+        return connections.read("SELECT version FROM Channel WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet channelResult = stmt.executeQuery()) {
+                if(channelResult.next()) {
+                    return format.getUUID(channelResult, "version");
                 }
             }
-        }
+            throw new DeletedException();
+        });
     }
     
-    /**
-     * Notify all waiters of a new version
-     */
-    private void giveNextVersion(Stored<Channel> channel) {
-        synchronized(waiters) {
-            Maybe<List<Consumer<Stored<Channel>>>> channelWaiters 
-                = Maybe.just(waiters.get(channel.identity));
-            try {
-                channelWaiters.get().forEach(w -> {
-                    w.accept(channel);
-                    synchronized(w) {
-                        w.notifyAll();
-                    }
-                });
-            } catch (Maybe.NothingException e) {
-                // No were waiting for us :'(
-            }
-            waiters.put(channel.identity,List.empty());
-        }
+    @Override
+    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+      throws DeletedException,
+             SQLException {
+        return feeds.waitNextVersion(this, identity, version);
     }
-    
+
+    @Override
+    public CompletableFuture<Stored<Channel>> nextVersion(UUID identity, UUID version,
+                                                          Duration timeout) {
+        return feeds.nextVersion(this, identity, version, timeout);
+    }
+
     /**
      * Get the channel belonging to a specific event.
      */
+    @Override
     public Stored<Channel> lookupChannelForEvent(Stored<Channel.Event> e)
       throws SQLException, DeletedException {
-        String sql = "SELECT channel FROM ChannelEvent WHERE event='" + e.identity + "'";
-        final ResultSet rs = connection.createStatement().executeQuery(sql);
-        if(rs.next()) {
-            final UUID channelId = UUID.fromString(rs.getString("channel"));
-            return get(channelId);
+        return get(events.get(e.identity).value.channel);
+    }
+
+    /**
+     * Set how long the events of a channel are kept. The maximal age
+     * is kept in seconds.
+     */
+    @Override
+    public void setRetention(UUID channel, Retention retention)
+      throws SQLException {
+        if(retention.keepsAll()) {
+            connections.write("DELETE FROM ChannelRetention WHERE channel=?", stmt -> {
+                format.setUUID(stmt, 1, channel);
+                return stmt.executeUpdate();
+            });
+            return;
         }
-        throw new DeletedException();
+        connections.write("INSERT OR REPLACE INTO ChannelRetention VALUES(?,?,?)", stmt -> {
+            format.setUUID(stmt, 1, channel);
+            stmt.setObject(2, retention.maxAge.map(age -> age.getSeconds()).defaultValue(null));
+            stmt.setObject(3, retention.maxEvents.defaultValue(null));
+            return stmt.executeUpdate();
+        });
+    }
+
+    @Override
+    public Map<UUID,Retention> getRetentions()
+      throws SQLException {
+        return connections.read("SELECT channel,age,events FROM ChannelRetention", stmt -> {
+            final Map<UUID,Retention> retentions = new HashMap<>();
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next()) {
+                    final long age = rs.getLong("age");
+                    final Maybe<Duration> maxAge = rs.wasNull()
+                        ? Maybe.nothing() : Maybe.just(Duration.ofSeconds(age));
+                    final int events = rs.getInt("events");
+                    final Maybe<Integer> maxEvents = rs.wasNull()
+                        ? Maybe.nothing() : Maybe.just(events);
+                    retentions.put(format.getUUID(rs, "channel"),
+                                   new Retention(maxAge, maxEvents));
+                }
+            }
+            return retentions;
+        });
+    }
+
+    @Override
+    public Search.Page search(Collection<UUID> channels, String query,
+                              int offset, int limit)
+      throws SQLException {
+        return eventStore.search(channels, query, offset, limit);
     }
-} 
- 
- 
+}
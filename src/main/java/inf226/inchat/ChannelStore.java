@@ -0,0 +1,126 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A storage of channels and their events, which notifies
+ * subscribers of new versions.
+ */
+public interface ChannelStore extends Storage<Channel,SQLException> {
+
+    /**
+     * The storage of the events of the channels.
+     */
+    public Storage<Channel.Event,SQLException> events();
+
+    /**
+     * Get a channel with only a page of its events.
+     *
+     * @param id     The identity of the channel.
+     * @param before Cursor from a previous page, or nothing for the
+     *               most recent events.
+     * @param limit  The maximal number of events in the page.
+     */
+    public Channel.Page getPage(UUID id, Maybe<Long> before, int limit)
+        throws DeletedException, SQLException;
+
+    /**
+     * Give a channel a new version without changing it, for when
+     * events are changed or deleted.
+     */
+    public Stored<Channel> noChangeUpdate(UUID channelId)
+        throws SQLException, DeletedException;
+
+    /**
+     * Give a channel a new version recording which event was changed
+     * or deleted, so that subscribers are only sent that event.
+     */
+    public Stored<Channel> noChangeUpdate(UUID channelId, Channel.Change change)
+        throws SQLException, DeletedException;
+
+    /**
+     * Give a channel a new version without loading it, for when
+     * many events were deleted at once. Waiters are given the
+     * channel once the version is committed.
+     *
+     * @return The new version.
+     */
+    public UUID touch(UUID channelId)
+        throws SQLException, DeletedException;
+
+    /**
+     * Write the snapshots which loading the channels found due,
+     * for stores which keep snapshots.
+     *
+     * @return The number of snapshots written.
+     */
+    public int saveSnapshots() throws SQLException;
+
+    /**
+     * Get what changed in a channel since a version.
+     *
+     * @return The changes, or nothing if they are no longer known
+     *         and the caller should load the channel again.
+     */
+    public Maybe<Channel.Delta> getDelta(UUID identity, UUID version)
+        throws SQLException;
+
+    /**
+     * Get the current version UUID for the specified channel.
+     */
+    public UUID getCurrentVersion(UUID id)
+        throws DeletedException, SQLException;
+
+    /**
+     * Wait for a new version of a channel.
+     *
+     * @return The newest version after the specified one.
+     */
+    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+        throws DeletedException, SQLException;
+
+    /**
+     * Get a future of the next version of a channel, which fails
+     * with a TimeoutException if none is committed within the
+     * timeout. Cancelling the future stops waiting.
+     */
+    public CompletableFuture<Stored<Channel>> nextVersion(UUID identity, UUID version,
+                                                          Duration timeout);
+
+    /**
+     * Get the channel belonging to a specific event.
+     */
+    public Stored<Channel> lookupChannelForEvent(Stored<Channel.Event> e)
+        throws SQLException, DeletedException;
+
+    /**
+     * Set how long the events of a channel are kept.
+     */
+    public void setRetention(UUID channel, Retention retention)
+        throws SQLException;
+
+    /**
+     * Get the channels which do not keep all their events.
+     */
+    public Map<UUID,Retention> getRetentions()
+        throws SQLException;
+
+    /**
+     * Search the messages of some channels.
+     *
+     * @see EventStore#search
+     */
+    public Search.Page search(Collection<UUID> channels, String query,
+                              int offset, int limit)
+        throws SQLException;
+}
@@ -0,0 +1,175 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.storage.Transactions;
+import inf226.storage.UpdatedException;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A background job which removes the events that the retention
+ * policies of the channels no longer keep.
+ *
+ * Events are removed a small batch at a time, oldest first. Each
+ * batch is one transaction, and batches are spaced out, so that the
+ * compactor never holds the writer for long. A channel is given one
+ * new version once all its batches are done, so readers may see the
+ * removed events until then.
+ *
+ * After each pass, the compactor also writes the channel snapshots
+ * which have come due, so that loading a channel never writes.
+ */
+public final class Compactor implements AutoCloseable {
+    private final Transactions connections;
+    private final ChannelStore channelStore;
+    private final EventStore eventStore;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final long intervalMillis;
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    /**
+     * Start a compactor.
+     *
+     * @param connections    The connections to write through.
+     * @param channelStore   The channels and their retention policies.
+     * @param eventStore     The events of the channels.
+     * @param batchSize      The maximum number of events removed per transaction.
+     * @param pauseMillis    How long to wait between batches.
+     * @param intervalMillis How long to wait between passes over the channels.
+     */
+    public Compactor(Transactions connections, ChannelStore channelStore, EventStore eventStore,
+                     int batchSize, long pauseMillis, long intervalMillis) {
+        this.connections = connections;
+        this.channelStore = channelStore;
+        this.eventStore = eventStore;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMillis = pauseMillis;
+        this.intervalMillis = intervalMillis;
+        this.worker = new Thread(this::run, "compactor");
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * A compactor configured by the system properties
+     * inchat.compact.batch, and inchat.compact.pause and
+     * inchat.compact.interval in milliseconds.
+     */
+    public static Compactor configured(Transactions connections, ChannelStore channelStore,
+                                       EventStore eventStore) {
+        return new Compactor(connections, channelStore, eventStore,
+                             Integer.getInteger("inchat.compact.batch", 100),
+                             Long.getLong("inchat.compact.pause", 50),
+                             Long.getLong("inchat.compact.interval", 60000));
+    }
+
+    /**
+     * Start compacting in the background.
+     */
+    public Compactor start() {
+        worker.start();
+        return this;
+    }
+
+    private void run() {
+        while(!closed) {
+            try {
+                compact();
+                channelStore.saveSnapshots();
+            } catch (InterruptedException e) {
+                // Closing.
+                continue;
+            } catch (SQLException | RuntimeException e) {
+                // Such as an UncheckedIOException from the event log.
+                System.err.println("While compacting channels:\n" + e);
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                // Closing.
+            }
+        }
+    }
+
+    /**
+     * Make one pass over the channels with a retention policy.
+     *
+     * @return The number of events removed.
+     */
+    public int compact() throws SQLException, InterruptedException {
+        int removed = 0;
+        for(Map.Entry<UUID,Retention> entry : channelStore.getRetentions().entrySet()) {
+            int channelRemoved = 0;
+            int batch;
+            do {
+                batch = compact(entry.getKey(), entry.getValue());
+                channelRemoved += batch;
+                if(batch > 0 && pauseMillis > 0)
+                    Thread.sleep(pauseMillis);
+            } while(batch == batchSize && !closed);
+            if(channelRemoved > 0) {
+                try {
+                    channelStore.touch(entry.getKey());
+                } catch (DeletedException e) {
+                    // The channel itself was deleted.
+                }
+            }
+            removed += channelRemoved;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove one batch of expired events from a channel.
+     *
+     * @return The number of events removed.
+     */
+    private int compact(UUID channel, Retention retention)
+        throws SQLException {
+        final ArrayList<Stored<Channel.Event>> oldest = new ArrayList<>();
+        eventStore.getOldestEvents(channel, batchSize).reverse().forEach(oldest::add);
+        final int expired = retention.expired(oldest,
+                                              eventStore.countChannelEvents(channel),
+                                              Instant.now());
+        if(expired == 0)
+            return 0;
+        // Delete through the channel store, so that caches see it.
+        final Storage<Channel.Event,SQLException> events = channelStore.events();
+        int removed = 0;
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            for(Stored<Channel.Event> event : oldest.subList(0, expired)) {
+                try {
+                    events.delete(event);
+                    ++removed;
+                } catch (UpdatedException e) {
+                    // Edited since we read it; it goes in a later pass.
+                } catch (DeletedException e) {
+                    // Already gone.
+                }
+            }
+            transaction.commit();
+        }
+        return removed;
+    }
+
+    /**
+     * Stop compacting, and wait for the current batch to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
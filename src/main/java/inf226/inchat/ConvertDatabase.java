@@ -0,0 +1,123 @@
+package inf226.inchat;
+
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Copy an inchat database into a new database in another format.
+ *
+ * Usage: ConvertDatabase source.db target.db [text|binary]
+ *
+ * The target must not exist. Rows keep their rowid, and events
+ * their seq, so the order of events and the page cursors handed out
+ * to clients are kept.
+ */
+public final class ConvertDatabase {
+    private final ConnectionManager source;
+    private final ConnectionManager target;
+
+    private ConvertDatabase(ConnectionManager source, ConnectionManager target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if(args.length < 2) {
+            System.err.println("Usage: ConvertDatabase source.db target.db [text|binary]");
+            System.exit(1);
+        }
+        final Format format = Format.valueOf(args.length > 2 ? args[2] : "binary");
+        try (final ConnectionManager source
+                 = new ConnectionManager("jdbc:sqlite:" + args[0], 1, 16);
+             final ConnectionManager target
+                 = new ConnectionManager("jdbc:sqlite:" + args[1], 1, 16, format)) {
+            if(!target.format.equals(format))
+                throw new SQLException(args[1] + " already exists in the " + target.format + " format");
+            schema(source);
+            schema(target);
+            new ConvertDatabase(source, target).copy();
+            System.err.println("Converted " + args[0] + " (" + source.format + ") to "
+                               + args[1] + " (" + target.format + ")");
+        }
+    }
+
+    /* Create the tables, and bring them up to the current version.
+     */
+    private static void schema(ConnectionManager connections)
+        throws SQLException {
+        final UserStorage userStore = new UserStorage(connections);
+        new ChannelStorage(connections);
+        final AccountStorage accountStore = new AccountStorage(connections, userStore);
+        new SessionStorage(connections, accountStore);
+        Migrations.migrate(connections);
+    }
+
+    /* Tables are copied in the order of their foreign keys. A column
+     * is written "name uuid" or "name time" if it is converted, and
+     * "name" if it is copied as is.
+     */
+    private void copy() throws SQLException {
+        try (final ConnectionManager.Transaction transaction = target.begin()) {
+            copy("User", "id uuid", "version uuid", "name", "joined time");
+            copy("Account", "id uuid", "version uuid", "user uuid", "password");
+            copy("Channel", "id uuid", "version uuid", "name");
+            copy("ChannelRetention", "channel uuid", "age", "events");
+            copy("AccountChannel", "account uuid", "channel uuid", "alias", "ordinal", "role");
+            copy("Event", "id uuid", "version uuid", "type", "time time", "channel uuid", "seq");
+            target.execute("DELETE FROM EventSequence");
+            copy("EventSequence", "next");
+            copy("Message", "id uuid", "sender", "content");
+            copy("Joined", "id uuid", "sender");
+            // The search index is built from the copied messages.
+            target.execute("INSERT INTO MessageSearch(rowid,body) SELECT Event.seq,Message.content FROM Event JOIN Message ON Message.id = Event.id");
+            copy("Session", "id uuid", "version uuid", "account uuid", "expiry time");
+            transaction.commit();
+        }
+    }
+
+    private void copy(String table, String... columns) throws SQLException {
+        final String[] names = new String[columns.length];
+        final String[] kinds = new String[columns.length];
+        for(int i = 0; i < columns.length; ++i) {
+            final String[] column = columns[i].split(" ");
+            names[i] = column[0];
+            kinds[i] = column.length > 1 ? column[1] : "";
+        }
+        final String list = String.join(",", names);
+        final String select = "SELECT rowid," + list + " FROM " + table + " ORDER BY rowid";
+        final String insert = "INSERT INTO " + table + "(rowid," + list + ") VALUES(?"
+            + ",?".repeat(columns.length) + ")";
+        final long rows = target.write(insert, stmt ->
+            source.read(select, query -> {
+                long count = 0;
+                try (final ResultSet rs = query.executeQuery()) {
+                    while(rs.next()) {
+                        stmt.setLong(1, rs.getLong(1));
+                        for(int i = 0; i < names.length; ++i) {
+                            switch(kinds[i]) {
+                                case "uuid":
+                                    target.format.setUUID(stmt, i + 2,
+                                        source.format.getUUID(rs, names[i]));
+                                    break;
+                                case "time":
+                                    target.format.setInstant(stmt, i + 2,
+                                        source.format.getInstant(rs, names[i]));
+                                    break;
+                                default:
+                                    stmt.setObject(i + 2, rs.getObject(names[i]));
+                            }
+                        }
+                        stmt.addBatch();
+                        if(++count % 1000 == 0)
+                            stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+                return count;
+            }));
+        System.err.println(table + ": " + rows + " rows");
+    }
+}
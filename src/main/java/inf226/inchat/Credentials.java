@@ -0,0 +1,26 @@
+package inf226.inchat;
+
+import java.util.UUID;
+
+/**
+ * The part of an account needed to check a password, which can be
+ * read without loading the rest of the account.
+ */
+public final class Credentials {
+    public final UUID account;
+    public final UUID user;
+    public final Password key;
+
+    public Credentials(UUID account, UUID user, Password key) {
+        this.account = account;
+        this.user = user;
+        this.key = key;
+    }
+
+    /**
+     * Check weather if a string is the password of the account.
+     */
+    public boolean checkPassword(String password) {
+        return key.check(password);
+    }
+}
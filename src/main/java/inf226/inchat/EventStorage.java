@@ -1,156 +1,529 @@
 package inf226.inchat;
 
-import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.function.Consumer;
 
 import inf226.storage.*;
 import inf226.util.*;
+import inf226.util.immutable.List;
 
 
 
 
 public final class EventStorage
-        implements Storage<Channel.Event,SQLException> {
+        implements EventStore {
 
-    private final Connection connection;
+    private final ConnectionManager connections;
+    private final Format format;
 
-    public EventStorage(Connection connection)
+    /* Every event row joined with its Message or Joined row.
+     * Exactly one of msender and jsender is non-null, depending
+     * on the type of the event.
+     */
+    private static final String eventColumns =
+        "Event.seq AS ordinal,Event.id,Event.version,Event.channel,Event.type,Event.time,"
+      + "Message.sender AS msender,Message.content,Joined.sender AS jsender ";
+    private static final String eventJoins =
+        "LEFT JOIN Message ON Message.id = Event.id "
+      + "LEFT JOIN Joined ON Joined.id = Event.id ";
+    private static final String eventQuery =
+        "SELECT " + eventColumns + "FROM Event " + eventJoins;
+
+    /* The messages matching a full-text query, best match first,
+     * in some channels. The rowid of the MessageSearch row of a
+     * message is the seq of its Event row. The snippet is plain text, to be
+     * escaped and highlighted when it is shown.
+     */
+    private static final String searchQuery =
+        "SELECT " + eventColumns + ",bm25(MessageSearch) AS score,"
+      + "snippet(MessageSearch,0,'','','...',12) AS snippet "
+      + "FROM MessageSearch JOIN Event ON Event.seq = MessageSearch.rowid " + eventJoins
+      + "WHERE MessageSearch MATCH ? AND Event.channel IN ";
+
+    public EventStorage(ConnectionManager connections)
+            throws SQLException {
+        this.connections = connections;
+        this.format = connections.format;
+        createTables(connections);
+    }
+
+    /**
+     * Create the tables of the events, if they do not exist.
+     */
+    static void createTables(ConnectionManager connections)
             throws SQLException {
-        this.connection = connection;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Event (id TEXT PRIMARY KEY, version TEXT, type INTEGER, time TEXT)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        final Format format = connections.format;
+        connections.execute("CREATE TABLE IF NOT EXISTS Event (id " + format.uuid + " PRIMARY KEY, version " + format.uuid + ", type INTEGER, time " + format.time + ", channel " + format.uuid + ", seq INTEGER)");
+        connections.execute("CREATE TABLE IF NOT EXISTS Message (id " + format.uuid + " PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        connections.execute("CREATE TABLE IF NOT EXISTS Joined (id " + format.uuid + " PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        connections.execute("CREATE VIRTUAL TABLE IF NOT EXISTS MessageSearch USING fts5(body)");
+        connections.execute("CREATE TABLE IF NOT EXISTS EventSequence (next INTEGER NOT NULL)");
+        connections.execute("INSERT INTO EventSequence SELECT 1 WHERE NOT EXISTS (SELECT * FROM EventSequence)");
     }
 
     @Override
     public Stored<Channel.Event> save(Channel.Event event)
             throws SQLException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final Stored<Channel.Event> stored = new Stored<Channel.Event>(event);
+            final long seq = sequence(1);
+
+            connections.write(insertEvent, stmt -> {
+                bindEvent(stmt, stored, seq);
+                return stmt.executeUpdate();
+            });
+            switch (event.type) {
+                case message:
+                    connections.write("INSERT INTO Message VALUES(?,?,?)", stmt -> {
+                        format.setUUID(stmt, 1, stored.identity);
+                        stmt.setString(2, event.sender);
+                        stmt.setString(3, event.message);
+                        return stmt.executeUpdate();
+                    });
+                    index(stored.identity, event.message);
+                    break;
+                case join:
+                    connections.write("INSERT INTO Joined VALUES(?,?)", stmt -> {
+                        format.setUUID(stmt, 1, stored.identity);
+                        stmt.setString(2, event.sender);
+                        return stmt.executeUpdate();
+                    });
+                    break;
+            }
+            transaction.commit();
+            return stored;
+        }
+    }
 
-        final Stored<Channel.Event> stored = new Stored<Channel.Event>(event);
+    @Override
+    public List<Stored<Channel.Event>> saveAll(Collection<Channel.Event> events)
+            throws SQLException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final ArrayList<Stored<Channel.Event>> stored = new ArrayList<>();
+            for(Channel.Event event : events)
+                stored.add(new Stored<Channel.Event>(event));
+            final long first = sequence(stored.size());
 
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO Event VALUES(?,?,?,?)");
-        stmt.setObject(1, stored.identity);
-        stmt.setObject(2, stored.version);
-        stmt.setInt(3, event.type.code);
-        stmt.setObject(4, event.time);
+            connections.write(insertEvent, stmt -> {
+                long seq = first;
+                for(Stored<Channel.Event> event : stored) {
+                    bindEvent(stmt, event, seq++);
+                    stmt.addBatch();
+                }
+                return stmt.executeBatch();
+            });
+            connections.write("INSERT INTO Message VALUES(?,?,?)", stmt -> {
+                for(Stored<Channel.Event> event : stored) {
+                    if(event.value.type != Channel.Event.Type.message)
+                        continue;
+                    format.setUUID(stmt, 1, event.identity);
+                    stmt.setString(2, event.value.sender);
+                    stmt.setString(3, event.value.message);
+                    stmt.addBatch();
+                }
+                return stmt.executeBatch();
+            });
+            connections.write(indexStatement, stmt -> {
+                for(Stored<Channel.Event> event : stored) {
+                    if(event.value.type != Channel.Event.Type.message)
+                        continue;
+                    stmt.setString(1, event.value.message);
+                    format.setUUID(stmt, 2, event.identity);
+                    stmt.addBatch();
+                }
+                return stmt.executeBatch();
+            });
+            connections.write("INSERT INTO Joined VALUES(?,?)", stmt -> {
+                for(Stored<Channel.Event> event : stored) {
+                    if(event.value.type != Channel.Event.Type.join)
+                        continue;
+                    format.setUUID(stmt, 1, event.identity);
+                    stmt.setString(2, event.value.sender);
+                    stmt.addBatch();
+                }
+                return stmt.executeBatch();
+            });
+            transaction.commit();
 
-        stmt.execute();
-        switch (event.type) {
-            case message:
-                stmt = connection.prepareStatement("INSERT INTO Message VALUES(?,?,?)");
-                stmt.setObject(1, stored.identity);
-                stmt.setString(2, event.sender);
-                stmt.setString(3, event.message);
-                break;
-            case join:
-                //XXX: Resource leak?
-                stmt = connection.prepareStatement("INSERT INTO Joined VALUES(?,?)");
-                stmt.setObject(1, stored.identity);
-                stmt.setString(2, event.sender);
-                break;
+            final List.Builder<Stored<Channel.Event>> result = List.builder();
+            for(Stored<Channel.Event> event : stored)
+                result.accept(event);
+            return result.getList().reverse();
         }
-        stmt.execute();
-        return stored;
+    }
+
+    private static final String insertEvent =
+        "INSERT INTO Event(id,version,type,time,channel,seq) VALUES(?,?,?,?,?,?)";
+
+    private void bindEvent(PreparedStatement stmt, Stored<Channel.Event> stored, long seq)
+            throws SQLException {
+        format.setUUID(stmt, 1, stored.identity);
+        format.setUUID(stmt, 2, stored.version);
+        stmt.setInt(3, stored.value.type.code);
+        format.setInstant(stmt, 4, stored.value.time);
+        format.setUUID(stmt, 5, stored.value.channel);
+        stmt.setLong(6, seq);
+    }
+
+    /* Take the next count numbers of the sequence which orders the
+     * events. Unlike the rowid, a number is never handed out again,
+     * even if its event is deleted, and it survives a VACUUM.
+     *
+     * @return The first of the numbers.
+     */
+    private long sequence(int count)
+            throws SQLException {
+        final long first = connections.read("SELECT next FROM EventSequence", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong("next");
+            }
+        });
+        connections.write("UPDATE EventSequence SET next = next + ?", stmt -> {
+            stmt.setInt(1, count);
+            return stmt.executeUpdate();
+        });
+        return first;
     }
 
     @Override
-    public synchronized Stored<Channel.Event> update(Stored<Channel.Event> event,
-                                                     Channel.Event new_event)
+    public Stored<Channel.Event> update(Stored<Channel.Event> event,
+                                        Channel.Event new_event)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Channel.Event> current = get(event.identity);
-        final Stored<Channel.Event> updated = current.newVersion(new_event);
-        if(current.version.equals(event.version)) {
-
-            PreparedStatement stmt = connection.prepareStatement("UPDATE Event SET (version,time,type) = (?,?,?) WHERE id=?");
-            stmt.setObject(1, updated.version);
-            stmt.setObject(2, new_event.time);
-            stmt.setInt(3, new_event.type.code);
-            stmt.setObject(4, updated.identity);
-            stmt.execute();
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            final Stored<Channel.Event> updated = event.newVersion(new_event);
+            final int rows = connections.write("UPDATE Event SET (version,time,type) = (?,?,?) WHERE id=? AND version=?", stmt -> {
+                format.setUUID(stmt, 1, updated.version);
+                format.setInstant(stmt, 2, new_event.time);
+                stmt.setInt(3, new_event.type.code);
+                format.setUUID(stmt, 4, updated.identity);
+                format.setUUID(stmt, 5, event.version);
+                return stmt.executeUpdate();
+            });
+            if(rows == 0)
+                throw new UpdatedException(get(event.identity));
             switch (new_event.type) {
                 case message:
-                    stmt = connection.prepareStatement("UPDATE Message SET (sender,content)=(?,?) WHERE id=?");
-                    stmt.setString(1, new_event.sender);
-                    stmt.setString(2, new_event.message);
-                    stmt.setObject(3, updated.identity);
+                    connections.write("UPDATE Message SET (sender,content)=(?,?) WHERE id=?", stmt -> {
+                        stmt.setString(1, new_event.sender);
+                        stmt.setString(2, new_event.message);
+                        format.setUUID(stmt, 3, updated.identity);
+                        return stmt.executeUpdate();
+                    });
+                    index(updated.identity, new_event.message);
                     break;
                 case join:
-                    stmt = connection.prepareStatement("UPDATE Joined SET (sender)=? WHERE id=?");
-                    stmt.setString(1,new_event.sender);
-                    stmt.setObject(2, updated.identity);
+                    connections.write("UPDATE Joined SET (sender)=? WHERE id=?", stmt -> {
+                        stmt.setString(1,new_event.sender);
+                        format.setUUID(stmt, 2, updated.identity);
+                        return stmt.executeUpdate();
+                    });
+                    unindex(updated.identity);
                     break;
             }
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
+            transaction.commit();
+            return updated;
         }
-        return updated;
     }
 
     @Override
-    public synchronized void delete(Stored<Channel.Event> event)
+    public void delete(Stored<Channel.Event> event)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Channel.Event> current = get(event.identity);
-        if(current.version.equals(event.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("DELETE FROM Event WHERE id =?");
-            stmt.setObject(1, event.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            // The index row is found through the event row, so it goes first.
+            unindex(event.identity);
+            final int rows = connections.write("DELETE FROM Event WHERE id=? AND version=?", stmt -> {
+                format.setUUID(stmt, 1, event.identity);
+                format.setUUID(stmt, 2, event.version);
+                return stmt.executeUpdate();
+            });
+            if(rows == 0)
+                throw new UpdatedException(get(event.identity));
+            transaction.commit();
         }
     }
+
+    /* Index the text of a message, replacing what was indexed for it.
+     */
+    private static final String indexStatement =
+        "INSERT OR REPLACE INTO MessageSearch(rowid,body) SELECT seq,? FROM Event WHERE id=?";
+
+    private void index(UUID id, String message)
+            throws SQLException {
+        connections.write(indexStatement, stmt -> {
+            stmt.setString(1, message);
+            format.setUUID(stmt, 2, id);
+            return stmt.executeUpdate();
+        });
+    }
+
+    private void unindex(UUID id)
+            throws SQLException {
+        connections.write("DELETE FROM MessageSearch WHERE rowid=(SELECT seq FROM Event WHERE id=?)", stmt -> {
+            format.setUUID(stmt, 1, id);
+            return stmt.executeUpdate();
+        });
+    }
+
     @Override
     public Stored<Channel.Event> get(UUID id)
             throws DeletedException,
             SQLException {
-        final PreparedStatement stmt = connection.prepareStatement("SELECT version,time,type FROM Event WHERE id = ?");
-        stmt.setString(1, id.toString());
-        final ResultSet rs = stmt.executeQuery();
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final Channel.Event.Type type =
-                    Channel.Event.Type.fromInteger(rs.getInt("type"));
-            final Instant time =
-                    Instant.parse(rs.getString("time"));
-
-            final Statement mstatement = connection.createStatement();
-            switch(type) {
-                case message:
-                    final PreparedStatement stmtb = connection.prepareStatement("SELECT sender,content FROM Message WHERE id = ?");
-                    stmtb.setString(1, id.toString());
-                    final ResultSet mrs = stmtb.executeQuery();
-                    mrs.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createMessageEvent(time,mrs.getString("sender"),mrs.getString("content")),
-                            id,
-                            version);
-                case join:
-                    final PreparedStatement stmtc = connection.prepareStatement("SELECT sender FROM Joined WHERE id = ?");
-                    stmtc.setString(1, id.toString());
-                    final ResultSet ars = stmtc.executeQuery();
-                    ars.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createJoinEvent(time,ars.getString("sender")),
-                            id,
-                            version);
+        return connections.read(eventQuery + "WHERE Event.id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next()) {
+                    return readEvent(rs);
+                }
+            }
+            throw new DeletedException();
+        });
+    }
+
+    /**
+     * Get the current version UUID for the specified event.
+     * @param id UUID for the event.
+     */
+    @Override
+    public UUID getCurrentVersion(UUID id)
+            throws DeletedException,
+            SQLException {
+        return connections.read("SELECT version FROM Event WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next())
+                    return format.getUUID(rs, "version");
             }
+            throw new DeletedException();
+        });
+    }
+
+    @Override
+    public Map<UUID,Stored<Channel.Event>> getAll(Collection<UUID> ids)
+            throws SQLException {
+        final Map<UUID,Stored<Channel.Event>> events = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(ids)) {
+            connections.read(eventQuery + "WHERE Event.id IN " + Batch.in(chunk), stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        final Stored<Channel.Event> event = readEvent(rs);
+                        events.put(event.identity, event);
+                    }
+                }
+                return events;
+            });
         }
-        throw new DeletedException();
+        return events;
+    }
+
+    /**
+     * Get all the events of many channels at once.
+     *
+     * @return The events of each channel, with the most recent one
+     *         at the head. Channels without events are left out.
+     */
+    @Override
+    public Map<UUID,List<Stored<Channel.Event>>> getChannelEvents(Collection<UUID> channels)
+            throws SQLException {
+        final Map<UUID,List.Builder<Stored<Channel.Event>>> events = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(channels)) {
+            connections.read(eventQuery + "WHERE Event.channel IN " + Batch.in(chunk) + " ORDER BY Event.seq ASC", stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        final Stored<Channel.Event> event = readEvent(rs);
+                        events.computeIfAbsent(event.value.channel, c -> List.builder())
+                              .accept(event);
+                    }
+                }
+                return events;
+            });
+        }
+        final Map<UUID,List<Stored<Channel.Event>>> result = new HashMap<>();
+        events.forEach((channel, builder) -> result.put(channel, builder.getList()));
+        return result;
+    }
+
+    /**
+     * Get all the events of a channel, in the order they were posted.
+     *
+     * The whole history is read by one streamed query, instead of
+     * one get() per event.
+     *
+     * @param channel The identity of the channel.
+     * @return The events, with the most recent one at the head.
+     */
+    @Override
+    public List<Stored<Channel.Event>> getChannelEvents(UUID channel)
+            throws SQLException {
+        return getChannelEventsAfter(channel, 0).first;
     }
-}
 
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelEventsAfter(UUID channel, long after)
+            throws SQLException {
+        return connections.read(eventQuery + "WHERE Event.channel = ? AND Event.seq > ? ORDER BY Event.seq ASC", stmt -> {
+            format.setUUID(stmt, 1, channel);
+            stmt.setLong(2, after);
+            final List.Builder<Stored<Channel.Event>> events = List.builder();
+            Maybe<Long> newest = Maybe.nothing();
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next()) {
+                    newest = Maybe.just(rs.getLong("ordinal"));
+                    events.accept(readEvent(rs));
+                }
+            }
+            return Pair.pair(events.getList(), newest);
+        });
+    }
 
- 
+    @Override
+    public int countChannelEvents(UUID channel)
+            throws SQLException {
+        return connections.read("SELECT count(*) FROM Event WHERE channel = ?", stmt -> {
+            format.setUUID(stmt, 1, channel);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        });
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> getOldestEvents(UUID channel, int limit)
+            throws SQLException {
+        return connections.read(eventQuery + "WHERE Event.channel = ? ORDER BY Event.seq ASC LIMIT ?", stmt -> {
+            format.setUUID(stmt, 1, channel);
+            stmt.setInt(2, limit);
+            final List.Builder<Stored<Channel.Event>> events = List.builder();
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next())
+                    events.accept(readEvent(rs));
+            }
+            return events.getList();
+        });
+    }
+
+    /**
+     * Get a page of the events of a channel, newest first.
+     *
+     * Pages are keyed on the order of the events, so fetching an
+     * old page costs the same as fetching the newest one.
+     *
+     * @param channel The identity of the channel.
+     * @param before  Only return events older than this cursor,
+     *                or the newest events if nothing.
+     * @param limit   The maximal number of events to return.
+     * @return The events, with the most recent one at the head, and
+     *         the cursor for the next older page, if there is one.
+     */
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelPage(UUID channel, Maybe<Long> before, int limit)
+            throws SQLException {
+        return connections.read(eventQuery + "WHERE Event.channel = ? AND Event.seq < ? ORDER BY Event.seq DESC LIMIT ?", stmt -> {
+            format.setUUID(stmt, 1, channel);
+            stmt.setLong(2, before.defaultValue(Long.MAX_VALUE));
+            // Ask for one extra row to know if there is an older page.
+            stmt.setInt(3, limit + 1);
+            final List.Builder<Stored<Channel.Event>> events = List.builder();
+            Maybe<Long> older = Maybe.nothing();
+            long last = 0;
+            int count = 0;
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next()) {
+                    if(count == limit) {
+                        older = Maybe.just(last);
+                        break;
+                    }
+                    last = rs.getLong("ordinal");
+                    events.accept(readEvent(rs));
+                    ++count;
+                }
+            }
+            return Pair.pair(events.getList().reverse(), older);
+        });
+    }
+
+    /**
+     * Search the messages of some channels through the full-text
+     * index. Results are ranked by bm25, and each chunk of channels
+     * is asked for enough results to fill the page before they are
+     * merged.
+     */
+    @Override
+    public Search.Page search(Collection<UUID> channels, String query,
+                              int offset, int limit)
+            throws SQLException {
+        final java.util.List<String> terms = Search.terms(query);
+        final ArrayList<Pair<Double,Search.Hit>> ranked = new ArrayList<>();
+        if(!terms.isEmpty()) {
+            final String match = Search.match(terms);
+            for(UUID[] chunk : Batch.chunks(channels)) {
+                connections.read(searchQuery + Batch.in(chunk) + " ORDER BY score LIMIT ?", stmt -> {
+                    stmt.setString(1, match);
+                    for(int i = 0; i < chunk.length; ++i)
+                        format.setUUID(stmt, i + 2, chunk[i]);
+                    stmt.setInt(chunk.length + 2, offset + limit + 1);
+                    try (final ResultSet rs = stmt.executeQuery()) {
+                        while(rs.next()) {
+                            final double score = rs.getDouble("score");
+                            ranked.add(Pair.pair(score,
+                                new Search.Hit(readEvent(rs), rs.getString("snippet"))));
+                        }
+                    }
+                    return ranked;
+                });
+            }
+        }
+        ranked.sort(Comparator.comparing(hit -> hit.first));
+        final ArrayList<Search.Hit> hits = new ArrayList<>();
+        ranked.forEach(hit -> hits.add(hit.second));
+        return Search.page(hits, offset, limit);
+    }
+
+    /**
+     * Decode the current row of a result set produced by eventQuery
+     * or searchQuery.
+     */
+    private Stored<Channel.Event> readEvent(ResultSet rs)
+            throws SQLException {
+        final UUID id = format.getUUID(rs, "id");
+        final UUID version = format.getUUID(rs, "version");
+        final UUID channel = format.getUUID(rs, "channel");
+        final Channel.Event.Type type =
+                Channel.Event.Type.fromInteger(rs.getInt("type"));
+        final Instant time =
+                format.getInstant(rs, "time");
+        switch(type) {
+            case message:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createMessageEvent(channel,time,rs.getString("msender"),rs.getString("content")),
+                        id,
+                        version);
+            case join:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createJoinEvent(channel,time,rs.getString("jsender")),
+                        id,
+                        version);
+        }
+        throw new IllegalArgumentException("Invalid Channel.Event.Type: " + type);
+    }
+}
@@ -0,0 +1,99 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A storage of events, which can read the events of a channel in
+ * the order they were posted.
+ */
+public interface EventStore extends Storage<Channel.Event,SQLException> {
+
+    /**
+     * Get the current version UUID for the specified event.
+     */
+    public UUID getCurrentVersion(UUID id) throws DeletedException, SQLException;
+
+    /**
+     * Get all the events of a channel.
+     *
+     * @return The events, with the most recent one at the head.
+     */
+    public List<Stored<Channel.Event>> getChannelEvents(UUID channel)
+        throws SQLException;
+
+    /**
+     * Get the events of a channel posted after a cursor.
+     *
+     * @param after Only return events newer than this cursor.
+     * @return The events, with the most recent one at the head, and
+     *         the cursor of the most recent one, if there are any.
+     */
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelEventsAfter(UUID channel, long after)
+            throws SQLException;
+
+    /**
+     * Get all the events of many channels at once.
+     *
+     * @return The events of each channel, with the most recent one
+     *         at the head. Channels without events are left out.
+     */
+    public Map<UUID,List<Stored<Channel.Event>>> getChannelEvents(Collection<UUID> channels)
+        throws SQLException;
+
+    /**
+     * Get a page of the events of a channel, newest first.
+     *
+     * @param channel The identity of the channel.
+     * @param before  Only return events older than this cursor,
+     *                or the newest events if nothing.
+     * @param limit   The maximal number of events to return.
+     * @return The events, with the most recent one at the head, and
+     *         the cursor for the next older page, if there is one.
+     */
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelPage(UUID channel, Maybe<Long> before, int limit)
+            throws SQLException;
+
+    /**
+     * Count the events of a channel.
+     */
+    public int countChannelEvents(UUID channel)
+        throws SQLException;
+
+    /**
+     * Get the oldest events of a channel.
+     *
+     * @param limit The maximal number of events to return.
+     * @return The events, with the most recent one at the head.
+     */
+    public List<Stored<Channel.Event>> getOldestEvents(UUID channel, int limit)
+        throws SQLException;
+
+    /**
+     * Search the messages of some channels.
+     *
+     * The default reads every event of the channels, and should be
+     * replaced by storages which keep an index.
+     *
+     * @param channels The channels to search.
+     * @param query    The words which the messages must contain.
+     * @param offset   The number of results to skip.
+     * @param limit    The maximal number of results to return.
+     */
+    public default Search.Page search(Collection<UUID> channels, String query,
+                                      int offset, int limit)
+        throws SQLException {
+        return Search.scan(getChannelEvents(channels).values(), query, offset, limit);
+    }
+}
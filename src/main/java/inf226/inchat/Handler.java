@@ -3,6 +3,9 @@ package inf226.inchat;
 import java.io.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import java.io.IOException;
@@ -13,14 +16,19 @@ import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.lang.IllegalArgumentException;
 import java.time.format.DateTimeFormatter;
 import java.time.ZoneId;
+import java.time.Duration;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 
@@ -44,6 +52,14 @@ public class Handler extends AbstractHandler
   private final File script = new File("script.js");
 
   private static InChat inchat;
+  // Signed session cookies, if they are turned on.
+  private static Maybe<SessionTokens> tokens = Maybe.nothing();
+
+  // Number of events shown when a channel is opened, and per older page.
+  private static final int pageSize = 50;
+  // How long a subscription waits for a new version, in milliseconds.
+  private static final Duration subscribeTimeout =
+      Duration.ofMillis(Long.getLong("inchat.subscribe.timeout", 30000));
   
   private final DateTimeFormatter formatter =
                 DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm (z)")
@@ -127,8 +143,7 @@ public class Handler extends AbstractHandler
         final Maybe<Cookie> sessionCookie
             = new Maybe<Cookie>(cookies.get("session"));
         final Maybe<Stored<Session>> cookieSession
-            =  sessionCookie.bind(c -> 
-                    inchat.restoreSession(UUID.fromString(c.getValue())));
+            =  sessionCookie.bind(c -> restoreSession(c.getValue()));
         cookieSession.forEach(sessionBuilder);
         
     }
@@ -139,7 +154,8 @@ public class Handler extends AbstractHandler
         final Stored<Account> account = session.value.account;
         // User is now logged in with a valid sesion.
         // We set the session cookie to keep the user logged in:
-        response.addCookie(new Cookie("session",session.identity.toString()));
+        response.addCookie(new Cookie("session",
+            tokens.map(t -> t.issue(session)).defaultValue(session.identity.toString())));
         
         final PrintWriter out = response.getWriter();
         // Handle a logged in request.
@@ -149,10 +165,11 @@ public class Handler extends AbstractHandler
                     = target.substring(("/channel/").length());
                 
                 // Resolve channel within the current session
-                Stored<Channel> channel =
+                final UUID channelId =
                     Util.lookup(account.value.channels,alias).get();
                 if(request.getMethod().equals("POST")) {
                     // This is a request to post something in the channel.
+                    Stored<Channel> channel = inchat.getChannel(channelId).get();
                     
                     if(request.getParameter("newmessage") != null) {
                         String message = (new Maybe<String>
@@ -175,10 +192,27 @@ public class Handler extends AbstractHandler
                         channel = inchat.editMessage(channel, event, message);
                     }
                     
+                    if(request.getParameter("setretention") != null) {
+                        final Retention retention;
+                        try {
+                            retention = parseRetention(request.getParameter("maxdays"),
+                                                       request.getParameter("maxevents")).get();
+                        } catch (Maybe.NothingException e) {
+                            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                            out.println("Invalid retention policy");
+                            baseRequest.setHandled(true);
+                            return ;
+                        }
+                        channel = inchat.setRetention(account, channel, retention);
+                    }
+
                     // TODO: Handle requests to change user roles on channel.
                     
                 }
                 
+                final Channel.Page page =
+                    inchat.getChannelPage(channelId, Maybe.nothing(), pageSize).get();
+                
                 out.println("<!DOCTYPE html>");
                 out.println("<html lang=\"en-GB\">");
                 printStandardHead(out, "inChat: " + alias);
@@ -186,7 +220,7 @@ public class Handler extends AbstractHandler
                 printStandardTop(out,  "inChat: " + alias);
                 out.println("<div class=\"main\">");
                 printChannelList(out, account.value, alias);
-                printChannel(out, channel, alias);
+                printChannel(out, page, alias);
                 out.println("</div>");
                 out.println("</body>");
                 out.println("</html>");
@@ -195,6 +229,62 @@ public class Handler extends AbstractHandler
                 return ;
             }
             
+            if(target.startsWith("/history/")) {
+                // Older events of a channel, for the "load older" button.
+                final String alias
+                    = target.substring(("/history/").length());
+                final UUID channelId =
+                    Util.lookup(account.value.channels,alias).get();
+                final Maybe<Long> before;
+                try {
+                    before = Maybe.just(Long.parseLong(Maybe.just(request.getParameter("before")).get()));
+                } catch (NumberFormatException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.println("Invalid cursor");
+                    baseRequest.setHandled(true);
+                    return ;
+                }
+                final Channel.Page page =
+                    inchat.getChannelPage(channelId, before, pageSize).get();
+                out.println(page.older.map(c -> c.toString()).defaultValue(""));
+                page.channel.value
+                     .events
+                     .reverse()
+                     .forEach(printEvent(out,page.channel));
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                return ;
+            }
+            
+            if(target.equals("/search")) {
+                final String query = Maybe.just(request.getParameter("q")).defaultValue("");
+                final int offset;
+                try {
+                    offset = Integer.parseInt(Maybe.just(request.getParameter("offset")).defaultValue("0"));
+                } catch (NumberFormatException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.println("Invalid offset");
+                    baseRequest.setHandled(true);
+                    return ;
+                }
+                final Search.Page results =
+                    inchat.search(account, query, Math.max(0, offset), pageSize).get();
+                out.println("<!DOCTYPE html>");
+                out.println("<html lang=\"en-GB\">");
+                printStandardHead(out, "inChat: Search");
+                out.println("<body>");
+                printStandardTop(out, "inChat: Search");
+                out.println("<div class=\"main\">");
+                printChannelList(out, account.value, "");
+                printSearchResults(out, account.value, query, results);
+                out.println("</div>");
+                out.println("</body>");
+                out.println("</html>");
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                return ;
+            }
+
             if(target.startsWith("/create")) {
                 out.println("<!DOCTYPE html>");
                 out.println("<html lang=\"en-GB\">");
@@ -297,6 +387,7 @@ public class Handler extends AbstractHandler
             
             if(target.startsWith("/logout")) {
                 inchat.logout(session);
+                revoke(session);
                 response.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
                 response.setHeader("Location","/");
                 baseRequest.setHandled(true);
@@ -309,11 +400,7 @@ public class Handler extends AbstractHandler
                     UUID.fromString(Maybe.just(request.getParameter("version")).get());
                 UUID identity =
                     UUID.fromString(target.substring(("/subscribe/").length()));
-                Stored<Channel> channel = inchat.waitNextChannelVersion(identity,version).get();
-                System.err.println("Got a new version.");
-                out.println(channel.version);
-                printChannelEvents(out,channel);
-                response.setStatus(HttpServletResponse.SC_OK);
+                subscribe(request, identity, version);
                 baseRequest.setHandled(true);
                 return ;
             }
@@ -408,6 +495,9 @@ public class Handler extends AbstractHandler
         out.println("<a class=\"action\" href=\"/create\">Create a channel!</a>");
         out.println("<a class=\"action\" href=\"/joinChannel\">Join a channel!</a>");
         out.println("<a class=\"action\" href=\"/logout\">Logout</a>");
+        out.println("<form class=\"action\" action=\"/search\" method=\"get\">");
+        out.println("<input type=\"search\" name=\"q\" placeholder=\"Search messages\">");
+        out.println("</form>");
         out.println("</div>");
     }
 
@@ -429,10 +519,16 @@ public class Handler extends AbstractHandler
     * Render a channel as HTML
     **/
     private void printChannel(PrintWriter out,
-                              Stored<Channel> channel,
+                              Channel.Page page,
                               String alias) {
+        final Stored<Channel> channel = page.channel;
         
         out.println("<main id=\"channel\" role=\"main\" class=\"channel\">");
+        page.older.forEach(before -> {
+            out.println("<div id=\"olderevents\">");
+            out.println("<button id=\"loadolder\" data-alias=\"" + alias + "\" data-before=\"" + before + "\">Load older messages</button>");
+            out.println("</div>");
+        });
         printChannelEvents(out,channel);
         out.println("<script src=\"/script.js\"></script>");
         out.println("<script>subscribe(\"" + channel.identity +"\",\"" + channel.version + "\");</script>");
@@ -466,9 +562,133 @@ public class Handler extends AbstractHandler
         out.println("</select>");
         out.println("</form>");
 
+        out.println("<h4>Keep messages</h4><form action=\"/channel/" + alias + "\" method=\"post\">");
+        out.println("<input style=\"width: 8em;\" type=\"number\" min=\"1\" placeholder=\"Days\" name=\"maxdays\">");
+        out.println("<input style=\"width: 8em;\" type=\"number\" min=\"1\" placeholder=\"Messages\" name=\"maxevents\">");
+        out.println("<input type=\"submit\" name=\"setretention\" value=\"Set!\">");
+        out.println("</form>");
+
         out.println("</aside>");
     }
     
+    /**
+     * Render a page of search results as HTML.
+     */
+    private void printSearchResults(PrintWriter out, Account account,
+                                    String query, Search.Page results) {
+        final Map<UUID,String> aliases = new TreeMap<UUID,String>();
+        account.channels.forEach(entry -> aliases.put(entry.second, entry.first));
+        out.println("<main class=\"channel\">");
+        out.println("<h4>Messages matching \"" + Search.escape(query) + "\"</h4>");
+        results.hits.forEach(hit -> {
+            final String alias = aliases.get(hit.event.value.channel);
+            out.println("<div class=\"entry\" id=\"event-" + hit.event.identity + "\">");
+            out.println("    <div class=\"user\">" + Search.escape(hit.event.value.sender) + "</div>");
+            out.println("    <div class=\"text\">" + Search.highlight(hit.snippet, query) + "</div>");
+            out.println("    <div class=\"messagecontrols\"><a href=\"/channel/" + Search.escape(alias) + "\">"
+                        + Search.escape(alias) + "</a> "
+                        + formatter.format(hit.event.value.time) + "</div>");
+            out.println("</div>");
+        });
+        results.next.forEach(next ->
+            out.println("<p><a href=\"/search?q=" + URLEncoder.encode(query, StandardCharsets.UTF_8)
+                        + "&offset=" + next + "\">More results</a></p>"));
+        out.println("</main>");
+    }
+
+    /**
+     * Answer a subscription once the channel has a new version,
+     * without holding a thread while waiting. If there is no new
+     * version within the idle timeout, the answer is 204 No Content
+     * and the client subscribes again.
+     */
+    private void subscribe(HttpServletRequest request, UUID identity, UUID version) {
+        final AsyncContext async = request.startAsync();
+        final CompletableFuture<Stored<Channel>> next =
+            inchat.nextChannelVersion(identity, version, subscribeTimeout);
+        // Whichever of the answer and the listeners comes first owns
+        // the context; the other leaves it alone.
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        // The future times out first; this is in case it does not.
+        async.setTimeout(subscribeTimeout.toMillis() + 5000);
+        async.addListener(new AsyncListener() {
+                public void onComplete(AsyncEvent event) {
+                    finished.set(true);
+                    next.cancel(false);
+                }
+                public void onTimeout(AsyncEvent event) {
+                    if(finished.compareAndSet(false, true)) {
+                        ((HttpServletResponse)async.getResponse())
+                            .setStatus(HttpServletResponse.SC_NO_CONTENT);
+                        async.complete();
+                    }
+                    next.cancel(false);
+                }
+                public void onError(AsyncEvent event) {
+                    finished.set(true);
+                    next.cancel(false);
+                }
+                public void onStartAsync(AsyncEvent event) {}
+            });
+        // Answer on a Jetty thread, not on the thread which committed.
+        next.whenComplete((channel, e) -> {
+            if(finished.compareAndSet(false, true))
+                answer(async, identity, version, channel, e);
+        });
+    }
+
+    /**
+     * Answer a subscription with the new version of the channel, or
+     * with the reason there is none.
+     */
+    private void answer(AsyncContext async, UUID identity, UUID version,
+                        Stored<Channel> channel, Throwable e) {
+        async.start(() -> {
+            final HttpServletResponse response = (HttpServletResponse)async.getResponse();
+            try {
+                if(channel != null) {
+                    System.err.println("Got a new version.");
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    printUpdate(response.getWriter(), identity, version, channel);
+                } else if(e instanceof TimeoutException || e instanceof CancellationException) {
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                }
+            } catch (IOException | Maybe.NothingException er) {
+                System.err.println("While answering a subscription to " + identity + ":\n" + er);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    /**
+     * Render the new version of a channel for a subscriber: the
+     * version, then only what changed if that is known, otherwise
+     * the newest page of the channel.
+     */
+    private void printUpdate(PrintWriter out, UUID identity, UUID version,
+                             Stored<Channel> channel) throws Maybe.NothingException {
+        try {
+            // Send only what changed since the subscriber's version.
+            final Channel.Delta delta =
+                inchat.getChannelDelta(identity,version).get();
+            out.println(delta.version);
+            out.println("delta");
+            delta.deleted.forEach(id ->
+                out.println("<div class=\"deleted\" data-event=\"" + id + "\"></div>"));
+            delta.events.forEach(printEvent(out,channel));
+        } catch (Maybe.NothingException e) {
+            // The changes are not known, send the newest page.
+            final Channel.Page page =
+                inchat.getChannelPage(identity, Maybe.nothing(), pageSize).get();
+            out.println(page.channel.version);
+            out.println("full");
+            printChannelEvents(out,page.channel);
+        }
+    }
+
     /**
      * Render the events of a channel as HTML.
      */
@@ -489,7 +709,7 @@ public class Handler extends AbstractHandler
         return (e -> {
             switch(e.value.type) {
                 case message:
-                    out.println("<div class=\"entry\">");
+                    out.println("<div class=\"entry\" id=\"event-" + e.identity + "\">");
                     out.println("    <div class=\"user\">" + e.value.sender + "</div>");
                     out.println("    <div class=\"text\">" + e.value.message);
                     out.println("    </div>");
@@ -508,12 +728,72 @@ public class Handler extends AbstractHandler
                     out.println("</div>");
                     return;
                 case join:
-                    out.println("<p>" + formatter.format(e.value.time) + " " + e.value.sender + " has joined!</p>");
+                    out.println("<p id=\"event-" + e.identity + "\">" + formatter.format(e.value.time) + " " + e.value.sender + " has joined!</p>");
                     return;
             }
         });
     }
 
+  /**
+   * Read a retention policy from a form, where empty fields
+   * mean no limit.
+   *
+   * @return The policy, or nothing if a field is not a positive
+   *         number.
+   */
+  private static Maybe<Retention> parseRetention(String maxDays, String maxEvents) {
+      try {
+          final Maybe<Long> days = Maybe.just(maxDays)
+              .bind(field -> field.isBlank() ? Maybe.nothing()
+                                             : Maybe.just(Long.parseLong(field.trim())));
+          final Maybe<Integer> events = Maybe.just(maxEvents)
+              .bind(field -> field.isBlank() ? Maybe.nothing()
+                                             : Maybe.just(Integer.parseInt(field.trim())));
+          // A limit of zero would remove every event of the channel.
+          if(days.map(d -> d <= 0).defaultValue(false)
+             || events.map(n -> n <= 0).defaultValue(false))
+              return Maybe.nothing();
+          return Maybe.just(new Retention(days.map(Duration::ofDays), events));
+      } catch (NumberFormatException | ArithmeticException e) {
+          return Maybe.nothing();
+      }
+  }
+
+  /**
+   * Restore the session of a session cookie, which holds a signed
+   * token if tokens are turned on, and the identity of the session
+   * otherwise. A fresh token is trusted on its own; the session of
+   * an older one is looked up, and the response issues a new token.
+   */
+  private static Maybe<Stored<Session>> restoreSession(String cookie) {
+      if(!tokens.isNothing()) {
+          final Instant now = Instant.now();
+          return tokens.bind(t -> t.verify(cookie, now).bind(token ->
+              t.fresh(token, now) ? inchat.restoreSession(token)
+                                  : inchat.restoreSession(token.session)));
+      }
+      try {
+          return inchat.restoreSession(UUID.fromString(cookie));
+      } catch (IllegalArgumentException e) {
+          return Maybe.nothing();
+      }
+  }
+
+  /**
+   * Revoke the tokens of a session which has logged out, if tokens
+   * are turned on.
+   */
+  private static void revoke(Stored<Session> session) {
+      try {
+          if(!tokens.isNothing())
+              tokens.get().revoke(session);
+      } catch (Maybe.NothingException e) {
+          // Tokens are off.
+      } catch (SQLException e) {
+          System.err.println("When revoking the tokens of a session:" + e);
+      }
+  }
+
   /**
    * Load all the cookies into a map for easy retrieval.
    */
@@ -551,20 +831,37 @@ public class Handler extends AbstractHandler
   
     final String path = "production.db";
     final String dburl = "jdbc:sqlite:" + path;
-    final Connection connection = DriverManager.getConnection(dburl);
+    final ConnectionManager connections
+        = new ConnectionManager(dburl, Runtime.getRuntime().availableProcessors(), 64);
     try{
-        connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
         UserStorage userStore
-            = new UserStorage(connection);
+            = new UserStorage(connections);
+        // Events are kept in append-only logs instead of in the
+        // database if inchat.eventlog names a directory for them.
+        final String eventLog = System.getProperty("inchat.eventlog");
         ChannelStorage channelStore
-            = new ChannelStorage(connection);
+            = eventLog == null
+              ? new ChannelStorage(connections)
+              : new ChannelStorage(connections,
+                    new LogEventStorage(connections, java.nio.file.Paths.get(eventLog)));
+        // Accounts resolve their user on every request.
         AccountStorage accountStore
-            = new AccountStorage(connection,userStore,channelStore);
-        SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
+            = new AccountStorage(connections,
+                  CachingStorage.configured("user", userStore,
+                                            userStore::getCurrentVersion, 1024));
+        // Sessions are restored on every request.
+        SessionStore sessionStore
+            = SessionCache.configured(new SessionStorage(connections,accountStore),
+                                      accountStore, 4096);
+        Migrations.migrate(connections);
         inchat = new InChat(userStore,channelStore,
-                            accountStore,sessionStore,connection);
-        connection.setAutoCommit(false);
+                            accountStore,sessionStore,connections);
+        // Sign session cookies instead of looking them up, if asked.
+        if(Boolean.getBoolean("inchat.session.tokens"))
+            tokens = Maybe.just(SessionTokens.configured(new TokenRevocationStorage(connections)));
+        // Remove the events which channel retention policies expire.
+        Compactor.configured(connections, channelStore, channelStore.eventStore).start();
+        SessionSweeper.configured(sessionStore).start();
         try {
             final Stored<Session> admin = inchat.register("admin","pa$$w0rd").get();
             final Stored<Channel> debug = inchat.createChannel(admin.value.account, "debug").get();
@@ -575,10 +872,15 @@ public class Handler extends AbstractHandler
                     chan.get().value.events.head().forEach( e -> {
                         try {
                         if(e.value.message != null) {
-                            ResultSet rs = connection.createStatement().executeQuery(e.value.message);
-                            if (rs.next()) {
-                                inchat.postMessage(admin.value.account,chan.get(),rs.getString(1)).forEach(chan);
-                            }
+                            // On a read-only reader, so the query cannot write.
+                            final Maybe<String> answer = connections.read(e.value.message, stmt -> {
+                                try (final ResultSet rs = stmt.executeQuery()) {
+                                    return rs.next() ? Maybe.just(rs.getString(1))
+                                                     : Maybe.<String>nothing();
+                                }
+                            });
+                            answer.forEach(a ->
+                                inchat.postMessage(admin.value.account,chan.get(),a).forEach(chan));
                         }
                         } catch(Exception re) {}});
                 }
@@ -593,6 +895,6 @@ public class Handler extends AbstractHandler
     } catch (SQLException e) {
        System.err.println("Inchat failed: " + e);
     }
-    connection.close();
+    connections.close();
   }
 }
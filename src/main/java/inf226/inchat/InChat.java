@@ -1,18 +1,28 @@
 package inf226.inchat;
 
 import inf226.inchat.Account.Role;
+import inf226.storage.CachingStorage;
 import inf226.storage.DeletedException;
+import inf226.storage.GroupCommit;
+import inf226.storage.RetryPolicy;
+import inf226.storage.Storage;
 import inf226.storage.Stored;
+import inf226.storage.Transactions;
+import inf226.storage.UnitOfWork;
+import inf226.storage.UpdatedException;
 import inf226.util.Maybe;
 import inf226.util.Maybe.NothingException;
 import inf226.util.Util;
 import inf226.util.immutable.List;
 
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 /**
@@ -24,26 +34,35 @@ import java.util.function.Consumer;
  **/
 
 public class InChat {
-    private final Connection connection;
-    private final UserStorage userStore;
-    private final ChannelStorage channelStore;
-    private final EventStorage eventStore;
-    private final AccountStorage accountStore;
-    private final SessionStorage sessionStore;
+    private final Transactions connections;
+    private final UserStore userStore;
+    private final ChannelStore channelStore;
+    private final Storage<Channel,SQLException> channels;
+    private final Storage<Channel.Event,SQLException> eventStore;
+    private final AccountStore accountStore;
+    private final SessionStore sessionStore;
+    private final GroupCommit writes;
     private final Map<UUID, List<Consumer<Channel.Event>>> eventCallbacks
             = new TreeMap<UUID, List<Consumer<Channel.Event>>>();
+    /* The password checked when logging in with an unknown name.
+     */
+    private static final Password decoy =
+            Password.createPassword(UUID.randomUUID().toString());
 
-    public InChat(UserStorage userStore,
-                  ChannelStorage channelStore,
-                  AccountStorage accountStore,
-                  SessionStorage sessionStore,
-                  Connection connection) {
+    public InChat(UserStore userStore,
+                  ChannelStore channelStore,
+                  AccountStore accountStore,
+                  SessionStore sessionStore,
+                  Transactions connections) {
         this.userStore = userStore;
         this.channelStore = channelStore;
-        this.eventStore = channelStore.eventStore;
+        this.channels = CachingStorage.configured("channel", channelStore,
+                                                  channelStore::getCurrentVersion, 256);
+        this.eventStore = channelStore.events();
         this.accountStore = accountStore;
         this.sessionStore = sessionStore;
-        this.connection = connection;
+        this.connections = connections;
+        this.writes = new GroupCommit(connections, 64, 2);
         this.loginHandler = new LoginHandler();
     }
 
@@ -54,7 +73,7 @@ public class InChat {
      */
     @FunctionalInterface
     private interface Operation<T, E extends Throwable> {
-        void run(final Consumer<T> result) throws E, DeletedException;
+        void run(final Consumer<T> result) throws E, UpdatedException, DeletedException;
     }
 
     /**
@@ -62,24 +81,19 @@ public class InChat {
      * Wrapper method for commit() and rollback().
      */
     private <T> Maybe<T> atomic(Operation<T, SQLException> op) {
-        synchronized (connection) {
-            try {
-                Maybe.Builder<T> result = Maybe.builder();
-                op.run(result);
-                connection.commit();
-                return result.getMaybe();
-            } catch (SQLException e) {
-                System.err.println(e.toString());
-            } catch (DeletedException e) {
-                System.err.println(e.toString());
-            }
-            try {
-                connection.rollback();
-            } catch (SQLException e) {
-                System.err.println(e.toString());
-            }
-            return Maybe.nothing();
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            Maybe.Builder<T> result = Maybe.builder();
+            op.run(result);
+            transaction.commit();
+            return result.getMaybe();
+        } catch (SQLException e) {
+            System.err.println(e.toString());
+        } catch (UpdatedException e) {
+            System.err.println(e.toString());
+        } catch (DeletedException e) {
+            System.err.println(e.toString());
         }
+        return Maybe.nothing();
     }
 
     /**
@@ -88,16 +102,28 @@ public class InChat {
      */
     public boolean login(String username, String password) {
         try {
-            final Stored<Account> account = accountStore.lookup(username);
-            if (!loginHandler.login(account.value, password)) {
+            // Only the credentials are read until the password checks out.
+            final Maybe<Credentials> found = userStore.exists(username)
+                ? accountStore.credentials(username)
+                : Maybe.nothing();
+            if(found.isNothing()) {
+                // An unknown name takes as long as a wrong password,
+                // so that the time taken does not tell which exist.
+                decoy.check(password);
+                return Maybe.nothing();
+            }
+            final Credentials credentials = found.get();
+            if (!loginHandler.login(credentials, password)) {
                 return Maybe.nothing();
             }
+            final Stored<Account> account = accountStore.get(credentials.account);
             final Stored<Session> session =
                     sessionStore.save(new Session(account, Instant.now().plusSeconds(60 * 60 * 24)));
             return Maybe.just(session);
 
         } catch (SQLException e) {
         } catch (DeletedException e) {
+        } catch (NothingException e) {
         }
         return Maybe.nothing();
     }
@@ -112,14 +138,17 @@ public class InChat {
               return Maybe.nothing();
           }
           try {
-              final Stored<User> user =
-                  userStore.save(User.create(username));
-              final Stored<Account> account =
-                  accountStore.save(Account.create(user, password));
-              final Stored<Session> session =
-                  sessionStore.save(new Session(account, Instant.now().plusSeconds(60*60*24)));
-              return Maybe.just(session);
-          } catch (SQLException e) {
+              // The user, account and session are committed together.
+              final UnitOfWork work = new UnitOfWork(connections);
+              final UnitOfWork.Pending<Stored<User>> user =
+                  work.save(userStore, User.create(username));
+              final UnitOfWork.Pending<Stored<Account>> account =
+                  work.saveDeferred(accountStore, () -> Account.create(user.get(), password));
+              final UnitOfWork.Pending<Stored<Session>> session =
+                  work.saveDeferred(sessionStore, () -> new Session(account.get(), Instant.now().plusSeconds(60*60*24)));
+              work.commit();
+              return Maybe.just(session.get());
+          } catch (SQLException | UpdatedException | DeletedException e) {
          return Maybe.nothing();
          }
     }
@@ -129,7 +158,29 @@ public class InChat {
      */
     public Maybe<Stored<Session>> restoreSession(UUID sessionId) {
         try {
-            return Maybe.just(sessionStore.get(sessionId));
+            final Stored<Session> session = sessionStore.get(sessionId);
+            // Expired sessions stay until they are swept.
+            if(!session.value.expiry.isAfter(Instant.now()))
+                return Maybe.nothing();
+            return Maybe.just(session);
+        } catch (SQLException e) {
+            System.err.println("When restoring session:" + e);
+            return Maybe.nothing();
+        } catch (DeletedException e) {
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Restore a session from a fresh, verified token. The session is
+     * taken from the token, and only the account is read, for the
+     * pages to show.
+     */
+    public Maybe<Stored<Session>> restoreSession(SessionTokens.Token token) {
+        try {
+            final Stored<Account> account = accountStore.get(token.account);
+            return Maybe.just(new Stored<Session>(new Session(account, token.expiry),
+                                                  token.session, token.version));
         } catch (SQLException e) {
             System.err.println("When restoring session:" + e);
             return Maybe.nothing();
@@ -146,6 +197,8 @@ public class InChat {
             Util.deleteSingle(session, sessionStore);
         } catch (SQLException e) {
             System.err.println("When loging out of session:" + e);
+        } catch (UpdatedException e) {
+            System.err.println("When loging out of session:" + e);
         }
     }
 
@@ -167,25 +220,47 @@ public class InChat {
         return Maybe.nothing();
     }
     /**
-     * Join a channel.
+     * Join a channel as a participant.
+     */
+    public Maybe<Stored<Channel>> joinChannel (Stored <Account> account, UUID channelID){
+        return joinChannel(account, Role.Participant, channelID);
+    }
+
+    /**
+     * Join a channel, retrying on conflicts as the standard
+     * RetryPolicy allows.
      */
     public Maybe<Stored<Channel>> joinChannel (Stored <Account> account, Role role,
             UUID channelID){
+        final RetryPolicy.Attempts attempts = RetryPolicy.standard.begin(channelStore.name());
         try {
-            Stored<Channel> channel = channelStore.get(channelID);
-            Util.updateSingle(account,
-                    accountStore,
-                    a -> a.value.joinChannel(channel.value.name, channel, role));
-            Stored<Channel.Event> joinEvent
-                    = channelStore.eventStore.save(
-                    Channel.Event.createJoinEvent(Instant.now(),
-                            account.value.user.value.name.toString()));
-            return Maybe.just(
-                    Util.updateSingle(channel,
-                            channelStore,
-                            c -> c.value.postEvent(joinEvent)));
+            while(true) {
+                // The account, the join event and the channel are
+                // committed together, or redone if one has changed.
+                final Stored<Account> current = accountStore.get(account.identity);
+                final Stored<Channel> channel = channelStore.get(channelID);
+                final UnitOfWork work = new UnitOfWork(connections);
+                work.update(accountStore, current,
+                        a -> a.value.joinChannel(channel.value.name, channel.identity, role));
+                final UnitOfWork.Pending<Stored<Channel.Event>> joinEvent
+                        = work.save(eventStore,
+                            Channel.Event.createJoinEvent(channel.identity, Instant.now(),
+                                    account.value.user.value.name.toString()));
+                final UnitOfWork.Pending<Stored<Channel>> joined
+                        = work.update(channelStore, channel,
+                            c -> c.value.postEvent(joinEvent.get()));
+                try {
+                    work.commit();
+                    return Maybe.just(joined.get());
+                } catch (UpdatedException e) {
+                    // Try again with the new versions.
+                    attempts.conflict(e);
+                }
+            }
         } catch (DeletedException e) {
             // This channel has been deleted.
+        } catch (UpdatedException e) {
+            System.err.println("Gave up joining " + channelID + " after repeated conflicts");
         } catch (SQLException e) {
             System.err.println("When trying to join " + channelID + ":\n" + e);
         }
@@ -213,6 +288,24 @@ public class InChat {
         } catch (DeletedException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } catch (UpdatedException e) {
+            System.err.println("When setting role in " + channel.identity + ":\n" + e);
+        }
+        return channel;
+    }
+
+    /**
+     * Set how long the events of a channel are kept. Only owners
+     * of the channel can do this.
+     */
+    public Stored<Channel> setRetention (Stored<Account> account, Stored<Channel> channel,
+                                         Retention retention) {
+        if(account.value.getRole(channel.value.name).defaultValue(Role.Banned) != Role.Owner)
+            return channel;
+        try {
+            channelStore.setRetention(channel.identity, retention);
+        } catch (SQLException e) {
+            System.err.println("When setting retention of " + channel.identity + ":\n" + e);
         }
         return channel;
     }
@@ -221,18 +314,83 @@ public class InChat {
      */
     public Maybe<Stored<Channel>> postMessage (Stored <Account> account, Stored <Channel> channel,
             String message){
-        return atomic(result -> {
+        try {
+            return Maybe.just(postMessageAsync(account, channel, message).get());
+        } catch (ExecutionException e) {
+            System.err.println("When posting to " + channel.identity + ":\n" + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * Queue a message for posting to a channel. Messages are
+     * committed in batches with other posts.
+     *
+     * @return The channel after the post, once it is committed.
+     */
+    public CompletableFuture<Stored<Channel>> postMessageAsync (Stored <Account> account,
+            Stored <Channel> channel, String message){
+        return writes.submit(() -> {
             Stored<Channel.Event> event
-                    = channelStore.eventStore.save(
+                    = eventStore.save(
                     Channel.Event.createMessageEvent(channel.identity, Instant.now(),
                             account.value.user.value.name, message));
-            result.accept(
-                    Util.updateSingle(channel,
+            return Util.updateSingle(channel,
                             channelStore,
-                            c -> c.value.postEvent(event)));
+                            c -> c.value.postEvent(event));
         });
     }
 
+    /**
+     * Get a channel by its identity.
+     */
+    public Maybe<Stored<Channel>> getChannel (UUID identity){
+        try {
+            return Maybe.just(channels.get(identity));
+        } catch (DeletedException e) {
+            return Maybe.nothing();
+        } catch (SQLException e) {
+            System.err.println("When getting channel " + identity + ":\n" + e);
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Get a channel with a page of its events.
+     *
+     * @param before Cursor of the page to get, or nothing for the
+     *               most recent events.
+     */
+    public Maybe<Channel.Page> getChannelPage (UUID identity, Maybe<Long> before, int limit){
+        try {
+            return Maybe.just(channelStore.getPage(identity, before, limit));
+        } catch (DeletedException e) {
+            return Maybe.nothing();
+        } catch (SQLException e) {
+            System.err.println("When getting page of channel " + identity + ":\n" + e);
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Search the messages of the channels an account has joined.
+     *
+     * @param offset The number of results to skip, for later pages.
+     */
+    public Maybe<Search.Page> search (Stored<Account> account, String query,
+                                      int offset, int limit){
+        final java.util.List<UUID> channels = new java.util.ArrayList<>();
+        account.value.channels.forEach(entry -> channels.add(entry.second));
+        try {
+            return Maybe.just(channelStore.search(channels, query, offset, limit));
+        } catch (SQLException e) {
+            System.err.println("When searching for " + query + ":\n" + e);
+            return Maybe.nothing();
+        }
+    }
+
     /**
      * A blocking call which returns the next state of the channel.
      */
@@ -246,13 +404,43 @@ public class InChat {
         }
     }
 
+    /**
+     * Get a future of the next state of the channel, which fails
+     * with a TimeoutException if the channel does not change within
+     * the timeout.
+     */
+    public CompletableFuture<Stored<Channel>> nextChannelVersion (UUID identity, UUID version,
+                                                                  Duration timeout){
+        return channelStore.nextVersion(identity, version, timeout);
+    }
+
+    /**
+     * Get the changes to a channel since a version.
+     *
+     * @return The changes, or nothing if they are not known and the
+     *         channel must be loaded again.
+     */
+    public Maybe<Channel.Delta> getChannelDelta (UUID identity, UUID version){
+        try {
+            return channelStore.getDelta(identity, version);
+        } catch (SQLException e) {
+            System.err.println("When getting changes to channel " + identity + ":\n" + e);
+            return Maybe.nothing();
+        }
+    }
+
     /**
      * Get an event by its identity.
      */
     public Maybe<Stored<Channel.Event>> getEvent (UUID eventID){
-            return atomic(result ->
-                    result.accept(channelStore.eventStore.get(eventID))
-            );
+            try {
+                return Maybe.just(eventStore.get(eventID));
+            } catch (SQLException e) {
+                System.err.println("When getting event " + eventID + ":\n" + e);
+            } catch (DeletedException e) {
+                // The event has been deleted.
+            }
+            return Maybe.nothing();
         }
 
         /**
@@ -260,8 +448,9 @@ public class InChat {
          */
         public Stored<Channel> deleteEvent (Stored <Channel> channel, Stored <Channel.Event> event){
             return this.<Stored<Channel>>atomic(result -> {
-                Util.deleteSingle(event, channelStore.eventStore);
-                result.accept(channelStore.noChangeUpdate(channel.identity));
+                Util.deleteSingle(event, eventStore);
+                result.accept(channelStore.noChangeUpdate(channel.identity,
+                                  Channel.Change.deleted(event.identity)));
             }).defaultValue(channel);
         }
 
@@ -276,14 +465,17 @@ public class InChat {
             Role role = account.value.getRole(channel.value.name).get();
             if(role.ordinal() >= 3 || (username.equals(event.value.sender) && role.ordinal() > 1)) {
                 Util.updateSingle(event,
-                        channelStore.eventStore,
+                        eventStore,
                         e -> e.value.setMessage(newMessage));
-                return channelStore.noChangeUpdate(channel.identity);
+                return channelStore.noChangeUpdate(channel.identity,
+                                  Channel.Change.edited(event.identity));
             }
         } catch (SQLException er) {
             System.err.println("While deleting event " + event.identity +":\n" + er);
         } catch (DeletedException er) {
             System.err.println("DeletedException");
+        } catch (UpdatedException er) {
+            System.err.println("While editing event " + event.identity +":\n" + er);
         } catch (NothingException e1) {
             // TODO Auto-generated catch block
             System.err.println("NothingExcpetion");
@@ -293,17 +485,11 @@ public class InChat {
         return channel;
     }
 
+    /**
+     * Check if a username is taken, without loading any account.
+     */
     public boolean duplicate(String username) {
-        try {
-            final Stored<Account> account = accountStore.lookup(username);
-            if(account != null) {
-                return true;
-            }
-        } catch (SQLException e) {
-        } catch (DeletedException e) {
-        }
-
-        return false;
+        return userStore.exists(username);
     }
     }
 
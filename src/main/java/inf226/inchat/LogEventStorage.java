@@ -0,0 +1,825 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Stored;
+import inf226.storage.Transactions;
+import inf226.storage.UpdatedException;
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The LogEventStorage keeps events in append-only logs, one for
+ * each channel, instead of in the Event, Message and Joined tables.
+ *
+ * The log of a channel is a series of segment files, which are
+ * written and read through memory mapping. Saving or editing an
+ * event appends the whole event as a record, and deleting it appends
+ * a record of the delete, so a record never changes once written.
+ * An index in memory, rebuilt from the logs when the storage is
+ * opened, holds where the newest record of each event is.
+ *
+ * The changes of a transaction are kept aside, where only the
+ * thread making them sees them, until the transaction commits. Just
+ * before the database commits, they are appended to the logs and
+ * written to disk, and then the number of the transaction goes in
+ * the commit log. Should the database fail to commit, the records
+ * are marked as skipped. Once the database has committed, and before
+ * the writer is released, the changes are put in the index.
+ * When the logs are read again, only the records of transactions in
+ * the commit log are replayed, and records whose checksum does not
+ * match, having only partly reached the disk, end a segment.
+ */
+public final class LogEventStorage
+    implements EventStore, AutoCloseable {
+
+    private static final byte skipped = 0;
+    private static final byte put = 1;
+    private static final byte remove = 2;
+
+    private final Transactions connections;
+    private final Path directory;
+    private final int segmentSize;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final Commits commits;
+
+    /* Where the newest committed record of each event is.
+     */
+    private final ConcurrentHashMap<UUID,Entry> index
+        = new ConcurrentHashMap<UUID,Entry>();
+    /* The committed events of each channel by their place in the
+     * order of saving, which serves as their page cursor.
+     */
+    private final ConcurrentHashMap<UUID,ConcurrentSkipListMap<Long,UUID>> channels
+        = new ConcurrentHashMap<UUID,ConcurrentSkipListMap<Long,UUID>>();
+    /* The log of each channel. Only the writer appends to a log.
+     */
+    private final ConcurrentHashMap<UUID,Log> logs
+        = new ConcurrentHashMap<UUID,Log>();
+    /* The changes of the transaction holding the writer, if any.
+     */
+    private volatile Pending pending = null;
+
+    private static final class Entry {
+        final UUID channel;
+        final UUID version;
+        final long ordinal;
+        final ByteBuffer segment;
+        final int offset;
+
+        Entry(UUID channel, UUID version, long ordinal, ByteBuffer segment, int offset) {
+            this.channel = channel;
+            this.version = version;
+            this.ordinal = ordinal;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /* A change to an event in a transaction. The event is null if
+     * it was deleted.
+     */
+    private static final class Change {
+        final UUID id;
+        final UUID channel;
+        final long ordinal;
+        final Stored<Channel.Event> event;
+        /* The change this one replaces in the same transaction.
+         */
+        final Change previous;
+
+        Change(UUID id, UUID channel, long ordinal, Stored<Channel.Event> event, Change previous) {
+            this.id = id;
+            this.channel = channel;
+            this.ordinal = ordinal;
+            this.event = event;
+            this.previous = previous;
+        }
+    }
+
+    /* The changes of a transaction, in the order they were made,
+     * and the newest change of each event.
+     */
+    private static final class Pending {
+        final Thread owner = Thread.currentThread();
+        final ArrayList<Change> changes = new ArrayList<>();
+        final HashMap<UUID,Change> latest = new HashMap<>();
+    }
+
+    /* The segments of the log of one channel. A record is an int
+     * length, the CRC-32 of the body and that many bytes of body.
+     * A zero length marks the end of a segment.
+     */
+    private final class Log {
+        final UUID channel;
+        int segments = 0;
+        MappedByteBuffer tail = null;
+        int end = 0;
+
+        Log(UUID channel) {
+            this.channel = channel;
+        }
+
+        /* Append a record, and return the offset it was written at,
+         * along with its segment.
+         */
+        Pair<ByteBuffer,Integer> append(byte[] body) throws IOException {
+            if(tail == null || end + 8 + body.length + 4 > tail.capacity())
+                map(Math.max(segmentSize, 8 + body.length + 4));
+            final int offset = end;
+            final ByteBuffer record = tail.duplicate();
+            record.position(offset + 8);
+            record.put(body);
+            tail.putInt(offset + 4, checksum(body));
+            tail.putInt(offset, body.length);
+            end = offset + 8 + body.length;
+            return Pair.pair(tail, offset);
+        }
+
+        void force() {
+            if(tail != null)
+                tail.force();
+        }
+
+        private void map(int size) throws IOException {
+            force();
+            tail = LogEventStorage.map(segment(channel, segments++), size);
+            end = 0;
+        }
+    }
+
+    /* The numbers of the committed transactions. The file starts
+     * with a floor, below which every transaction has either
+     * committed or had its records skipped, followed by the numbers
+     * of the transactions committed since. Each number is followed
+     * by its CRC-32.
+     */
+    private final class Commits {
+        final Path path;
+        long floor = 1;
+        final HashSet<Long> committed = new HashSet<>();
+        FileChannel file = null;
+
+        Commits(Path path) {
+            this.path = path;
+        }
+
+        boolean contains(long transaction) {
+            return transaction < floor || committed.contains(transaction);
+        }
+
+        void read() throws IOException {
+            final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+            if(bytes.remaining() >= 12 && valid(bytes))
+                floor = bytes.getLong(0);
+            bytes.position(12);
+            while(bytes.remaining() >= 12 && valid(bytes)) {
+                committed.add(bytes.getLong(bytes.position()));
+                bytes.position(bytes.position() + 12);
+            }
+        }
+
+        private boolean valid(ByteBuffer bytes) {
+            final ByteBuffer number = bytes.duplicate();
+            number.limit(number.position() + 8);
+            return checksum(number) == bytes.getInt(bytes.position() + 8);
+        }
+
+        /* Start a new file with everything below the floor settled.
+         */
+        void reset(long floor) throws IOException {
+            final Path fresh = directory.resolve("commits.new");
+            try (final FileChannel out = FileChannel.open(fresh,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+                out.write(entry(floor));
+                out.force(true);
+            }
+            Files.move(fresh, path, StandardCopyOption.ATOMIC_MOVE);
+            this.floor = floor;
+            committed.clear();
+            file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        synchronized void add(long transaction) throws IOException {
+            file.write(entry(transaction));
+            file.force(false);
+        }
+
+        private ByteBuffer entry(long number) {
+            final ByteBuffer entry = ByteBuffer.allocate(12);
+            entry.putLong(number);
+            entry.flip();
+            final int crc = checksum(entry.duplicate());
+            entry.limit(12);
+            entry.putInt(8, crc);
+            entry.position(0);
+            return entry;
+        }
+
+        synchronized void close() throws IOException {
+            if(file != null)
+                file.close();
+        }
+    }
+
+    /**
+     * Open the event logs in a directory, creating it if needed.
+     *
+     * @param connections The transactions the changes are part of.
+     * @param directory   The directory of the segment files.
+     * @param segmentSize The size of new segment files in bytes.
+     */
+    public LogEventStorage(Transactions connections, Path directory, int segmentSize)
+        throws SQLException {
+        this.connections = connections;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commits = new Commits(directory.resolve("commits"));
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new SQLException("Could not open the event log in " + directory, e);
+        }
+    }
+
+    /**
+     * Open the event logs in a directory, with segments of the size
+     * given by the system property inchat.eventlog.segment, 1 MiB by
+     * default.
+     */
+    public LogEventStorage(Transactions connections, Path directory)
+        throws SQLException {
+        this(connections, directory, Integer.getInteger("inchat.eventlog.segment", 1 << 20));
+    }
+
+    /* The file of a segment of the log of a channel.
+     */
+    private Path segment(UUID channel, int number) {
+        return directory.resolve(channel + "." + number + ".log");
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        // The mapping stays valid once the file is closed.
+        try (final FileChannel file = FileChannel.open(path,
+                 StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, file.size()));
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+
+    private static int checksum(ByteBuffer body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+
+    /* Rebuild the index by reading the logs, oldest record first.
+     *
+     * Records of transactions which never committed are marked as
+     * skipped, and whatever follows the last whole record of a log
+     * is cleared, so that the commit log can start over.
+     */
+    private void recover() throws IOException {
+        final Map<UUID,TreeMap<Integer,Path>> files = new HashMap<>();
+        try (final DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*.log")) {
+            for(Path path : paths) {
+                final String[] name = path.getFileName().toString().split("\\.");
+                files.computeIfAbsent(UUID.fromString(name[0]), c -> new TreeMap<>())
+                     .put(Integer.parseInt(name[1]), path);
+            }
+        }
+        if(Files.exists(commits.path))
+            commits.read();
+        else if(!files.isEmpty())
+            throw new IOException("The commit log of " + directory + " is missing");
+        long newest = commits.floor - 1;
+        for(Map.Entry<UUID,TreeMap<Integer,Path>> channel : files.entrySet()) {
+            final Log log = new Log(channel.getKey());
+            for(Map.Entry<Integer,Path> file : channel.getValue().entrySet()) {
+                final MappedByteBuffer segment = map(file.getValue(), 0);
+                int offset = 0;
+                while(offset + 8 <= segment.capacity()) {
+                    final int length = segment.getInt(offset);
+                    if(length <= 0 || offset + 8 + length > segment.capacity())
+                        break;
+                    final ByteBuffer body = record(segment, offset);
+                    body.limit(offset + 8 + length);
+                    if(checksum(body) != segment.getInt(offset + 4))
+                        break;
+                    newest = Math.max(newest, replay(log.channel, segment, offset));
+                    offset += 8 + length;
+                }
+                if(file.getKey().equals(channel.getValue().lastKey()))
+                    clear(segment, offset);
+                segment.force();
+                log.segments = file.getKey() + 1;
+                log.tail = segment;
+                log.end = offset;
+            }
+            logs.put(log.channel, log);
+        }
+        transactions.set(newest);
+        commits.reset(newest + 1);
+    }
+
+    /* Replay a record if its transaction committed, and skip it
+     * from now on otherwise.
+     *
+     * @return The number of the transaction of the record.
+     */
+    private long replay(UUID channel, ByteBuffer segment, int offset) {
+        final ByteBuffer record = record(segment, offset);
+        final byte kind = record.get();
+        final long transaction = record.getLong();
+        if(kind == skipped)
+            return transaction;
+        if(!commits.contains(transaction)) {
+            skip(segment, offset);
+            return transaction;
+        }
+        final UUID id = new UUID(record.getLong(), record.getLong());
+        if(kind == put) {
+            final UUID version = new UUID(record.getLong(), record.getLong());
+            final long ordinal = record.getLong();
+            sequence.accumulateAndGet(ordinal, Math::max);
+            place(id, new Entry(channel, version, ordinal, segment, offset));
+        } else {
+            unplace(id);
+        }
+        return transaction;
+    }
+
+    /* Mark a record as skipped.
+     */
+    private static void skip(ByteBuffer segment, int offset) {
+        final int length = segment.getInt(offset);
+        segment.put(offset + 8, skipped);
+        final ByteBuffer body = record(segment, offset);
+        body.limit(offset + 8 + length);
+        segment.putInt(offset + 4, checksum(body));
+    }
+
+    /* Clear the rest of a segment, which may hold parts of records
+     * which never reached the disk whole.
+     */
+    private static void clear(ByteBuffer segment, int offset) {
+        for(int i = offset; i < segment.capacity(); ++i) {
+            if(segment.get(i) != 0)
+                segment.put(i, (byte)0);
+        }
+    }
+
+    private static ByteBuffer record(ByteBuffer segment, int offset) {
+        final ByteBuffer record = segment.duplicate();
+        record.position(offset + 8);
+        return record;
+    }
+
+    /* Make an entry the newest record of its event.
+     */
+    private void place(UUID id, Entry entry) {
+        final Entry previous = index.put(id, entry);
+        if(previous != null && previous.ordinal != entry.ordinal)
+            channels.get(previous.channel).remove(previous.ordinal);
+        channels.computeIfAbsent(entry.channel, c -> new ConcurrentSkipListMap<Long,UUID>())
+                .put(entry.ordinal, id);
+    }
+
+    private void unplace(UUID id) {
+        final Entry previous = index.remove(id);
+        if(previous != null)
+            channels.get(previous.channel).remove(previous.ordinal);
+    }
+
+    /* The record of a change.
+     */
+    private static byte[] encode(long transaction, Change change) {
+        if(change.event == null) {
+            final ByteBuffer record = ByteBuffer.allocate(1 + 8 + 16);
+            record.put(remove);
+            record.putLong(transaction);
+            record.putLong(change.id.getMostSignificantBits());
+            record.putLong(change.id.getLeastSignificantBits());
+            return record.array();
+        }
+        final Stored<Channel.Event> event = change.event;
+        final byte[] sender = bytes(event.value.sender);
+        final byte[] message = bytes(event.value.message);
+        final ByteBuffer record = ByteBuffer.allocate(
+            1 + 8 + 16 + 16 + 8 + 12 + 4 + 4 + sender.length + 4 + message.length);
+        record.put(put);
+        record.putLong(transaction);
+        record.putLong(event.identity.getMostSignificantBits());
+        record.putLong(event.identity.getLeastSignificantBits());
+        record.putLong(event.version.getMostSignificantBits());
+        record.putLong(event.version.getLeastSignificantBits());
+        record.putLong(change.ordinal);
+        record.putLong(event.value.time.getEpochSecond());
+        record.putInt(event.value.time.getNano());
+        record.putInt(event.value.type.code);
+        putString(record, sender, event.value.sender == null);
+        putString(record, message, event.value.message == null);
+        return record.array();
+    }
+
+    private Log log(UUID channel) {
+        return logs.computeIfAbsent(channel, Log::new);
+    }
+
+    private static byte[] bytes(String string) {
+        return string == null ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer record, byte[] bytes, boolean isNull) {
+        record.putInt(isNull ? -1 : bytes.length);
+        record.put(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        final int length = record.getInt();
+        if(length < 0)
+            return null;
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Decode the record an entry points to.
+     */
+    private static Stored<Channel.Event> read(Entry entry) {
+        final ByteBuffer record = record(entry.segment, entry.offset);
+        record.get();
+        record.getLong();
+        final UUID id = new UUID(record.getLong(), record.getLong());
+        final UUID version = new UUID(record.getLong(), record.getLong());
+        record.getLong();
+        final Instant time = Instant.ofEpochSecond(record.getLong(), record.getInt());
+        final Channel.Event.Type type = Channel.Event.Type.fromInteger(record.getInt());
+        final String sender = getString(record);
+        final String message = getString(record);
+        return new Stored<Channel.Event>(
+            new Channel.Event(entry.channel, time, sender, type, message), id, version);
+    }
+
+    /* The changes of the current transaction, started if needed.
+     * Only called while holding the writer.
+     */
+    private Pending pending() {
+        final Pending current = pending;
+        if(current != null)
+            return current;
+        final Pending started = new Pending();
+        pending = started;
+        connections.onRollback(() -> pending = null);
+        connections.beforeCommit(() -> commit(started));
+        return started;
+    }
+
+    /* Record a change in the current transaction.
+     */
+    private void change(UUID id, UUID channel, long ordinal, Stored<Channel.Event> event) {
+        final Pending current = pending();
+        final Change change = new Change(id, channel, ordinal, event, current.latest.get(id));
+        current.changes.add(change);
+        current.latest.put(id, change);
+        connections.onRollback(() -> {
+            current.changes.remove(current.changes.size() - 1);
+            if(change.previous == null)
+                current.latest.remove(id);
+            else
+                current.latest.put(id, change.previous);
+        });
+    }
+
+    /* The change the current thread has made to an event in its
+     * transaction, or null if it has made none.
+     */
+    private Change own(UUID id) {
+        final Pending current = pending;
+        if(current == null || current.owner != Thread.currentThread())
+            return null;
+        return current.latest.get(id);
+    }
+
+    /* Append the changes of a transaction to the logs, and write
+     * them and the commit of the transaction to disk. Runs just
+     * before the database commits, while holding the writer, so that
+     * a failure here rolls the database back. The changes go in the
+     * index once the database has committed.
+     */
+    private void commit(Pending committing) {
+        pending = null;
+        if(committing.changes.isEmpty())
+            return;
+        final long transaction = transactions.incrementAndGet();
+        final ArrayList<Pair<Change,Entry>> written = new ArrayList<>();
+        final ArrayList<Pair<ByteBuffer,Integer>> records = new ArrayList<>();
+        final LinkedHashSet<Log> touched = new LinkedHashSet<>();
+        // Should anything fail from here on, the records are skipped
+        // when the logs are read again, committed or not.
+        connections.onRollback(() -> skip(records, touched));
+        try {
+            for(Change change : committing.changes) {
+                final Log log = log(change.channel);
+                final Pair<ByteBuffer,Integer> at = log.append(encode(transaction, change));
+                records.add(at);
+                touched.add(log);
+                written.add(Pair.pair(change, change.event == null ? null
+                    : new Entry(change.channel, change.event.version, change.ordinal,
+                                at.first, at.second)));
+            }
+            for(Log log : touched)
+                log.force();
+            commits.add(transaction);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        connections.onCommit(() -> {
+            for(Pair<Change,Entry> change : written) {
+                if(change.second == null)
+                    unplace(change.first.id);
+                else
+                    place(change.first.id, change.second);
+            }
+        });
+    }
+
+    /* Mark the records of a transaction which did not commit as
+     * skipped, and write them to disk.
+     */
+    private static void skip(Collection<Pair<ByteBuffer,Integer>> records,
+                             Collection<Log> touched) {
+        for(Pair<ByteBuffer,Integer> at : records)
+            skip(at.first, at.second);
+        for(Log log : touched)
+            log.force();
+    }
+
+    private static SQLException failure(IOException e) {
+        return new SQLException("Could not write to the event log", e);
+    }
+
+    @Override
+    public Stored<Channel.Event> save(Channel.Event event)
+        throws SQLException {
+        final Stored<Channel.Event> stored = new Stored<Channel.Event>(event);
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            append(stored);
+            transaction.commit();
+        }
+        return stored;
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> saveAll(Collection<Channel.Event> events)
+        throws SQLException {
+        final List.Builder<Stored<Channel.Event>> stored = List.builder();
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            for(Channel.Event event : events) {
+                final Stored<Channel.Event> s = new Stored<Channel.Event>(event);
+                append(s);
+                stored.accept(s);
+            }
+            transaction.commit();
+        }
+        return stored.getList().reverse();
+    }
+
+    private void append(Stored<Channel.Event> stored) {
+        change(stored.identity, stored.value.channel, sequence.incrementAndGet(), stored);
+    }
+
+    @Override
+    public Stored<Channel.Event> update(Stored<Channel.Event> event,
+                                        Channel.Event new_event)
+        throws UpdatedException,
+            DeletedException,
+            SQLException {
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            final Change current = current(event.identity);
+            if(!current.event.version.equals(event.version))
+                throw new UpdatedException(current.event);
+            final Stored<Channel.Event> updated = event.newVersion(new_event);
+            // The channel of an event does not change.
+            change(event.identity, current.channel, current.ordinal, updated);
+            transaction.commit();
+            return updated;
+        }
+    }
+
+    @Override
+    public void delete(Stored<Channel.Event> event)
+        throws UpdatedException,
+            DeletedException,
+            SQLException {
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            final Change current = current(event.identity);
+            if(!current.event.version.equals(event.version))
+                throw new UpdatedException(current.event);
+            change(event.identity, current.channel, current.ordinal, null);
+            transaction.commit();
+        }
+    }
+
+    /* The current state of an event, as the current thread sees it.
+     */
+    private Change current(UUID id) throws DeletedException {
+        Change change = own(id);
+        if(change == null) {
+            final Entry entry = index.get(id);
+            if(entry == null)
+                throw new DeletedException();
+            change = new Change(id, entry.channel, entry.ordinal, read(entry), null);
+        }
+        if(change.event == null)
+            throw new DeletedException();
+        return change;
+    }
+
+    /* An event as the current thread sees it, or null if there is
+     * no such event.
+     */
+    private Stored<Channel.Event> lookup(UUID id) {
+        final Change own = own(id);
+        if(own != null)
+            return own.event;
+        final Entry entry = index.get(id);
+        return entry == null ? null : read(entry);
+    }
+
+    @Override
+    public Stored<Channel.Event> get(UUID id) throws DeletedException {
+        return current(id).event;
+    }
+
+    @Override
+    public UUID getCurrentVersion(UUID id) throws DeletedException {
+        final Change own = own(id);
+        if(own != null)
+            return current(id).event.version;
+        final Entry entry = index.get(id);
+        if(entry == null)
+            throw new DeletedException();
+        return entry.version;
+    }
+
+    @Override
+    public Map<UUID,Stored<Channel.Event>> getAll(Collection<UUID> ids) {
+        final Map<UUID,Stored<Channel.Event>> events = new HashMap<>();
+        for(UUID id : ids) {
+            final Stored<Channel.Event> event = lookup(id);
+            if(event != null)
+                events.put(id, event);
+        }
+        return events;
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> getChannelEvents(UUID channel) {
+        return getChannelEventsAfter(channel, 0).first;
+    }
+
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelEventsAfter(UUID channel, long after) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        Maybe<Long> newest = Maybe.nothing();
+        for(Map.Entry<Long,UUID> place : channel(channel).tailMap(after, false).entrySet()) {
+            final Stored<Channel.Event> event = lookup(place.getValue());
+            if(event == null)
+                continue;
+            events.accept(event);
+            newest = Maybe.just(place.getKey());
+        }
+        return Pair.pair(events.getList(), newest);
+    }
+
+    @Override
+    public Map<UUID,List<Stored<Channel.Event>>> getChannelEvents(Collection<UUID> channels) {
+        final Map<UUID,List<Stored<Channel.Event>>> events = new HashMap<>();
+        for(UUID channel : channels) {
+            final List<Stored<Channel.Event>> list = getChannelEvents(channel);
+            if(list.length > 0)
+                events.put(channel, list);
+        }
+        return events;
+    }
+
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelPage(UUID channel, Maybe<Long> before, int limit) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        Maybe<Long> older = Maybe.nothing();
+        long last = 0;
+        int count = 0;
+        for(Map.Entry<Long,UUID> place
+                : channel(channel).headMap(before.defaultValue(Long.MAX_VALUE), false)
+                                  .descendingMap().entrySet()) {
+            if(count == limit) {
+                older = Maybe.just(last);
+                break;
+            }
+            final Stored<Channel.Event> event = lookup(place.getValue());
+            if(event == null)
+                continue;
+            events.accept(event);
+            last = place.getKey();
+            ++count;
+        }
+        return Pair.pair(events.getList().reverse(), older);
+    }
+
+    @Override
+    public int countChannelEvents(UUID channel) {
+        return channel(channel).size();
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> getOldestEvents(UUID channel, int limit) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        int count = 0;
+        for(UUID id : channel(channel).values()) {
+            if(count == limit)
+                break;
+            final Stored<Channel.Event> event = lookup(id);
+            if(event == null)
+                continue;
+            events.accept(event);
+            ++count;
+        }
+        return events.getList();
+    }
+
+    /* The events of a channel by ordinal, as the current thread
+     * sees them.
+     */
+    private NavigableMap<Long,UUID> channel(UUID channel) {
+        final NavigableMap<Long,UUID> committed =
+            Maybe.<NavigableMap<Long,UUID>>just(channels.get(channel))
+                 .defaultValue(new ConcurrentSkipListMap<Long,UUID>());
+        final Pending current = pending;
+        if(current == null || current.owner != Thread.currentThread())
+            return committed;
+        TreeMap<Long,UUID> merged = null;
+        for(Change change : current.latest.values()) {
+            if(!change.channel.equals(channel))
+                continue;
+            if(merged == null)
+                merged = new TreeMap<Long,UUID>(committed);
+            if(change.event == null)
+                merged.remove(change.ordinal);
+            else
+                merged.put(change.ordinal, change.id);
+        }
+        return merged == null ? committed : merged;
+    }
+
+    /**
+     * Write the segments which are still open to disk.
+     */
+    @Override
+    public void close() {
+        for(Log log : logs.values())
+            log.force();
+        try {
+            commits.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the commit log of " + directory + ":\n" + e);
+        }
+    }
+}
@@ -20,7 +20,17 @@ public final class LoginHandler {
      * Log in a user to the chat.
      */
     public boolean login(Account account, String password) {
-        UUID identity = account.user.identity;
+        return login(account.user.identity, account.key, password);
+    }
+
+    /**
+     * Log in a user to the chat, knowing only their credentials.
+     */
+    public boolean login(Credentials credentials, String password) {
+        return login(credentials.user, credentials.key, password);
+    }
+
+    private boolean login(UUID identity, Password key, String password) {
         loginTrackerMap.putIfAbsent(identity, new LoginTracker());
         LoginTracker tracker = loginTrackerMap.get(identity);
 
@@ -35,7 +45,7 @@ public final class LoginHandler {
             return false;
         }
         // Correct password; clear tracker and return true
-        if(account.checkPassword(password)) {
+        if(key.check(password)) {
             loginTrackerMap.compute(identity, (k,v) -> v = v.clear());
             return true;
         }
@@ -0,0 +1,80 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.MemoryStorage;
+import inf226.storage.MemoryTransactions;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MemoryAccountStorage keeps accounts in memory. As with the
+ * AccountStorage, the user of an account is loaded from the user
+ * storage, so that it is always the current version.
+ */
+public final class MemoryAccountStorage
+    extends MemoryStorage<Account>
+    implements AccountStore {
+
+    private final UserStore userStore;
+    /* The identity of the account of each user.
+     */
+    private final ConcurrentHashMap<UUID,UUID> accounts
+        = new ConcurrentHashMap<UUID,UUID>();
+
+    public MemoryAccountStorage(MemoryTransactions transactions,
+                                UserStore userStore) {
+        super(transactions);
+        this.userStore = userStore;
+    }
+
+    @Override
+    protected void changed(Stored<Account> before, Stored<Account> after) {
+        if(before != null)
+            accounts.remove(before.value.user.identity, before.identity);
+        if(after != null)
+            accounts.put(after.value.user.identity, after.identity);
+    }
+
+    @Override
+    protected Stored<Account> resolve(Stored<Account> account)
+        throws DeletedException, SQLException {
+        final Stored<User> user = userStore.get(account.value.user.identity);
+        return new Stored<Account>(
+            new Account(user, account.value.channels, account.value.roles, account.value.key),
+            account.identity, account.version);
+    }
+
+    @Override
+    public Stored<Account> lookup(String username)
+        throws DeletedException, SQLException {
+        final Stored<User> user;
+        try {
+            user = userStore.lookup(username).get();
+        } catch (Maybe.NothingException e) {
+            throw new DeletedException();
+        }
+        final UUID id = accounts.get(user.identity);
+        if(id == null)
+            throw new DeletedException();
+        return get(id);
+    }
+
+    @Override
+    public Maybe<Credentials> credentials(String username)
+        throws SQLException {
+        try {
+            final Stored<User> user = userStore.lookup(username).get();
+            final UUID id = accounts.get(user.identity);
+            if(id == null)
+                return Maybe.nothing();
+            final Stored<Account> account = current(id);
+            return Maybe.just(new Credentials(account.identity, user.identity, account.value.key));
+        } catch (Maybe.NothingException | DeletedException e) {
+            return Maybe.nothing();
+        }
+    }
+}
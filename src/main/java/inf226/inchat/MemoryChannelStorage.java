@@ -0,0 +1,163 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.MemoryStorage;
+import inf226.storage.MemoryTransactions;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.storage.UpdatedException;
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MemoryChannelStorage keeps channels and their events in
+ * memory. As with the ChannelStorage, the events of a channel are
+ * read from the event storage, so edits to events show up in the
+ * channel without updating it.
+ */
+public final class MemoryChannelStorage
+    extends MemoryStorage<Channel>
+    implements ChannelStore {
+
+    public final MemoryEventStorage eventStore;
+    private final ChannelFeeds feeds = new ChannelFeeds();
+    private final ConcurrentHashMap<UUID,Retention> retentions
+        = new ConcurrentHashMap<UUID,Retention>();
+
+    public MemoryChannelStorage(MemoryTransactions transactions) {
+        super(transactions);
+        this.eventStore = new MemoryEventStorage(transactions);
+    }
+
+    @Override
+    public Storage<Channel.Event,SQLException> events() {
+        return eventStore;
+    }
+
+    @Override
+    public Stored<Channel> update(Stored<Channel> channel,
+                                  Channel new_channel)
+        throws UpdatedException,
+            DeletedException,
+            SQLException {
+        final Stored<Channel> updated = super.update(channel, new_channel);
+        final Maybe<Channel.Change> change = ChannelFeeds.change(channel.value, new_channel);
+        transactions.afterCommit(() -> feeds.publish(channel.version, updated, change));
+        return updated;
+    }
+
+    @Override
+    protected Stored<Channel> resolve(Stored<Channel> channel) {
+        return new Stored<Channel>(
+            new Channel(channel.value.name, eventStore.getChannelEvents(channel.identity)),
+            channel.identity, channel.version);
+    }
+
+    @Override
+    public Channel.Page getPage(UUID id, Maybe<Long> before, int limit)
+        throws DeletedException {
+        final Stored<Channel> channel = current(id);
+        final Pair<List<Stored<Channel.Event>>,Maybe<Long>> page =
+            eventStore.getChannelPage(id, before, limit);
+        return new Channel.Page(
+            new Stored<Channel>(new Channel(channel.value.name, page.first),
+                                id, channel.version),
+            page.second);
+    }
+
+    @Override
+    public Stored<Channel> noChangeUpdate(UUID channelId)
+        throws DeletedException {
+        return noChangeUpdate(channelId, Maybe.nothing());
+    }
+
+    @Override
+    public Stored<Channel> noChangeUpdate(UUID channelId, Channel.Change change)
+        throws DeletedException {
+        return noChangeUpdate(channelId, Maybe.just(change));
+    }
+
+    @Override
+    public UUID touch(UUID channelId)
+        throws DeletedException {
+        return noChangeUpdate(channelId).version;
+    }
+
+    @Override
+    public int saveSnapshots() {
+        // The events are in memory already.
+        return 0;
+    }
+
+    private Stored<Channel> noChangeUpdate(UUID channelId, Maybe<Channel.Change> change)
+        throws DeletedException {
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            final Stored<Channel> current = current(channelId);
+            final Stored<Channel> updated = current.newVersion(current.value);
+            replace(current, updated);
+            final Stored<Channel> channel = resolve(updated);
+            transactions.afterCommit(() -> feeds.publish(current.version, channel, change));
+            transaction.commit();
+            return channel;
+        }
+    }
+
+    @Override
+    public Maybe<Channel.Delta> getDelta(UUID identity, UUID version)
+        throws SQLException {
+        return feeds.getDelta(eventStore, identity, version);
+    }
+
+    @Override
+    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+        throws DeletedException, SQLException {
+        return feeds.waitNextVersion(this, identity, version);
+    }
+
+    @Override
+    public CompletableFuture<Stored<Channel>> nextVersion(UUID identity, UUID version,
+                                                          Duration timeout) {
+        return feeds.nextVersion(this, identity, version, timeout);
+    }
+
+    @Override
+    public Stored<Channel> lookupChannelForEvent(Stored<Channel.Event> e)
+        throws SQLException, DeletedException {
+        return get(eventStore.get(e.identity).value.channel);
+    }
+
+    @Override
+    public void setRetention(UUID channel, Retention retention) {
+        final Retention previous = retention.keepsAll()
+            ? retentions.remove(channel)
+            : retentions.put(channel, retention);
+        transactions.onRollback(() -> {
+            if(previous == null)
+                retentions.remove(channel);
+            else
+                retentions.put(channel, previous);
+        });
+    }
+
+    @Override
+    public Map<UUID,Retention> getRetentions() {
+        return new HashMap<UUID,Retention>(retentions);
+    }
+
+    @Override
+    public Search.Page search(Collection<UUID> channels, String query,
+                              int offset, int limit)
+      throws SQLException {
+        return eventStore.search(channels, query, offset, limit);
+    }
+}
@@ -0,0 +1,138 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.MemoryStorage;
+import inf226.storage.MemoryTransactions;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MemoryEventStorage keeps events in memory, in the order
+ * they were saved in each channel.
+ */
+public final class MemoryEventStorage
+    extends MemoryStorage<Channel.Event>
+    implements EventStore {
+
+    private final AtomicLong sequence = new AtomicLong();
+    /* The place of each event in the order of saving, which serves
+     * as its page cursor. A deleted event keeps its place, so that
+     * it goes back there if the delete is rolled back.
+     */
+    private final ConcurrentHashMap<UUID,Long> ordinals
+        = new ConcurrentHashMap<UUID,Long>();
+    /* The events of each channel by their place.
+     */
+    private final ConcurrentHashMap<UUID,ConcurrentSkipListMap<Long,UUID>> channels
+        = new ConcurrentHashMap<UUID,ConcurrentSkipListMap<Long,UUID>>();
+
+    public MemoryEventStorage(MemoryTransactions transactions) {
+        super(transactions);
+    }
+
+    @Override
+    protected void changed(Stored<Channel.Event> before, Stored<Channel.Event> after) {
+        if(before == null) {
+            final long ordinal = ordinals.computeIfAbsent(after.identity,
+                                                          id -> sequence.incrementAndGet());
+            channels.computeIfAbsent(after.value.channel, id -> new ConcurrentSkipListMap<Long,UUID>())
+                    .put(ordinal, after.identity);
+        } else if(after == null) {
+            channels.get(before.value.channel).remove(ordinals.get(before.identity));
+        }
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> getChannelEvents(UUID channel) {
+        return getChannelEventsAfter(channel, 0).first;
+    }
+
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelEventsAfter(UUID channel, long after) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        Maybe<Long> newest = Maybe.nothing();
+        for(Map.Entry<Long,UUID> entry : channel(channel).tailMap(after, false).entrySet()) {
+            try {
+                events.accept(current(entry.getValue()));
+                newest = Maybe.just(entry.getKey());
+            } catch (DeletedException e) {
+                // Deleted while we were reading.
+            }
+        }
+        return Pair.pair(events.getList(), newest);
+    }
+
+    @Override
+    public Map<UUID,List<Stored<Channel.Event>>> getChannelEvents(Collection<UUID> channels) {
+        final Map<UUID,List<Stored<Channel.Event>>> events = new HashMap<>();
+        for(UUID channel : channels) {
+            final List<Stored<Channel.Event>> list = getChannelEvents(channel);
+            if(list.length > 0)
+                events.put(channel, list);
+        }
+        return events;
+    }
+
+    @Override
+    public Pair<List<Stored<Channel.Event>>,Maybe<Long>>
+        getChannelPage(UUID channel, Maybe<Long> before, int limit) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        Maybe<Long> older = Maybe.nothing();
+        long last = 0;
+        int count = 0;
+        for(Map.Entry<Long,UUID> entry
+                : channel(channel).headMap(before.defaultValue(Long.MAX_VALUE), false)
+                                  .descendingMap().entrySet()) {
+            if(count == limit) {
+                older = Maybe.just(last);
+                break;
+            }
+            try {
+                events.accept(current(entry.getValue()));
+                last = entry.getKey();
+                ++count;
+            } catch (DeletedException e) {
+                // Deleted while we were reading.
+            }
+        }
+        return Pair.pair(events.getList().reverse(), older);
+    }
+
+    @Override
+    public int countChannelEvents(UUID channel) {
+        return channel(channel).size();
+    }
+
+    @Override
+    public List<Stored<Channel.Event>> getOldestEvents(UUID channel, int limit) {
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        int count = 0;
+        for(UUID id : channel(channel).values()) {
+            if(count == limit)
+                break;
+            try {
+                events.accept(current(id));
+                ++count;
+            } catch (DeletedException e) {
+                // Deleted while we were reading.
+            }
+        }
+        return events.getList();
+    }
+
+    private ConcurrentSkipListMap<Long,UUID> channel(UUID channel) {
+        return Maybe.just(channels.get(channel))
+                    .defaultValue(new ConcurrentSkipListMap<Long,UUID>());
+    }
+}
@@ -0,0 +1,53 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.MemoryStorage;
+import inf226.storage.MemoryTransactions;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+
+/**
+ * The MemorySessionStorage keeps sessions in memory. The account of
+ * a session is loaded from the account storage.
+ */
+public final class MemorySessionStorage
+    extends MemoryStorage<Session>
+    implements SessionStore {
+
+    private final Storage<Account,SQLException> accountStorage;
+
+    public MemorySessionStorage(MemoryTransactions transactions,
+                                Storage<Account,SQLException> accountStorage) {
+        super(transactions);
+        this.accountStorage = accountStorage;
+    }
+
+    @Override
+    protected Stored<Session> resolve(Stored<Session> session)
+        throws DeletedException, SQLException {
+        final Stored<Account> account = accountStorage.get(session.value.account.identity);
+        return new Stored<Session>(new Session(account, session.value.expiry),
+                                   session.identity, session.version);
+    }
+
+    @Override
+    public int deleteExpired(Instant now, int limit) {
+        int deleted = 0;
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            for(Stored<Session> session : new ArrayList<Stored<Session>>(values())) {
+                if(deleted == limit)
+                    break;
+                if(session.value.expiry.isBefore(now)) {
+                    replace(session, null);
+                    ++deleted;
+                }
+            }
+            transaction.commit();
+        }
+        return deleted;
+    }
+}
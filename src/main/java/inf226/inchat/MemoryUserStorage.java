@@ -0,0 +1,53 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.MemoryStorage;
+import inf226.storage.MemoryTransactions;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MemoryUserStorage keeps users in memory.
+ */
+public final class MemoryUserStorage
+    extends MemoryStorage<User>
+    implements UserStore {
+
+    /* The identity of each user by name.
+     */
+    private final ConcurrentHashMap<String,UUID> names
+        = new ConcurrentHashMap<String,UUID>();
+
+    public MemoryUserStorage(MemoryTransactions transactions) {
+        super(transactions);
+    }
+
+    @Override
+    protected void changed(Stored<User> before, Stored<User> after) {
+        if(before != null)
+            names.remove(before.value.name.toString(), before.identity);
+        if(after != null)
+            names.put(after.value.name.toString(), after.identity);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return names.containsKey(name);
+    }
+
+    @Override
+    public Maybe<Stored<User>> lookup(String name) {
+        final UUID id = names.get(name);
+        if(id == null)
+            return Maybe.nothing();
+        try {
+            return Maybe.just(get(id));
+        } catch (DeletedException | SQLException e) {
+            return Maybe.nothing();
+        }
+    }
+}
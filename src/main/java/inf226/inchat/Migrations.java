@@ -0,0 +1,54 @@
+package inf226.inchat;
+
+import inf226.storage.ConnectionManager;
+import inf226.storage.Migrator;
+
+import java.sql.SQLException;
+
+/**
+ * The schema migrations of inChat, in the order they apply.
+ *
+ * The storages create their tables as they were first designed;
+ * everything added since is a migration here.
+ */
+public final class Migrations {
+    private Migrations() {}
+
+    /**
+     * Bring the database up to date. Call this after the storages
+     * have been created.
+     */
+    public static int migrate(ConnectionManager connections)
+        throws SQLException {
+        return new Migrator(connections)
+            .add(1, "Add Event.channel and AccountChannel.role",
+                 Migrator.all(
+                     Migrator.addColumn("Event", "channel", "TEXT"),
+                     Migrator.addColumn("AccountChannel", "role", "TEXT")))
+            .add(2, "Add secondary indexes",
+                 Migrator.all(
+                     Migrator.createIndex("EventChannel", "Event", "channel"),
+                     Migrator.createIndex("UserName", "User", "name"),
+                     Migrator.createIndex("AccountUser", "Account", "user"),
+                     Migrator.createIndex("AccountChannelChannel", "AccountChannel", "channel"),
+                     Migrator.createIndex("SessionAccount", "Session", "account")))
+            .add(3, "Index the text of existing messages",
+                 Migrator.execute(
+                     "INSERT INTO MessageSearch(rowid,body) SELECT Event.rowid,Message.content FROM Event JOIN Message ON Message.id = Event.id WHERE Event.rowid NOT IN (SELECT rowid FROM MessageSearch)"))
+            .add(4, "Index session expiry",
+                 Migrator.createIndex("SessionExpiry", "Session", "expiry"))
+            // Existing events keep their rowid as seq, so the cursors
+            // and snapshots handed out before stay valid.
+            .add(5, "Order events by Event.seq instead of the rowid",
+                 Migrator.all(
+                     Migrator.addColumn("Event", "seq", "INTEGER"),
+                     Migrator.execute(
+                         "UPDATE Event SET seq = rowid WHERE seq IS NULL",
+                         "CREATE UNIQUE INDEX IF NOT EXISTS EventSeq ON Event(seq)",
+                         "CREATE INDEX IF NOT EXISTS EventChannelSeq ON Event(channel,seq)",
+                         "UPDATE EventSequence SET next = MAX(next, (SELECT IFNULL(MAX(seq),0) + 1 FROM Event))",
+                         "DELETE FROM MessageSearch",
+                         "INSERT INTO MessageSearch(rowid,body) SELECT Event.seq,Message.content FROM Event JOIN Message ON Message.id = Event.id")))
+            .migrate();
+    }
+}
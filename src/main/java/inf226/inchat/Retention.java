@@ -0,0 +1,54 @@
+package inf226.inchat;
+
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * How long the events of a channel are kept: events older than
+ * maxAge, and events beyond the newest maxEvents, are removed by
+ * the Compactor.
+ */
+public final class Retention {
+    public final Maybe<Duration> maxAge;
+    public final Maybe<Integer> maxEvents;
+
+    /**
+     * Keep every event.
+     */
+    public static final Retention keepAll = new Retention(Maybe.nothing(), Maybe.nothing());
+
+    public Retention(Maybe<Duration> maxAge, Maybe<Integer> maxEvents) {
+        this.maxAge = maxAge;
+        this.maxEvents = maxEvents;
+    }
+
+    public boolean keepsAll() {
+        return maxAge.isNothing() && maxEvents.isNothing();
+    }
+
+    /**
+     * Count how many of the oldest events of a channel have expired.
+     * Events are expired in the order they were posted, so the count
+     * stops at the first event which is kept.
+     *
+     * @param oldest The oldest events of the channel, oldest first.
+     * @param total  The number of events in the channel.
+     * @param now    The current time.
+     */
+    public int expired(java.util.List<Stored<Channel.Event>> oldest, int total, Instant now) {
+        final int excess = Math.max(0, total - maxEvents.defaultValue(Integer.MAX_VALUE));
+        final Maybe<Instant> cutoff = maxAge.map(age -> now.minus(age));
+        int expired = 0;
+        for(Stored<Channel.Event> event : oldest) {
+            final boolean tooMany = expired < excess;
+            final boolean tooOld = cutoff.map(c -> event.value.time.isBefore(c)).defaultValue(false);
+            if(!tooMany && !tooOld)
+                break;
+            ++expired;
+        }
+        return expired;
+    }
+}
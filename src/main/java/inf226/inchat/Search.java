@@ -0,0 +1,154 @@
+package inf226.inchat;
+
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.immutable.List;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text search over the messages of channels.
+ */
+public final class Search {
+    private Search() {}
+
+    private static final Pattern word = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    /**
+     * A message matching a search, with a snippet of its text
+     * around the matching terms. The snippet is plain text.
+     */
+    public static final class Hit {
+        public final Stored<Channel.Event> event;
+        public final String snippet;
+
+        public Hit(Stored<Channel.Event> event, String snippet) {
+            this.event = event;
+            this.snippet = snippet;
+        }
+    }
+
+    /**
+     * A page of search results, best match first, and the offset
+     * of the next page if there are more results.
+     */
+    public static final class Page {
+        public final List<Hit> hits;
+        public final Maybe<Integer> next;
+
+        public Page(List<Hit> hits, Maybe<Integer> next) {
+            this.hits = hits;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Split a query into the words to search for. Everything but
+     * letters and digits separates words, so that a query can not
+     * use the syntax of the index.
+     */
+    static java.util.List<String> terms(String query) {
+        final java.util.List<String> terms = new ArrayList<>();
+        for(String term : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if(!term.isEmpty())
+                terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * Escape text for use in HTML.
+     */
+    public static String escape(String text) {
+        if(text == null)
+            return "";
+        final StringBuilder escaped = new StringBuilder(text.length());
+        for(int i = 0; i < text.length(); ++i) {
+            final char c = text.charAt(i);
+            switch(c) {
+                case '&': escaped.append("&amp;"); break;
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '"': escaped.append("&quot;"); break;
+                case '\'': escaped.append("&#39;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Render a snippet as HTML, with the words matching the query
+     * in bold. The text is escaped before the markers go in.
+     */
+    public static String highlight(String snippet, String query) {
+        final HashSet<String> matching = new HashSet<>(terms(query));
+        final StringBuilder html = new StringBuilder();
+        final Matcher words = word.matcher(snippet);
+        int end = 0;
+        while(words.find()) {
+            html.append(escape(snippet.substring(end, words.start())));
+            final String text = escape(words.group());
+            if(matching.contains(words.group().toLowerCase(Locale.ROOT)))
+                html.append("<b>").append(text).append("</b>");
+            else
+                html.append(text);
+            end = words.end();
+        }
+        html.append(escape(snippet.substring(end)));
+        return html.toString();
+    }
+
+    /**
+     * The FTS5 query matching messages which contain all the terms.
+     */
+    static String match(java.util.List<String> terms) {
+        final StringBuilder match = new StringBuilder();
+        for(String term : terms) {
+            if(match.length() > 0)
+                match.append(' ');
+            match.append('"').append(term).append('"');
+        }
+        return match.toString();
+    }
+
+    /**
+     * Cut a page out of results ranked best first.
+     */
+    static Page page(java.util.List<Hit> ranked, int offset, int limit) {
+        final int end = Math.min(ranked.size(), offset + limit);
+        final List.Builder<Hit> hits = List.builder();
+        for(int i = end - 1; i >= offset; --i)
+            hits.accept(ranked.get(i));
+        return new Page(hits.getList(),
+                        end < ranked.size() ? Maybe.just(end) : Maybe.nothing());
+    }
+
+    /**
+     * Search by reading every event of the channels, for storages
+     * without an index. Matches are ranked newest first.
+     */
+    static Page scan(Collection<List<Stored<Channel.Event>>> channels,
+                     String query, int offset, int limit) {
+        final java.util.List<String> terms = terms(query);
+        final java.util.List<Hit> hits = new ArrayList<>();
+        if(!terms.isEmpty()) {
+            channels.forEach(events -> events.forEach(event -> {
+                if(event.value.type != Channel.Event.Type.message
+                   || event.value.message == null)
+                    return;
+                final java.util.List<String> words = terms(event.value.message);
+                if(words.containsAll(terms))
+                    hits.add(new Hit(event, event.value.message));
+            }));
+        }
+        hits.sort(Comparator.comparing((Hit hit) -> hit.event.value.time).reversed());
+        return page(hits, offset, limit);
+    }
+}
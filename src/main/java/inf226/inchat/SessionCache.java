@@ -0,0 +1,185 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Stored;
+import inf226.storage.UpdatedException;
+import inf226.util.immutable.List;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache in front of a session storage, so that restoring
+ * the session of every request does not load its account again.
+ *
+ * A cached session is served until it expires, as long as its
+ * account has the version it had when the session was cached. An
+ * account which has been updated makes the session load again, and
+ * sessions deleted through the cache, as on logout, are dropped.
+ */
+public final class SessionCache implements SessionStore {
+    private final SessionStore sessions;
+    private final AccountStore accounts;
+    private final int capacity;
+    private final LinkedHashMap<UUID,Stored<Session>> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param sessions The underlying storage.
+     * @param accounts The accounts, for checking their versions.
+     * @param capacity The maximum number of cached sessions.
+     */
+    public SessionCache(SessionStore sessions, AccountStore accounts, int capacity) {
+        this.sessions = sessions;
+        this.accounts = accounts;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<UUID,Stored<Session>>(16, 0.75f, true);
+    }
+
+    /**
+     * Wrap a session storage in a cache if one is configured.
+     *
+     * The capacity is read from the system property
+     * inchat.cache.session, and a capacity of zero turns the cache off.
+     */
+    public static SessionStore configured(SessionStore sessions, AccountStore accounts, int capacity) {
+        final int configured = Integer.getInteger("inchat.cache.session", capacity);
+        if(configured <= 0)
+            return sessions;
+        return new SessionCache(sessions, accounts, configured);
+    }
+
+    @Override
+    public Stored<Session> save(Session session) throws SQLException {
+        return remember(sessions.save(session));
+    }
+
+    @Override
+    public List<Stored<Session>> saveAll(Collection<Session> values) throws SQLException {
+        final List<Stored<Session>> stored = sessions.saveAll(values);
+        stored.forEach(this::remember);
+        return stored;
+    }
+
+    @Override
+    public Stored<Session> update(Stored<Session> session, Session new_session)
+        throws UpdatedException, DeletedException, SQLException {
+        forget(session.identity);
+        return remember(sessions.update(session, new_session));
+    }
+
+    @Override
+    public void delete(Stored<Session> session)
+        throws UpdatedException, DeletedException, SQLException {
+        forget(session.identity);
+        sessions.delete(session);
+    }
+
+    @Override
+    public Stored<Session> get(UUID id) throws DeletedException, SQLException {
+        final Stored<Session> cached;
+        synchronized(cache) {
+            cached = cache.get(id);
+        }
+        if(cached != null) {
+            if(expired(cached, Instant.now())) {
+                forget(id);
+            } else {
+                final Stored<Account> account = cached.value.account;
+                final UUID version;
+                try {
+                    version = accounts.getCurrentVersion(account.identity);
+                } catch (DeletedException e) {
+                    forget(id);
+                    throw e;
+                }
+                if(account.version.equals(version)) {
+                    hits.incrementAndGet();
+                    return cached;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return remember(sessions.get(id));
+    }
+
+    @Override
+    public Map<UUID,Stored<Session>> getAll(Collection<UUID> ids) throws SQLException {
+        final Map<UUID,Stored<Session>> stored = sessions.getAll(ids);
+        misses.addAndGet(ids.size());
+        stored.values().forEach(this::remember);
+        return stored;
+    }
+
+    /**
+     * Delete expired sessions from the storage, after dropping all
+     * the expired ones from the cache.
+     */
+    @Override
+    public int deleteExpired(Instant now, int limit) throws SQLException {
+        synchronized(cache) {
+            cache.values().removeIf(session -> expired(session, now));
+        }
+        return sessions.deleteExpired(now, limit);
+    }
+
+    @Override
+    public String name() {
+        return sessions.name();
+    }
+
+    /**
+     * Drop a session from the cache.
+     */
+    public void forget(UUID id) {
+        synchronized(cache) {
+            cache.remove(id);
+        }
+    }
+
+    private static boolean expired(Stored<Session> session, Instant now) {
+        return !session.value.expiry.isAfter(now);
+    }
+
+    private Stored<Session> remember(Stored<Session> stored) {
+        if(expired(stored, Instant.now()))
+            return stored;
+        synchronized(cache) {
+            cache.put(stored.identity, stored);
+            final Iterator<Map.Entry<UUID,Stored<Session>>> eldest
+                = cache.entrySet().iterator();
+            while(cache.size() > capacity) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Number of gets served from the cache.
+     */
+    public long hits() { return hits.get(); }
+
+    /**
+     * Number of gets which had to load the session.
+     */
+    public long misses() { return misses.get(); }
+
+    /**
+     * Number of sessions in the cache.
+     */
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+}
@@ -1,33 +1,43 @@
 package inf226.inchat;
 
+import inf226.storage.Batch;
 import inf226.storage.DeletedException;
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
 import inf226.storage.Storage;
 import inf226.storage.Stored;
 import inf226.storage.UpdatedException;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
  * The SessionStorage stores Session objects in an SQL database.
  */
 public final class SessionStorage
-        implements Storage<Session,SQLException> {
+        implements SessionStore {
 
-    final Connection connection;
+    final ConnectionManager connections;
+    final Format format;
     final Storage<Account,SQLException> accountStorage;
 
-    public SessionStorage(Connection connection,
+    public SessionStorage(ConnectionManager connections,
                           Storage<Account,SQLException> accountStorage)
             throws SQLException {
-        this.connection = connection;
+        this.connections = connections;
+        this.format = connections.format;
         this.accountStorage = accountStorage;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Session (id TEXT PRIMARY KEY, version TEXT, account TEXT, expiry TEXT, FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)");
+        connections.execute("CREATE TABLE IF NOT EXISTS Session (id " + format.uuid + " PRIMARY KEY, version " + format.uuid + ", account " + format.uuid + ", expiry " + format.time + ", FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)");
     }
 
     @Override
@@ -36,71 +46,143 @@ public final class SessionStorage
 
         final Stored<Session> stored = new Stored<>(session);
 
-        final PreparedStatement stmt = connection.prepareStatement("INSERT INTO Session VALUES(?,?,?,?)");
-        stmt.setObject(1, stored.identity);
-        stmt.setObject(2, stored.version);
-        stmt.setObject(3, session.account.identity);
-        stmt.setString(4, session.expiry.toString());
-        stmt.execute();
+        connections.write("INSERT INTO Session VALUES(?,?,?,?)", stmt -> {
+            bindSession(stmt, stored);
+            return stmt.executeUpdate();
+        });
         return stored;
     }
 
     @Override
-    public synchronized Stored<Session> update(Stored<Session> session,
-                                               Session new_session)
+    public List<Stored<Session>> saveAll(Collection<Session> sessions)
+            throws SQLException {
+        final List.Builder<Stored<Session>> stored = List.builder();
+        connections.write("INSERT INTO Session VALUES(?,?,?,?)", stmt -> {
+            for(Session session : sessions) {
+                final Stored<Session> s = new Stored<>(session);
+                bindSession(stmt, s);
+                stmt.addBatch();
+                stored.accept(s);
+            }
+            return stmt.executeBatch();
+        });
+        return stored.getList().reverse();
+    }
+
+    private void bindSession(PreparedStatement stmt, Stored<Session> stored)
+            throws SQLException {
+        format.setUUID(stmt, 1, stored.identity);
+        format.setUUID(stmt, 2, stored.version);
+        format.setUUID(stmt, 3, stored.value.account.identity);
+        format.setInstant(stmt, 4, stored.value.expiry);
+    }
+
+    @Override
+    public Stored<Session> update(Stored<Session> session,
+                                  Session new_session)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Session> current = get(session.identity);
-        final Stored<Session> updated = current.newVersion(new_session);
-        if(current.version.equals(session.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("UPDATE Session SET (version,account,expiry) =(?,?,?) WHERE id=?");
-            stmt.setObject(1, updated.version);
-            stmt.setObject(2, new_session.account.identity);
-            stmt.setString(3, new_session.expiry.toString());
-            stmt.setObject(4, updated.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
-        }
+        final Stored<Session> updated = session.newVersion(new_session);
+        final int rows = connections.write("UPDATE Session SET (version,account,expiry) =(?,?,?) WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, updated.version);
+            format.setUUID(stmt, 2, new_session.account.identity);
+            format.setInstant(stmt, 3, new_session.expiry);
+            format.setUUID(stmt, 4, updated.identity);
+            format.setUUID(stmt, 5, session.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(session.identity));
         return updated;
     }
 
     @Override
-    public synchronized void delete(Stored<Session> session)
+    public void delete(Stored<Session> session)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Session> current = get(session.identity);
-        if(current.version.equals(session.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("DELETE FROM Session WHERE id = ?");
-            //setObject, specify sqltype?
-            stmt.setObject(1, session.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
-        }
+        final int rows = connections.write("DELETE FROM Session WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, session.identity);
+            format.setUUID(stmt, 2, session.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(session.identity));
     }
     @Override
     public Stored<Session> get(UUID id)
             throws DeletedException,
             SQLException {
-        final PreparedStatement stmt = connection.prepareStatement("SELECT version,account,expiry FROM Session WHERE id = ?");
-        stmt.setString(1, id.toString());
-        final ResultSet rs = stmt.executeQuery();
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final Stored<Account> account
-                    = accountStorage.get(
-                    UUID.fromString(rs.getString("account")));
-            final Instant expiry = Instant.parse(rs.getString("expiry"));
-            return (new Stored<>
-                    (new Session(account,expiry),id,version));
-        } else {
+        return connections.read("SELECT version,account,expiry FROM Session WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next()) {
+                    final UUID version = format.getUUID(rs, "version");
+                    final Stored<Account> account
+                            = accountStorage.get(
+                            format.getUUID(rs, "account"));
+                    final Instant expiry = format.getInstant(rs, "expiry");
+                    return (new Stored<>
+                            (new Session(account,expiry),id,version));
+                }
+            }
             throw new DeletedException();
-        }
+        });
     }
 
+    @Override
+    public Map<UUID,Stored<Session>> getAll(Collection<UUID> ids)
+            throws SQLException {
+        // Read the session rows, then all their accounts at once.
+        final ArrayList<Pair<Stored<UUID>,Instant>> rows = new ArrayList<>();
+        for(UUID[] chunk : Batch.chunks(ids)) {
+            connections.read("SELECT id,version,account,expiry FROM Session WHERE id IN " + Batch.in(chunk), stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        rows.add(Pair.pair(
+                            new Stored<UUID>(format.getUUID(rs, "account"),
+                                             format.getUUID(rs, "id"),
+                                             format.getUUID(rs, "version")),
+                            format.getInstant(rs, "expiry")));
+                    }
+                }
+                return rows;
+            });
+        }
+        final ArrayList<UUID> accountIds = new ArrayList<>();
+        for(Pair<Stored<UUID>,Instant> row : rows)
+            accountIds.add(row.first.value);
+        final Map<UUID,Stored<Account>> accounts = accountStorage.getAll(accountIds);
+        final Map<UUID,Stored<Session>> sessions = new HashMap<>();
+        for(Pair<Stored<UUID>,Instant> row : rows) {
+            final Stored<Account> account = accounts.get(row.first.value);
+            if(account != null) {
+                sessions.put(row.first.identity,
+                             new Stored<>(new Session(account, row.second),
+                                          row.first.identity, row.first.version));
+            }
+        }
+        return sessions;
+    }
 
-} 
+    /**
+     * Delete sessions which expired before a time, oldest first.
+     *
+     * The time is rounded down to a whole second before the query,
+     * since the text format keeps instants as strings which only
+     * sort correctly down to the second.
+     */
+    @Override
+    public int deleteExpired(Instant now, int limit)
+            throws SQLException {
+        final Instant cutoff = now.truncatedTo(ChronoUnit.SECONDS).minusSeconds(1);
+        return connections.write("DELETE FROM Session WHERE rowid IN (SELECT rowid FROM Session WHERE expiry < ? ORDER BY expiry LIMIT ?)", stmt -> {
+            format.setInstant(stmt, 1, cutoff);
+            stmt.setInt(2, limit);
+            return stmt.executeUpdate();
+        });
+    }
+}
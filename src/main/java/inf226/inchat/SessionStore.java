@@ -0,0 +1,20 @@
+package inf226.inchat;
+
+import inf226.storage.Storage;
+
+import java.sql.SQLException;
+import java.time.Instant;
+
+/**
+ * A storage of sessions, which can remove the expired ones.
+ */
+public interface SessionStore extends Storage<Session,SQLException> {
+
+    /**
+     * Delete sessions which expired before a time.
+     *
+     * @param limit The maximal number of sessions to delete.
+     * @return The number of sessions deleted.
+     */
+    public int deleteExpired(Instant now, int limit) throws SQLException;
+}
@@ -0,0 +1,104 @@
+package inf226.inchat;
+
+import java.sql.SQLException;
+import java.time.Instant;
+
+/**
+ * A background job which deletes expired sessions.
+ *
+ * Sessions are deleted a batch at a time, with a pause between
+ * batches, so that a sweep never holds the writer for long.
+ */
+public final class SessionSweeper implements AutoCloseable {
+    private final SessionStore sessions;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final long intervalMillis;
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    /**
+     * @param sessions       The sessions to sweep.
+     * @param batchSize      The maximum number of sessions deleted per statement.
+     * @param pauseMillis    How long to wait between batches.
+     * @param intervalMillis How long to wait between sweeps.
+     */
+    public SessionSweeper(SessionStore sessions, int batchSize,
+                          long pauseMillis, long intervalMillis) {
+        this.sessions = sessions;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMillis = pauseMillis;
+        this.intervalMillis = intervalMillis;
+        this.worker = new Thread(this::run, "session-sweeper");
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * A sweeper configured by the system properties
+     * inchat.sweep.batch, and inchat.sweep.pause and
+     * inchat.sweep.interval in milliseconds.
+     */
+    public static SessionSweeper configured(SessionStore sessions) {
+        return new SessionSweeper(sessions,
+                                  Integer.getInteger("inchat.sweep.batch", 500),
+                                  Long.getLong("inchat.sweep.pause", 50),
+                                  Long.getLong("inchat.sweep.interval", 300000));
+    }
+
+    /**
+     * Start sweeping in the background.
+     */
+    public SessionSweeper start() {
+        worker.start();
+        return this;
+    }
+
+    private void run() {
+        while(!closed) {
+            try {
+                sweep();
+            } catch (InterruptedException e) {
+                // Closing.
+                continue;
+            } catch (SQLException | RuntimeException e) {
+                System.err.println("While sweeping sessions:\n" + e);
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                // Closing.
+            }
+        }
+    }
+
+    /**
+     * Delete all the sessions which have expired.
+     *
+     * @return The number of sessions deleted.
+     */
+    public int sweep() throws SQLException, InterruptedException {
+        int deleted = 0;
+        int batch;
+        do {
+            batch = sessions.deleteExpired(Instant.now(), batchSize);
+            deleted += batch;
+            if(batch == batchSize && pauseMillis > 0)
+                Thread.sleep(pauseMillis);
+        } while(batch == batchSize && !closed);
+        return deleted;
+    }
+
+    /**
+     * Stop sweeping, and wait for the current batch to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
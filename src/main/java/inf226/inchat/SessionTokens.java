@@ -0,0 +1,240 @@
+package inf226.inchat;
+
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signed session tokens, which can be checked without reading the
+ * session from the database.
+ *
+ * A token carries the identity and version of its session, the
+ * account, the expiry, the time it was issued and the revocation
+ * epoch it was issued in, signed with HMAC-SHA256. Logging out puts
+ * the session in a small revocation list until it expires. Should
+ * the list fill up with sessions which have not expired, the epoch
+ * is advanced instead, which revokes every token issued before. The
+ * list and the epoch are kept in a TokenRevocationStorage, if there
+ * is one, so that they outlive the server.
+ *
+ * A token is trusted on its own while it is fresh. Once it is older
+ * than the recheck interval, its session should be looked up before
+ * a new token is issued, which bounds how long a session deleted by
+ * other means than logging out stays usable.
+ */
+public final class SessionTokens {
+    private static final String algorithm = "HmacSHA256";
+    private static final int payloadLength = 3 * 16 + 4 * 8;
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final int capacity;
+    private final Duration recheck;
+    /* Where revocations are kept, or null if only in memory.
+     */
+    private final TokenRevocationStorage storage;
+    private final AtomicLong epoch = new AtomicLong();
+    /* Revoked sessions, with their expiry.
+     */
+    private final ConcurrentHashMap<UUID,Instant> revoked
+        = new ConcurrentHashMap<UUID,Instant>();
+
+    /**
+     * The contents of a valid token.
+     */
+    public static final class Token {
+        public final UUID session;
+        public final UUID version;
+        public final UUID account;
+        public final Instant expiry;
+        public final Instant issued;
+
+        Token(UUID session, UUID version, UUID account, Instant expiry, Instant issued) {
+            this.session = session;
+            this.version = version;
+            this.account = account;
+            this.expiry = expiry;
+            this.issued = issued;
+        }
+    }
+
+    /**
+     * Tokens whose revocations are only kept in memory, rechecked
+     * after a minute.
+     *
+     * @param key      The secret key to sign tokens with.
+     * @param capacity The maximum number of revoked sessions to
+     *                 remember before advancing the epoch.
+     */
+    public SessionTokens(byte[] key, int capacity) {
+        this.key = new SecretKeySpec(key, algorithm);
+        this.capacity = capacity;
+        this.recheck = Duration.ofMinutes(1);
+        this.storage = null;
+        this.macs = macs(this.key);
+    }
+
+    /**
+     * Tokens whose revocations are kept in a storage, starting from
+     * the epoch and revocations already there.
+     *
+     * @param key      The secret key to sign tokens with.
+     * @param capacity The maximum number of revoked sessions to
+     *                 remember before advancing the epoch.
+     * @param recheck  How long a token is trusted on its own.
+     * @param storage  Where revocations are kept.
+     */
+    public SessionTokens(byte[] key, int capacity, Duration recheck,
+                         TokenRevocationStorage storage)
+        throws SQLException {
+        this.key = new SecretKeySpec(key, algorithm);
+        this.capacity = capacity;
+        this.recheck = recheck;
+        this.storage = storage;
+        this.macs = macs(this.key);
+        epoch.set(storage.epoch());
+        revoked.putAll(storage.revoked(Instant.now()));
+    }
+
+    private static ThreadLocal<Mac> macs(SecretKeySpec key) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance(algorithm);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Tokens signed with the base64 key in the system property
+     * inchat.session.key, or with a random key if it is not set, in
+     * which case tokens do not outlive the server. The revocation
+     * list holds inchat.session.revocations sessions, and a token is
+     * trusted on its own for inchat.session.recheck seconds, 60 by
+     * default.
+     */
+    public static SessionTokens configured(TokenRevocationStorage storage)
+        throws SQLException {
+        final String configured = System.getProperty("inchat.session.key");
+        final byte[] key;
+        if(configured == null) {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = Base64.getDecoder().decode(configured);
+        }
+        return new SessionTokens(key, Integer.getInteger("inchat.session.revocations", 10000),
+                                 Duration.ofSeconds(Integer.getInteger("inchat.session.recheck", 60)),
+                                 storage);
+    }
+
+    /**
+     * Issue a token for a session.
+     */
+    public String issue(Stored<Session> session) {
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        putUUID(payload, session.identity);
+        putUUID(payload, session.version);
+        putUUID(payload, session.value.account.identity);
+        payload.putLong(session.value.expiry.getEpochSecond());
+        payload.putLong(session.value.expiry.getNano());
+        payload.putLong(Instant.now().getEpochSecond());
+        payload.putLong(epoch.get());
+        final byte[] bytes = payload.array();
+        return encoder.encodeToString(bytes) + "." + encoder.encodeToString(sign(bytes));
+    }
+
+    /**
+     * Check a token.
+     *
+     * @return The contents of the token, or nothing if it is not
+     *         signed by us, has expired or has been revoked.
+     */
+    public Maybe<Token> verify(String token, Instant now) {
+        final int dot = token.indexOf('.');
+        if(dot < 0)
+            return Maybe.nothing();
+        final byte[] bytes;
+        final byte[] signature;
+        try {
+            bytes = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return Maybe.nothing();
+        }
+        if(bytes.length != payloadLength
+           || !MessageDigest.isEqual(sign(bytes), signature))
+            return Maybe.nothing();
+        final ByteBuffer payload = ByteBuffer.wrap(bytes);
+        final UUID session = getUUID(payload);
+        final UUID version = getUUID(payload);
+        final UUID account = getUUID(payload);
+        final Instant expiry = Instant.ofEpochSecond(payload.getLong(), payload.getLong());
+        final Instant issued = Instant.ofEpochSecond(payload.getLong());
+        if(payload.getLong() != epoch.get()
+           || !expiry.isAfter(now)
+           || revoked.containsKey(session))
+            return Maybe.nothing();
+        return Maybe.just(new Token(session, version, account, expiry, issued));
+    }
+
+    /**
+     * Check if a token is recent enough to be trusted without looking
+     * up its session.
+     */
+    public boolean fresh(Token token, Instant now) {
+        return now.isBefore(token.issued.plus(recheck));
+    }
+
+    /**
+     * Revoke the tokens of a session, as on logout. The revocation is
+     * stored before it takes effect.
+     */
+    public synchronized void revoke(Stored<Session> session) throws SQLException {
+        if(storage != null)
+            storage.revoke(session.identity, session.value.expiry);
+        revoked.put(session.identity, session.value.expiry);
+        if(revoked.size() <= capacity)
+            return;
+        final Instant now = Instant.now();
+        if(storage != null)
+            storage.deleteExpired(now);
+        revoked.values().removeIf(expiry -> !expiry.isAfter(now));
+        if(revoked.size() > capacity) {
+            // Revoke everything issued so far instead.
+            epoch.set(storage != null ? storage.advance() : epoch.get() + 1);
+            revoked.clear();
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+
+    private static void putUUID(ByteBuffer buffer, UUID id) {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID getUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
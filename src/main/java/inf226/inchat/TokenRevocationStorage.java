@@ -0,0 +1,99 @@
+package inf226.inchat;
+
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The TokenRevocationStorage keeps the revocations of session tokens
+ * and their epoch in an SQL database, so that they outlive the
+ * server.
+ */
+public final class TokenRevocationStorage {
+    final ConnectionManager connections;
+    final Format format;
+
+    public TokenRevocationStorage(ConnectionManager connections)
+            throws SQLException {
+        this.connections = connections;
+        this.format = connections.format;
+        connections.execute("CREATE TABLE IF NOT EXISTS TokenEpoch (epoch INTEGER NOT NULL)");
+        connections.execute("INSERT INTO TokenEpoch SELECT 0 WHERE NOT EXISTS (SELECT * FROM TokenEpoch)");
+        connections.execute("CREATE TABLE IF NOT EXISTS RevokedToken (session " + format.uuid + " PRIMARY KEY, expiry " + format.time + ")");
+    }
+
+    /**
+     * The epoch tokens are currently issued in.
+     */
+    public long epoch() throws SQLException {
+        return connections.read("SELECT epoch FROM TokenEpoch", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong("epoch");
+            }
+        });
+    }
+
+    /**
+     * The revoked sessions which have not expired, with their expiry.
+     */
+    public Map<UUID,Instant> revoked(Instant now) throws SQLException {
+        final Instant cutoff = now.truncatedTo(ChronoUnit.SECONDS).minusSeconds(1);
+        return connections.read("SELECT session,expiry FROM RevokedToken WHERE expiry >= ?", stmt -> {
+            format.setInstant(stmt, 1, cutoff);
+            final Map<UUID,Instant> revoked = new HashMap<>();
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next())
+                    revoked.put(format.getUUID(rs, "session"), format.getInstant(rs, "expiry"));
+            }
+            return revoked;
+        });
+    }
+
+    /**
+     * Revoke the tokens of a session until it expires.
+     */
+    public void revoke(UUID session, Instant expiry) throws SQLException {
+        connections.write("INSERT OR REPLACE INTO RevokedToken VALUES(?,?)", stmt -> {
+            format.setUUID(stmt, 1, session);
+            format.setInstant(stmt, 2, expiry);
+            return stmt.executeUpdate();
+        });
+    }
+
+    /**
+     * Forget revocations of sessions which expired before a time.
+     * The time is rounded down to a whole second, as in
+     * SessionStorage.deleteExpired.
+     */
+    public int deleteExpired(Instant now) throws SQLException {
+        final Instant cutoff = now.truncatedTo(ChronoUnit.SECONDS).minusSeconds(1);
+        return connections.write("DELETE FROM RevokedToken WHERE expiry < ?", stmt -> {
+            format.setInstant(stmt, 1, cutoff);
+            return stmt.executeUpdate();
+        });
+    }
+
+    /**
+     * Advance the epoch, which revokes every token issued before,
+     * and forget the revocations it makes redundant.
+     *
+     * @return The new epoch.
+     */
+    public long advance() throws SQLException {
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            connections.write("UPDATE TokenEpoch SET epoch = epoch + 1", stmt -> stmt.executeUpdate());
+            connections.write("DELETE FROM RevokedToken", stmt -> stmt.executeUpdate());
+            final long epoch = epoch();
+            transaction.commit();
+            return epoch;
+        }
+    }
+}
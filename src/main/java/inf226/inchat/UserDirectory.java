@@ -0,0 +1,137 @@
+package inf226.inchat;
+
+import inf226.util.Maybe;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory directory of usernames, so that checking whether a
+ * name is taken does not need the database.
+ *
+ * A Bloom filter answers most questions about names which are not
+ * taken, and a map from name to user identity answers the rest.
+ * Names are never removed from the filter, so it is rebuilt from
+ * the map once it holds twice the names it was sized for.
+ */
+public final class UserDirectory {
+    private static final int bitsPerName = 10;
+    private static final int hashes = 7;
+
+    private final ConcurrentHashMap<String,UUID> names
+        = new ConcurrentHashMap<String,UUID>();
+    private volatile AtomicLongArray filter;
+    private volatile int expected;
+    /* Names added to the filter since it was built.
+     */
+    private int added = 0;
+
+    /**
+     * @param expected The number of names to size the filter for.
+     */
+    public UserDirectory(int expected) {
+        this.expected = Math.max(1024, expected);
+        this.filter = newFilter(this.expected);
+    }
+
+    /**
+     * Add a name to the directory.
+     */
+    public synchronized void add(String name, UUID user) {
+        names.put(name, user);
+        set(filter, name);
+        if(++added > 2 * expected)
+            rebuild();
+    }
+
+    /**
+     * Remove a name from the directory, if it belongs to the user.
+     */
+    public synchronized void remove(String name, UUID user) {
+        names.remove(name, user);
+    }
+
+    /**
+     * Check if a name is taken.
+     */
+    public boolean contains(String name) {
+        return mightContain(name) && names.containsKey(name);
+    }
+
+    /**
+     * Look up the identity of the user with a name.
+     */
+    public Maybe<UUID> lookup(String name) {
+        if(!mightContain(name))
+            return Maybe.nothing();
+        final UUID user = names.get(name);
+        if(user == null)
+            return Maybe.nothing();
+        return Maybe.just(user);
+    }
+
+    /**
+     * Number of names in the directory.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    private boolean mightContain(String name) {
+        final AtomicLongArray bits = filter;
+        final long size = bits.length() * 64L;
+        final long hash = hash(name);
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < hashes; ++i) {
+            final long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+            if((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static void set(AtomicLongArray bits, String name) {
+        final long size = bits.length() * 64L;
+        final long hash = hash(name);
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < hashes; ++i) {
+            final long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+            final int word = (int)(bit >>> 6);
+            final long mask = 1L << bit;
+            long old;
+            do {
+                old = bits.get(word);
+            } while((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    private void rebuild() {
+        expected = Math.max(expected, 2 * names.size());
+        final AtomicLongArray bits = newFilter(expected);
+        for(Map.Entry<String,UUID> entry : names.entrySet())
+            set(bits, entry.getKey());
+        filter = bits;
+        added = names.size();
+    }
+
+    private static AtomicLongArray newFilter(int expected) {
+        return new AtomicLongArray((int)Math.min(Integer.MAX_VALUE,
+                                                 ((long)expected * bitsPerName + 63) / 64));
+    }
+
+    /* A 64-bit mix of the string hash, giving the two hashes of
+     * the filter.
+     */
+    private static long hash(String name) {
+        long h = name.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        h *= 0x94D049BB133111EBL;
+        return h ^ (h >>> 32);
+    }
+}
@@ -1,16 +1,24 @@
 package inf226.inchat;
 
+import inf226.storage.Batch;
 import inf226.storage.DeletedException;
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
 import inf226.storage.Storage;
 import inf226.storage.Stored;
 import inf226.storage.UpdatedException;
 import inf226.util.Maybe;
+import inf226.util.Pair;
+import inf226.util.immutable.List;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 
@@ -19,102 +27,218 @@ import java.util.UUID;
  * The UserStore stores User objects in an SQL database.
  */
 public final class UserStorage
-        implements Storage<User,SQLException> {
+        implements UserStore {
 
-    final Connection connection;
+    final ConnectionManager connections;
+    final Format format;
+    /* Every username, so that names can be checked without a query.
+     */
+    final UserDirectory directory;
 
-    public UserStorage(Connection connection)
+    public UserStorage(ConnectionManager connections)
             throws SQLException {
-        this.connection = connection;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)");
+        this.connections = connections;
+        this.format = connections.format;
+        connections.execute("CREATE TABLE IF NOT EXISTS User (id " + format.uuid + " PRIMARY KEY, version " + format.uuid + ", name TEXT, joined " + format.time + ")");
+        this.directory = loadDirectory();
+    }
+
+    private UserDirectory loadDirectory()
+            throws SQLException {
+        final ArrayList<Pair<String,UUID>> names = new ArrayList<>();
+        connections.read("SELECT id,name FROM User", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while(rs.next())
+                    names.add(new Pair<>(rs.getString("name"), format.getUUID(rs, "id")));
+            }
+            return names;
+        });
+        final UserDirectory directory = new UserDirectory(2 * names.size());
+        for(Pair<String,UUID> name : names)
+            directory.add(name.first, name.second);
+        return directory;
+    }
+
+    /* Add a name to the directory once the transaction has
+     * committed, so that other threads never see an uncommitted name.
+     */
+    private void addName(Stored<User> user) {
+        final String name = user.value.name.toString();
+        connections.onCommit(() -> directory.add(name, user.identity));
+    }
+
+    private void removeName(Stored<User> user) {
+        final String name = user.value.name.toString();
+        connections.onCommit(() -> directory.remove(name, user.identity));
     }
 
     @Override
     public Stored<User> save(User user)
             throws SQLException {
         final Stored<User> stored = new Stored<>(user);
-        final PreparedStatement stmt = connection.prepareStatement( "INSERT INTO User VALUES(?,?,?,?)");
-        //setObject specify sqltype?
-        stmt.setObject(1,stored.identity);
-        stmt.setObject(2, stored.version);
-        stmt.setString(3, user.name.toString());
-        stmt.setString(4, user.joined.toString());
-        stmt.execute();
+        connections.write("INSERT INTO User VALUES(?,?,?,?)", stmt -> {
+            bindUser(stmt, stored);
+            return stmt.executeUpdate();
+        });
+        addName(stored);
         return stored;
     }
 
     @Override
-    public synchronized Stored<User> update(Stored<User> user,
-                                            User new_user)
+    public List<Stored<User>> saveAll(Collection<User> users)
+            throws SQLException {
+        final List.Builder<Stored<User>> stored = List.builder();
+        connections.write("INSERT INTO User VALUES(?,?,?,?)", stmt -> {
+            for(User user : users) {
+                final Stored<User> s = new Stored<>(user);
+                bindUser(stmt, s);
+                stmt.addBatch();
+                stored.accept(s);
+            }
+            return stmt.executeBatch();
+        });
+        stored.getList().forEach(this::addName);
+        return stored.getList().reverse();
+    }
+
+    private void bindUser(PreparedStatement stmt, Stored<User> stored)
+            throws SQLException {
+        format.setUUID(stmt, 1, stored.identity);
+        format.setUUID(stmt, 2, stored.version);
+        stmt.setString(3, stored.value.name.toString());
+        format.setInstant(stmt, 4, stored.value.joined);
+    }
+
+    @Override
+    public Stored<User> update(Stored<User> user,
+                               User new_user)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<User> current = get(user.identity);
-        final Stored<User> updated = current.newVersion(new_user);
-        if(current.version.equals(user.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("UPDATE User SET (version,name,joined) =(?,?,?) WHERE id=?");
-            stmt.setObject(1, updated.version);
+        final Stored<User> updated = user.newVersion(new_user);
+        final int rows = connections.write("UPDATE User SET (version,name,joined) =(?,?,?) WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, updated.version);
             stmt.setString(2, new_user.name.toString());
-            stmt.setString(3, new_user.joined.toString());
-            stmt.setObject(4, updated.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
+            format.setInstant(stmt, 3, new_user.joined);
+            format.setUUID(stmt, 4, updated.identity);
+            format.setUUID(stmt, 5, user.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(user.identity));
+        if(!user.value.name.toString().equals(new_user.name.toString())) {
+            removeName(user);
+            addName(updated);
         }
         return updated;
     }
 
     @Override
-    public synchronized void delete(Stored<User> user)
+    public void delete(Stored<User> user)
             throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<User> current = get(user.identity);
-        if(current.version.equals(user.version)) {
-            final PreparedStatement stmt = connection.prepareStatement("DELETE FROM User WHERE id =?");
-            stmt.setObject(1, user.identity);
-            stmt.execute();
-        } else {
-            throw new UpdatedException(current);
-        }
+        final int rows = connections.write("DELETE FROM User WHERE id=? AND version=?", stmt -> {
+            format.setUUID(stmt, 1, user.identity);
+            format.setUUID(stmt, 2, user.version);
+            return stmt.executeUpdate();
+        });
+        if(rows == 0)
+            throw new UpdatedException(get(user.identity));
+        removeName(user);
     }
     @Override
     public Stored<User> get(UUID id)
             throws DeletedException,
             SQLException {
-        final PreparedStatement stmt = connection.prepareStatement("SELECT version,name,joined FROM User WHERE id = ?");
-        stmt.setString(1, id.toString());
-        final ResultSet rs = stmt.executeQuery();
-
-        if(rs.next()) {
-            final UUID version =
-                    UUID.fromString(rs.getString("version"));
-            final String name = rs.getString("name");
-            final Instant joined = Instant.parse(rs.getString("joined"));
-            return (new Stored<>
-                    (new User(name,joined),id,version));
-        } else {
+        return connections.read("SELECT id,version,name,joined FROM User WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next()) {
+                    return readUser(rs);
+                }
+            }
             throw new DeletedException();
+        });
+    }
+
+    @Override
+    public Map<UUID,Stored<User>> getAll(Collection<UUID> ids)
+            throws SQLException {
+        final Map<UUID,Stored<User>> users = new HashMap<>();
+        for(UUID[] chunk : Batch.chunks(ids)) {
+            connections.read("SELECT id,version,name,joined FROM User WHERE id IN " + Batch.in(chunk), stmt -> {
+                for(int i = 0; i < chunk.length; ++i)
+                    format.setUUID(stmt, i + 1, chunk[i]);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        final Stored<User> user = readUser(rs);
+                        users.put(user.identity, user);
+                    }
+                }
+                return users;
+            });
         }
+        return users;
+    }
+
+    private Stored<User> readUser(ResultSet rs)
+            throws SQLException {
+        final UUID id = format.getUUID(rs, "id");
+        final UUID version =
+                format.getUUID(rs, "version");
+        final String name = rs.getString("name");
+        final Instant joined = format.getInstant(rs, "joined");
+        return (new Stored<>
+                (new User(name,joined),id,version));
+    }
+
+    /**
+     * Get the current version UUID for the specified user.
+     * @param id UUID for the user.
+     */
+    @Override
+    public UUID getCurrentVersion(UUID id)
+            throws DeletedException,
+            SQLException {
+        return connections.read("SELECT version FROM User WHERE id = ?", stmt -> {
+            format.setUUID(stmt, 1, id);
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next())
+                    return format.getUUID(rs, "version");
+            }
+            throw new DeletedException();
+        });
     }
 
     /**
-     * Look up a user by their username;
-     **/
-    public Maybe<Stored<User>> lookup(String name) {
-        try{
-            final PreparedStatement stmt = connection.prepareStatement("SELECT id FROM User WHERE name = ?");
-            stmt.setString(1, name);
-            final ResultSet rs = stmt.executeQuery();
-            if(rs.next())
-                return Maybe.just(
-                        get(UUID.fromString(rs.getString("id"))));
-        } catch (Exception e) {
-           // TODO
+     * Check if a username is taken, using the directory.
+     */
+    @Override
+    public boolean exists(String name) {
+        return directory.contains(name);
+    }
+
+    /**
+     * Look up a user by their username, through the directory.
+     */
+    @Override
+    public Maybe<Stored<User>> lookup(String name)
+            throws SQLException {
+        final UUID id;
+        try {
+            id = directory.lookup(name).get();
+        } catch (Maybe.NothingException e) {
+            return Maybe.nothing();
+        }
+        try {
+            return Maybe.just(get(id));
+        } catch (DeletedException e) {
+            // Deleted after the directory was read.
+            return Maybe.nothing();
         }
-        return Maybe.nothing();
     }
 }
 
 
+ 
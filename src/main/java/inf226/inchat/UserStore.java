@@ -0,0 +1,32 @@
+package inf226.inchat;
+
+import inf226.storage.DeletedException;
+import inf226.storage.Storage;
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * A storage of users, which can look them up by name.
+ */
+public interface UserStore extends Storage<User,SQLException> {
+
+    /**
+     * Get the current version UUID for the specified user.
+     */
+    public UUID getCurrentVersion(UUID id) throws DeletedException, SQLException;
+
+    /**
+     * Look up a user by their username.
+     *
+     * @return The user, or nothing if no user has the name.
+     */
+    public Maybe<Stored<User>> lookup(String name) throws SQLException;
+
+    /**
+     * Check if a username is taken, without loading the user.
+     */
+    public boolean exists(String name);
+}
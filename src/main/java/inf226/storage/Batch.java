@@ -0,0 +1,47 @@
+package inf226.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.UUID;
+
+/**
+ * Helpers for looking up many rows with one IN (...) query.
+ *
+ * Identities are split into chunks whose sizes are taken from a
+ * few fixed sizes, padding the last chunk by repeating an identity,
+ * so that only a few distinct statements are ever prepared.
+ */
+public final class Batch {
+    private static final int[] sizes = {1, 4, 16, 64, 256};
+
+    private Batch() {}
+
+    /**
+     * Split identities into chunks for IN (...) lookups.
+     * Duplicate identities are only looked up once.
+     */
+    public static ArrayList<UUID[]> chunks(Collection<UUID> ids) {
+        final UUID[] unique = new LinkedHashSet<UUID>(ids).toArray(new UUID[0]);
+        final ArrayList<UUID[]> chunks = new ArrayList<>();
+        final int largest = sizes[sizes.length - 1];
+        for(int start = 0; start < unique.length; start += largest) {
+            final int count = Math.min(largest, unique.length - start);
+            int size = 0;
+            while(sizes[size] < count)
+                ++size;
+            final UUID[] chunk = Arrays.copyOfRange(unique, start, start + sizes[size]);
+            Arrays.fill(chunk, count, chunk.length, unique[start + count - 1]);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * The placeholder list "(?,?,...)" for a chunk.
+     */
+    public static String in(UUID[] chunk) {
+        return "(?" + ",?".repeat(chunk.length - 1) + ")";
+    }
+}
@@ -0,0 +1,198 @@
+package inf226.storage;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import inf226.util.immutable.List;
+
+/**
+ * A storage decorator which keeps recently used objects in a
+ * bounded cache.
+ *
+ * A cached object is only returned if its version is still the
+ * current version in the underlying storage, so asking for the
+ * version replaces loading the whole object. Objects updated or
+ * deleted through this storage are replaced in, or removed from,
+ * the cache.
+ */
+public final class CachingStorage<T, E extends Exception>
+    implements Storage<T,E> {
+
+    /**
+     * Look up the current version of a stored object.
+     */
+    @FunctionalInterface
+    public interface Versions<E extends Exception> {
+        UUID version(UUID id) throws DeletedException, E;
+    }
+
+    private final Storage<T,E> storage;
+    private final Versions<E> versions;
+    private final int capacity;
+    private final LinkedHashMap<UUID,Stored<T>> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Wrap a storage in a cache.
+     *
+     * @param storage  The underlying storage.
+     * @param versions Look up the current version of an object.
+     * @param capacity The maximum number of cached objects.
+     */
+    public CachingStorage(Storage<T,E> storage, Versions<E> versions, int capacity) {
+        this.storage = storage;
+        this.versions = versions;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<UUID,Stored<T>>(16, 0.75f, true);
+    }
+
+    /**
+     * Wrap a storage in a cache if one is configured for it.
+     *
+     * The capacity is read from the system property
+     * inchat.cache.<name>, and a capacity of zero turns the cache off.
+     *
+     * @param name     The name of the storage, such as "user".
+     * @param capacity The capacity if the property is not set.
+     */
+    public static <T, E extends Exception> Storage<T,E>
+        configured(String name, Storage<T,E> storage, Versions<E> versions, int capacity) {
+        final int configured = Integer.getInteger("inchat.cache." + name, capacity);
+        if(configured <= 0)
+            return storage;
+        return new CachingStorage<T,E>(storage, versions, configured);
+    }
+
+    @Override
+    public Stored<T> save(T value) throws E {
+        return remember(storage.save(value));
+    }
+
+    @Override
+    public List<Stored<T>> saveAll(Collection<T> values) throws E {
+        final List<Stored<T>> stored = storage.saveAll(values);
+        stored.forEach(this::remember);
+        return stored;
+    }
+
+    @Override
+    public Stored<T> update(Stored<T> object, T new_object)
+        throws UpdatedException, DeletedException, E {
+        try {
+            return remember(storage.update(object, new_object));
+        } catch (UpdatedException e) {
+            forget(object.identity);
+            throw e;
+        } catch (DeletedException e) {
+            forget(object.identity);
+            throw e;
+        }
+    }
+
+    @Override
+    public void delete(Stored<T> object)
+        throws UpdatedException, DeletedException, E {
+        forget(object.identity);
+        storage.delete(object);
+    }
+
+    @Override
+    public Stored<T> get(UUID id) throws DeletedException, E {
+        final Stored<T> cached;
+        synchronized(cache) {
+            cached = cache.get(id);
+        }
+        if(cached != null) {
+            final UUID version;
+            try {
+                version = versions.version(id);
+            } catch (DeletedException e) {
+                forget(id);
+                throw e;
+            }
+            if(cached.version.equals(version)) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        return remember(storage.get(id));
+    }
+
+    /**
+     * Get many objects. They are loaded in bulk rather than checked
+     * one by one, and the cache is refreshed with the result.
+     */
+    @Override
+    public Map<UUID,Stored<T>> getAll(Collection<UUID> ids) throws E {
+        final Map<UUID,Stored<T>> stored = storage.getAll(ids);
+        misses.addAndGet(ids.size());
+        stored.values().forEach(this::remember);
+        return stored;
+    }
+
+    @Override
+    public String name() {
+        return storage.name();
+    }
+
+    /**
+     * Drop an object from the cache.
+     */
+    public void forget(UUID id) {
+        synchronized(cache) {
+            cache.remove(id);
+        }
+    }
+
+    private Stored<T> remember(Stored<T> stored) {
+        synchronized(cache) {
+            cache.put(stored.identity, stored);
+            final Iterator<Map.Entry<UUID,Stored<T>>> eldest
+                = cache.entrySet().iterator();
+            while(cache.size() > capacity) {
+                eldest.next();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Number of gets served from the cache.
+     */
+    public long hits() { return hits.get(); }
+
+    /**
+     * Number of gets which had to load the object.
+     */
+    public long misses() { return misses.get(); }
+
+    /**
+     * Number of objects dropped to stay within capacity.
+     */
+    public long evictions() { return evictions.get(); }
+
+    /**
+     * The fraction of gets served from the cache.
+     */
+    public double hitRate() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingStorage(hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + ")";
+    }
+}
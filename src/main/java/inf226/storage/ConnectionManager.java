@@ -0,0 +1,411 @@
+package inf226.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+import inf226.util.Maybe;
+
+/**
+ * The ConnectionManager owns the connections to an SQLite database
+ * in WAL mode: one writer connection, and a pool of read-only
+ * connections.
+ *
+ * Reads are served by the pool, so they run in parallel with each
+ * other and with the writer. Writes are serialised through the
+ * writer connection. A thread which is inside a transaction reads
+ * through the writer, so that it sees its own uncommitted changes.
+ */
+public final class ConnectionManager implements Transactions, AutoCloseable {
+    public final Format format;
+    private final StatementCache writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ArrayList<StatementCache> readers = new ArrayList<>();
+    /* The idle readers, most recently used first, so that the
+     * statements of a few readers stay prepared.
+     */
+    private final BlockingDeque<StatementCache> idleReaders;
+
+    /* The reader lent to each thread, so that nested reads on the
+     * same thread never wait for a second reader.
+     */
+    private final ThreadLocal<Lease> lease = new ThreadLocal<>();
+    private static final class Lease {
+        final StatementCache reader;
+        int depth = 0;
+        Lease(StatementCache reader) { this.reader = reader; }
+    }
+
+    /* The open transactions of the thread holding writeLock,
+     * innermost first.
+     */
+    private final ArrayDeque<Transaction> transactions = new ArrayDeque<>();
+
+    /**
+     * Open a connection manager for an SQLite database.
+     *
+     * A new database is created in the format named by the
+     * inchat.storage.format system property, text by default.
+     *
+     * @param url         The JDBC url of the database.
+     * @param readerCount The number of read-only connections.
+     * @param capacity    The statement cache capacity per connection.
+     */
+    public ConnectionManager(String url, int readerCount, int capacity)
+        throws SQLException {
+        this(url, readerCount, capacity,
+             Format.valueOf(System.getProperty("inchat.storage.format", "text")));
+    }
+
+    /**
+     * Open a connection manager for an SQLite database.
+     *
+     * @param url         The JDBC url of the database.
+     * @param readerCount The number of read-only connections.
+     * @param capacity    The statement cache capacity per connection.
+     * @param fresh       The format to use if the database is new.
+     *                    An existing database keeps its format.
+     */
+    public ConnectionManager(String url, int readerCount, int capacity, Format fresh)
+        throws SQLException {
+        final Connection writeConnection = DriverManager.getConnection(url);
+        pragma(writeConnection, "PRAGMA journal_mode = WAL");
+        pragma(writeConnection, "PRAGMA foreign_keys = ON");
+        writeConnection.setAutoCommit(false);
+        this.writer = new StatementCache(writeConnection, capacity);
+        this.format = format(fresh);
+
+        this.idleReaders = new LinkedBlockingDeque<>(Math.max(1, readerCount));
+        for(int i = 0; i < Math.max(1, readerCount); ++i) {
+            final Connection readConnection = DriverManager.getConnection(url);
+            pragma(readConnection, "PRAGMA foreign_keys = ON");
+            pragma(readConnection, "PRAGMA query_only = ON");
+            final StatementCache reader = new StatementCache(readConnection, capacity);
+            readers.add(reader);
+            idleReaders.add(reader);
+        }
+    }
+
+    /* The format recorded in the database. Databases from before
+     * the format was recorded are in the text format.
+     */
+    private Format format(Format fresh) throws SQLException {
+        final boolean empty = writer.with("SELECT count(*) FROM sqlite_master", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getInt(1) == 0;
+            }
+        });
+        writer.execute("CREATE TABLE IF NOT EXISTS StorageFormat (format TEXT)");
+        writer.connection.commit();
+        final Maybe<Format> recorded = writer.with("SELECT format FROM StorageFormat", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                if(rs.next())
+                    return Maybe.just(Format.valueOf(rs.getString("format")));
+            }
+            return Maybe.<Format>nothing();
+        });
+        try {
+            return recorded.get();
+        } catch (Maybe.NothingException e) {
+            final Format format = empty ? fresh : Format.text;
+            writer.with("INSERT INTO StorageFormat VALUES(?)", stmt -> {
+                stmt.setString(1, format.toString());
+                return stmt.executeUpdate();
+            });
+            writer.connection.commit();
+            return format;
+        }
+    }
+
+    private static void pragma(Connection connection, String sql)
+        throws SQLException {
+        try (final Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Run a query on a pooled reader, or on the writer if the
+     * current thread is inside a transaction.
+     */
+    public <T, X extends Exception> T read(String sql, StatementCache.Use<T,X> use)
+        throws SQLException, X {
+        if(writeLock.isHeldByCurrentThread())
+            return writer.with(sql, use);
+        final StatementCache reader = borrowReader();
+        try {
+            return reader.with(sql, use);
+        } finally {
+            returnReader();
+        }
+    }
+
+    /**
+     * Reads to run together.
+     */
+    @FunctionalInterface
+    public interface Reads<T, X extends Exception> {
+        T run() throws SQLException, X;
+    }
+
+    /**
+     * Run several reads as one read transaction on a pooled reader,
+     * so that they all see the same committed state. Reads nested
+     * inside it on the same thread join it, and a thread inside a
+     * transaction reads through the writer as usual.
+     */
+    public <T, X extends Exception> T readTransaction(Reads<T,X> reads)
+        throws SQLException, X {
+        if(writeLock.isHeldByCurrentThread())
+            return reads.run();
+        final StatementCache reader = borrowReader();
+        try {
+            final boolean outermost = reader.connection.getAutoCommit();
+            if(outermost)
+                reader.connection.setAutoCommit(false);
+            try {
+                return reads.run();
+            } finally {
+                // Ends the read transaction.
+                if(outermost)
+                    reader.connection.setAutoCommit(true);
+            }
+        } finally {
+            returnReader();
+        }
+    }
+
+    /**
+     * Run a statement on the writer. Outside of a transaction the
+     * statement is committed on its own.
+     */
+    public <T, X extends Exception> T write(String sql, StatementCache.Use<T,X> use)
+        throws SQLException, X {
+        try (final Transaction transaction = begin()) {
+            final T result = writer.with(sql, use);
+            transaction.commit();
+            return result;
+        }
+    }
+
+    /**
+     * Execute a one-off statement, such as a table definition,
+     * on the writer.
+     */
+    public void execute(String sql) throws SQLException {
+        try (final Transaction transaction = begin()) {
+            writer.execute(sql);
+            transaction.commit();
+        }
+    }
+
+    private StatementCache borrowReader() throws SQLException {
+        Lease current = lease.get();
+        if(current == null) {
+            try {
+                current = new Lease(idleReaders.takeFirst());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a reader");
+            }
+            lease.set(current);
+        }
+        current.depth++;
+        return current.reader;
+    }
+
+    private void returnReader() {
+        final Lease current = lease.get();
+        if(--current.depth == 0) {
+            lease.remove();
+            idleReaders.addFirst(current.reader);
+        }
+    }
+
+    /**
+     * Begin a transaction on the writer.
+     *
+     * Transactions nest: an inner transaction is a savepoint of
+     * the outer one, and only the outermost one commits.
+     */
+    @Override
+    public Transaction begin() throws SQLException {
+        writeLock.lock();
+        final Transaction transaction = new Transaction(transactions.size());
+        try {
+            if(transaction.depth > 0)
+                savepoint("SAVEPOINT");
+        } catch (SQLException e) {
+            writeLock.unlock();
+            throw e;
+        }
+        transactions.push(transaction);
+        return transaction;
+    }
+
+    private void savepoint(String command) throws SQLException {
+        writer.with(command + " nested" + transactions.size(),
+                    stmt -> stmt.execute());
+    }
+
+    @Override
+    public void beforeCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().prepared.add(action);
+        else
+            action.run();
+    }
+
+    @Override
+    public void onCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().held.add(action);
+        else
+            action.run();
+    }
+
+    /**
+     * Run an action once the current transaction is committed, or
+     * right away if the current thread is not in a transaction.
+     * The action is dropped if the transaction is rolled back.
+     */
+    @Override
+    public void afterCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().committed.add(action);
+        else
+            action.run();
+    }
+
+    @Override
+    public void onRollback(Runnable undo) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().rolledBack.add(undo);
+    }
+
+    /**
+     * A transaction on the writer connection. Closing a transaction
+     * which has not been committed rolls it back.
+     */
+    public final class Transaction implements Transactions.Transaction {
+        private final int depth;
+        private final ArrayList<Runnable> prepared = new ArrayList<>();
+        private final ArrayList<Runnable> held = new ArrayList<>();
+        private final ArrayList<Runnable> committed = new ArrayList<>();
+        private final ArrayList<Runnable> rolledBack = new ArrayList<>();
+        private boolean done = false;
+
+        private Transaction(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            if(done)
+                throw new SQLException("Transaction already finished");
+            done = true;
+            try {
+                if(depth > 0) {
+                    transactions.pop();
+                    savepoint("RELEASE");
+                    transactions.peek().prepared.addAll(prepared);
+                    transactions.peek().held.addAll(held);
+                    transactions.peek().committed.addAll(committed);
+                    transactions.peek().rolledBack.addAll(rolledBack);
+                } else {
+                    try {
+                        // Still the current transaction, so that these
+                        // can register undo and after-commit actions.
+                        for(int i = 0; i < prepared.size(); ++i)
+                            prepared.get(i).run();
+                        transactions.pop();
+                        writer.connection.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        if(transactions.peek() == this)
+                            transactions.pop();
+                        writer.connection.rollback();
+                        undo();
+                        if(e instanceof SQLException)
+                            throw (SQLException)e;
+                        throw new SQLException("Could not commit the transaction", e);
+                    }
+                    for(Runnable action : held)
+                        action.run();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if(depth == 0) {
+                for(Runnable action : committed)
+                    action.run();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if(done)
+                return;
+            done = true;
+            transactions.pop();
+            try {
+                if(depth > 0) {
+                    savepoint("ROLLBACK TO");
+                    savepoint("RELEASE");
+                } else {
+                    writer.connection.rollback();
+                }
+            } finally {
+                try {
+                    undo();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+
+        /* Run the undo actions, newest first, while still holding
+         * the writer.
+         */
+        private void undo() {
+            for(int i = rolledBack.size() - 1; i >= 0; --i)
+                rolledBack.get(i).run();
+        }
+    }
+
+    /**
+     * Number of statements reused across all connections.
+     */
+    public long statementHits() {
+        long hits = writer.hits();
+        for(StatementCache reader : readers)
+            hits += reader.hits();
+        return hits;
+    }
+
+    /**
+     * Number of statements prepared across all connections.
+     */
+    public long statementMisses() {
+        long misses = writer.misses();
+        for(StatementCache reader : readers)
+            misses += reader.misses();
+        return misses;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        writer.close();
+        writer.connection.close();
+        for(StatementCache reader : readers) {
+            reader.close();
+            reader.connection.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package inf226.storage;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * How identities and times are kept in the database.
+ *
+ * The text format keeps UUIDs and Instants as strings. The binary
+ * format keeps UUIDs as 16 byte blobs and Instants as integer
+ * microseconds since the epoch, which are smaller and do not have
+ * to be parsed when read.
+ */
+public enum Format {
+    text("TEXT", "TEXT") {
+        @Override
+        public void setUUID(PreparedStatement stmt, int index, UUID id)
+            throws SQLException {
+            stmt.setString(index, id.toString());
+        }
+
+        @Override
+        public UUID getUUID(ResultSet rs, String column)
+            throws SQLException {
+            return UUID.fromString(rs.getString(column));
+        }
+
+        @Override
+        public void setInstant(PreparedStatement stmt, int index, Instant time)
+            throws SQLException {
+            stmt.setString(index, time.toString());
+        }
+
+        @Override
+        public Instant getInstant(ResultSet rs, String column)
+            throws SQLException {
+            return Instant.parse(rs.getString(column));
+        }
+    },
+    binary("BLOB", "INTEGER") {
+        @Override
+        public void setUUID(PreparedStatement stmt, int index, UUID id)
+            throws SQLException {
+            stmt.setBytes(index, bytes(id));
+        }
+
+        @Override
+        public UUID getUUID(ResultSet rs, String column)
+            throws SQLException {
+            return uuid(rs.getBytes(column));
+        }
+
+        @Override
+        public void setInstant(PreparedStatement stmt, int index, Instant time)
+            throws SQLException {
+            stmt.setLong(index, micros(time));
+        }
+
+        @Override
+        public Instant getInstant(ResultSet rs, String column)
+            throws SQLException {
+            return instant(rs.getLong(column));
+        }
+    };
+
+    /**
+     * The column types for identities and for times.
+     */
+    public final String uuid;
+    public final String time;
+
+    Format(String uuid, String time) {
+        this.uuid = uuid;
+        this.time = time;
+    }
+
+    public abstract void setUUID(PreparedStatement stmt, int index, UUID id)
+        throws SQLException;
+    public abstract UUID getUUID(ResultSet rs, String column)
+        throws SQLException;
+    public abstract void setInstant(PreparedStatement stmt, int index, Instant time)
+        throws SQLException;
+    public abstract Instant getInstant(ResultSet rs, String column)
+        throws SQLException;
+
+    static byte[] bytes(UUID id) {
+        return ByteBuffer.allocate(16)
+                         .putLong(id.getMostSignificantBits())
+                         .putLong(id.getLeastSignificantBits())
+                         .array();
+    }
+
+    static UUID uuid(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static long micros(Instant time) {
+        return Math.addExact(Math.multiplyExact(time.getEpochSecond(), 1000000L),
+                             time.getNano() / 1000);
+    }
+
+    static Instant instant(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L),
+                                     Math.floorMod(micros, 1000000L) * 1000);
+    }
+}
@@ -0,0 +1,142 @@
+package inf226.storage;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A write pipeline which commits queued writes in batches.
+ *
+ * Writes are run by a single thread, each in its own savepoint of
+ * a shared transaction. The transaction is committed when the batch
+ * is full, or when the batch window has passed since its first
+ * write, so that one commit is paid for many writes. A write which
+ * fails is rolled back on its own without affecting the others.
+ */
+public final class GroupCommit implements AutoCloseable {
+    private final Transactions connections;
+    private final int batchSize;
+    private final long windowNanos;
+    private final LinkedBlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    private static final class Write<T> {
+        final Callable<T> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T result;
+        Exception failure;
+
+        Write(Callable<T> operation) {
+            this.operation = operation;
+        }
+
+        void run() {
+            try {
+                result = operation.call();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if(failure == null)
+                future.complete(result);
+            else
+                future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Start a write pipeline.
+     *
+     * @param connections The connections to write through.
+     * @param batchSize   The maximum number of writes per commit.
+     * @param windowMillis How long a batch waits for more writes.
+     */
+    public GroupCommit(Transactions connections, int batchSize, long windowMillis) {
+        this.connections = connections;
+        this.batchSize = Math.max(1, batchSize);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.worker = new Thread(this::drain, "group-commit");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queue a write.
+     *
+     * @return A future which completes with the result of the write
+     *         once it has been committed, or with its exception.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> operation) {
+        final Write<T> write = new Write<T>(operation);
+        queue.add(write);
+        // The worker may have stopped before seeing this write.
+        if(closed && queue.remove(write))
+            write.future.completeExceptionally(new SQLException("Write pipeline is closed"));
+        return write.future;
+    }
+
+    private void drain() {
+        final ArrayList<Write<?>> batch = new ArrayList<>();
+        while(!closed || !queue.isEmpty()) {
+            try {
+                final Write<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                    continue;
+                batch.add(first);
+                final long deadline = System.nanoTime() + windowNanos;
+                while(batch.size() < batchSize) {
+                    final Write<?> next =
+                        queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Closing: commit what we have.
+            }
+            if(!batch.isEmpty())
+                commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(ArrayList<Write<?>> batch) {
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            for(Write<?> write : batch) {
+                try (final Transactions.Transaction savepoint = connections.begin()) {
+                    write.run();
+                    if(write.failure == null)
+                        savepoint.commit();
+                }
+            }
+            transaction.commit();
+        } catch (SQLException e) {
+            for(Write<?> write : batch)
+                write.future.completeExceptionally(e);
+            return;
+        }
+        for(Write<?> write : batch)
+            write.complete();
+    }
+
+    /**
+     * Stop accepting writes, and wait for the queued ones to be
+     * committed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
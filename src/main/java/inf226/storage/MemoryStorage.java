@@ -0,0 +1,164 @@
+package inf226.storage;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import inf226.util.immutable.List;
+
+/**
+ * A storage which keeps its objects in a concurrent map.
+ *
+ * Updates and deletes check the version of the object, just as the
+ * SQL storages do. Every change is made in a transaction, so that it
+ * is undone if an enclosing transaction, such as a UnitOfWork, is
+ * rolled back.
+ *
+ * Subclasses keep their indices up to date in changed(), and fill in
+ * the parts of an object kept by other storages in resolve().
+ */
+public class MemoryStorage<T> implements Storage<T,SQLException> {
+    protected final MemoryTransactions transactions;
+    private final ConcurrentHashMap<UUID,Stored<T>> objects
+        = new ConcurrentHashMap<>();
+
+    public MemoryStorage(MemoryTransactions transactions) {
+        this.transactions = transactions;
+    }
+
+    @Override
+    public Stored<T> save(T value) throws SQLException {
+        final Stored<T> stored = new Stored<T>(value);
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            replace(null, stored);
+            transaction.commit();
+        }
+        return stored;
+    }
+
+    @Override
+    public List<Stored<T>> saveAll(Collection<T> values) throws SQLException {
+        final List.Builder<Stored<T>> stored = List.builder();
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            for(T value : values) {
+                final Stored<T> s = new Stored<T>(value);
+                replace(null, s);
+                stored.accept(s);
+            }
+            transaction.commit();
+        }
+        return stored.getList().reverse();
+    }
+
+    @Override
+    public Stored<T> update(Stored<T> object, T new_object)
+        throws UpdatedException, DeletedException, SQLException {
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            final Stored<T> current = current(object.identity);
+            if(!current.version.equals(object.version))
+                throw new UpdatedException(resolve(current));
+            final Stored<T> updated = object.newVersion(new_object);
+            replace(current, updated);
+            transaction.commit();
+            return updated;
+        }
+    }
+
+    @Override
+    public void delete(Stored<T> object)
+        throws UpdatedException, DeletedException, SQLException {
+        try (final MemoryTransactions.Transaction transaction = transactions.begin()) {
+            final Stored<T> current = current(object.identity);
+            if(!current.version.equals(object.version))
+                throw new UpdatedException(resolve(current));
+            replace(current, null);
+            transaction.commit();
+        }
+    }
+
+    @Override
+    public Stored<T> get(UUID id) throws DeletedException, SQLException {
+        return resolve(current(id));
+    }
+
+    @Override
+    public Map<UUID,Stored<T>> getAll(Collection<UUID> ids) throws SQLException {
+        final Map<UUID,Stored<T>> result = new HashMap<>();
+        for(UUID id : ids) {
+            final Stored<T> stored = objects.get(id);
+            if(stored == null)
+                continue;
+            try {
+                result.put(id, resolve(stored));
+            } catch (DeletedException e) {
+                // Something it refers to is gone.
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the current version of an object.
+     */
+    public UUID getCurrentVersion(UUID id) throws DeletedException {
+        return current(id).version;
+    }
+
+    /**
+     * The object as it is kept, before it is resolved.
+     */
+    protected Stored<T> current(UUID id) throws DeletedException {
+        final Stored<T> stored = objects.get(id);
+        if(stored == null)
+            throw new DeletedException();
+        return stored;
+    }
+
+    /**
+     * All the objects as they are kept.
+     */
+    protected Collection<Stored<T>> values() {
+        return Collections.unmodifiableCollection(objects.values());
+    }
+
+    /**
+     * Replace one version of an object by another. Must be called
+     * inside a transaction.
+     *
+     * @param before The version being replaced, or null for a save.
+     * @param after  The new version, or null for a delete.
+     */
+    protected void replace(Stored<T> before, Stored<T> after) {
+        put(before, after);
+        transactions.onRollback(() -> put(after, before));
+    }
+
+    private void put(Stored<T> before, Stored<T> after) {
+        if(after == null)
+            objects.remove(before.identity);
+        else
+            objects.put(after.identity, after);
+        changed(before, after);
+    }
+
+    /**
+     * Called when an object has been replaced, with null standing
+     * for no object.
+     */
+    protected void changed(Stored<T> before, Stored<T> after) {
+    }
+
+    /**
+     * Complete an object before it is handed out.
+     *
+     * @throws DeletedException If an object it refers to is gone.
+     */
+    protected Stored<T> resolve(Stored<T> stored)
+        throws DeletedException, SQLException {
+        return stored;
+    }
+}
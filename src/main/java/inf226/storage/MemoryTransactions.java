@@ -0,0 +1,134 @@
+package inf226.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transactions over storages kept in memory.
+ *
+ * As with the ConnectionManager, there is one writer at a time,
+ * while reads do not wait. A change made inside a transaction
+ * registers how to undo it, and the undo actions are run, newest
+ * first, if the transaction is rolled back.
+ *
+ * Unlike SQLite, readers can see changes which have not been
+ * committed yet.
+ */
+public final class MemoryTransactions implements Transactions {
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /* The open transactions of the thread holding writeLock,
+     * innermost first.
+     */
+    private final ArrayDeque<Transaction> transactions = new ArrayDeque<>();
+
+    @Override
+    public Transaction begin() {
+        writeLock.lock();
+        final Transaction transaction = new Transaction(transactions.size());
+        transactions.push(transaction);
+        return transaction;
+    }
+
+    @Override
+    public void beforeCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().prepared.add(action);
+        else
+            action.run();
+    }
+
+    @Override
+    public void onCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().held.add(action);
+        else
+            action.run();
+    }
+
+    @Override
+    public void afterCommit(Runnable action) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().committed.add(action);
+        else
+            action.run();
+    }
+
+    @Override
+    public void onRollback(Runnable undo) {
+        if(writeLock.isHeldByCurrentThread())
+            transactions.peek().undo.add(undo);
+    }
+
+    public final class Transaction implements Transactions.Transaction {
+        private final int depth;
+        private final ArrayList<Runnable> prepared = new ArrayList<>();
+        private final ArrayList<Runnable> held = new ArrayList<>();
+        private final ArrayList<Runnable> committed = new ArrayList<>();
+        private final ArrayList<Runnable> undo = new ArrayList<>();
+        private boolean done = false;
+
+        private Transaction(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        public void commit() {
+            if(done)
+                throw new IllegalStateException("Transaction already finished");
+            done = true;
+            if(depth == 0) {
+                try {
+                    for(int i = 0; i < prepared.size(); ++i)
+                        prepared.get(i).run();
+                } catch (RuntimeException e) {
+                    transactions.pop();
+                    try {
+                        rollback();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    throw e;
+                }
+            }
+            transactions.pop();
+            if(depth > 0) {
+                transactions.peek().prepared.addAll(prepared);
+                transactions.peek().held.addAll(held);
+                transactions.peek().committed.addAll(committed);
+                transactions.peek().undo.addAll(undo);
+            }
+            try {
+                if(depth == 0) {
+                    for(Runnable action : held)
+                        action.run();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if(depth == 0) {
+                for(Runnable action : committed)
+                    action.run();
+            }
+        }
+
+        @Override
+        public void close() {
+            if(done)
+                return;
+            done = true;
+            transactions.pop();
+            try {
+                rollback();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void rollback() {
+            for(int i = undo.size() - 1; i >= 0; --i)
+                undo.get(i).run();
+        }
+    }
+}
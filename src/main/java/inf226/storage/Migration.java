@@ -0,0 +1,15 @@
+package inf226.storage;
+
+import java.sql.SQLException;
+
+/**
+ * A Migration is one step in the evolution of a database schema.
+ */
+@FunctionalInterface
+public interface Migration {
+    /**
+     * Apply this step. It is run inside a transaction, and
+     * only once for each database.
+     */
+    public void apply(ConnectionManager connections) throws SQLException;
+}
@@ -0,0 +1,131 @@
+package inf226.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Migrator brings a database schema up to date by applying
+ * ordered migrations. The version of the schema is kept in the
+ * SchemaVersion table, so each migration runs once per database.
+ */
+public final class Migrator {
+    private final ConnectionManager connections;
+    private final TreeMap<Integer,Migration> migrations = new TreeMap<Integer,Migration>();
+    private final Map<Integer,String> descriptions = new TreeMap<Integer,String>();
+
+    public Migrator(ConnectionManager connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Add a migration.
+     *
+     * @param version     The schema version after the migration.
+     * @param description What the migration does.
+     */
+    public Migrator add(int version, String description, Migration migration) {
+        if(migrations.containsKey(version))
+            throw new IllegalArgumentException("Duplicate migration version: " + version);
+        migrations.put(version, migration);
+        descriptions.put(version, description);
+        return this;
+    }
+
+    /**
+     * Get the version of the schema in the database.
+     */
+    public int version() throws SQLException {
+        connections.execute("CREATE TABLE IF NOT EXISTS SchemaVersion (version INTEGER PRIMARY KEY, description TEXT, applied TEXT)");
+        return connections.read("SELECT MAX(version) AS version FROM SchemaVersion", stmt -> {
+            try (final ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt("version") : 0;
+            }
+        });
+    }
+
+    /**
+     * Apply the pending migrations in order, each in its own
+     * transaction.
+     *
+     * @return The version of the schema after migrating.
+     */
+    public int migrate() throws SQLException {
+        int current = version();
+        for(Map.Entry<Integer,Migration> entry : migrations.tailMap(current, false).entrySet()) {
+            final int version = entry.getKey();
+            try (final ConnectionManager.Transaction transaction = connections.begin()) {
+                entry.getValue().apply(connections);
+                connections.write("INSERT INTO SchemaVersion VALUES(?,?,?)", stmt -> {
+                    stmt.setInt(1, version);
+                    stmt.setString(2, descriptions.get(version));
+                    stmt.setString(3, Instant.now().toString());
+                    return stmt.executeUpdate();
+                });
+                transaction.commit();
+            }
+            System.err.println("Migrated schema to version " + version + ": " + descriptions.get(version));
+            current = version;
+        }
+        return current;
+    }
+
+    /**
+     * A migration which adds a column to a table, unless the table
+     * already has it.
+     */
+    public static Migration addColumn(String table, String column, String type) {
+        return connections -> {
+            final boolean exists = connections.read("PRAGMA table_info(" + table + ")", stmt -> {
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        if(rs.getString("name").equalsIgnoreCase(column))
+                            return true;
+                    }
+                }
+                return false;
+            });
+            if(!exists)
+                connections.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        };
+    }
+
+    /**
+     * A migration which creates an index, unless its table does not
+     * exist, as in a database which holds only some of the storages.
+     */
+    public static Migration createIndex(String name, String table, String columns) {
+        return connections -> {
+            final boolean exists = connections.read("SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?", stmt -> {
+                stmt.setString(1, table);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() && rs.getInt(1) > 0;
+                }
+            });
+            if(exists)
+                connections.execute("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + "(" + columns + ")");
+        };
+    }
+
+    /**
+     * A migration made of several steps.
+     */
+    public static Migration all(Migration... steps) {
+        return connections -> {
+            for(Migration step : steps)
+                step.apply(connections);
+        };
+    }
+
+    /**
+     * A migration which executes some SQL statements.
+     */
+    public static Migration execute(String... sql) {
+        return connections -> {
+            for(String statement : sql)
+                connections.execute(statement);
+        };
+    }
+}
@@ -0,0 +1,165 @@
+package inf226.storage;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How to retry an update which conflicts with a concurrent update
+ * of the same object.
+ *
+ * The first retry is made at once, since the conflict is often just
+ * a stale copy. Later retries wait a random time up to a delay which
+ * doubles with each attempt, so that writers which collided spread
+ * out instead of colliding again. When the attempts or the time run
+ * out, the last UpdatedException is thrown.
+ *
+ * Conflicts, retries and failures are counted per storage.
+ */
+public final class RetryPolicy {
+    public final int attempts;
+    public final Duration baseDelay;
+    public final Duration maxDelay;
+    public final Duration timeout;
+
+    /**
+     * The policy configured by the system properties
+     * inchat.retry.attempts, and inchat.retry.base, inchat.retry.max
+     * and inchat.retry.timeout in milliseconds.
+     */
+    public static final RetryPolicy standard = new RetryPolicy(
+        Integer.getInteger("inchat.retry.attempts", 10),
+        Duration.ofMillis(Long.getLong("inchat.retry.base", 1)),
+        Duration.ofMillis(Long.getLong("inchat.retry.max", 100)),
+        Duration.ofMillis(Long.getLong("inchat.retry.timeout", 2000)));
+
+    private static final ConcurrentHashMap<String,Counters> counters
+        = new ConcurrentHashMap<>();
+
+    /**
+     * @param attempts  The maximum number of attempts, including the first.
+     * @param baseDelay The longest wait before the second retry.
+     * @param maxDelay  The longest wait before any retry.
+     * @param timeout   The longest time to spend retrying.
+     */
+    public RetryPolicy(int attempts, Duration baseDelay, Duration maxDelay, Duration timeout) {
+        if(attempts < 1)
+            throw new IllegalArgumentException("A retry policy needs at least one attempt");
+        this.attempts = attempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Conflict counters for one storage.
+     */
+    public static final class Counters {
+        private final LongAdder conflicts = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * Number of updates refused because of a newer version.
+         */
+        public long conflicts() { return conflicts.sum(); }
+
+        /**
+         * Number of updates attempted again after a conflict.
+         */
+        public long retries() { return retries.sum(); }
+
+        /**
+         * Number of updates given up after running out of attempts or time.
+         */
+        public long failures() { return failures.sum(); }
+
+        @Override
+        public String toString() {
+            return "(conflicts=" + conflicts + ", retries=" + retries
+                + ", failures=" + failures + ")";
+        }
+    }
+
+    /**
+     * The counters of a storage.
+     */
+    public static Counters counters(String storage) {
+        return counters.computeIfAbsent(storage, name -> new Counters());
+    }
+
+    /**
+     * The counters of all storages which have been updated.
+     */
+    public static Map<String,Counters> counters() {
+        return Collections.unmodifiableMap(new TreeMap<String,Counters>(counters));
+    }
+
+    /**
+     * Start retrying an update of an object in a storage.
+     */
+    public Attempts begin(String storage) {
+        return new Attempts(counters(storage));
+    }
+
+    /**
+     * The attempts at one update.
+     */
+    public final class Attempts {
+        private final Counters counters;
+        private final long deadline;
+        private int attempt = 1;
+
+        private Attempts(Counters counters) {
+            this.counters = counters;
+            this.deadline = System.nanoTime() + timeout.toNanos();
+        }
+
+        /**
+         * Record a conflict, and wait until the next attempt.
+         *
+         * @throws UpdatedException The conflict, if there are no
+         *         attempts or time left.
+         */
+        public void conflict(UpdatedException e) throws UpdatedException {
+            counters.conflicts.increment();
+            final long delay = delay(attempt);
+            if(attempt >= attempts || System.nanoTime() + delay > deadline) {
+                counters.failures.increment();
+                throw e;
+            }
+            ++attempt;
+            counters.retries.increment();
+            if(delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    counters.failures.increment();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /* The wait in nanoseconds after the given failed attempt.
+     */
+    private long delay(int attempt) {
+        if(attempt <= 1)
+            return 0;
+        final long cap = Math.min(maxDelay.toNanos(),
+                                  baseDelay.toNanos() << Math.min(attempt - 2, 30));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy(attempts=" + attempts + ", base=" + baseDelay
+            + ", max=" + maxDelay + ", timeout=" + timeout + ")";
+    }
+}
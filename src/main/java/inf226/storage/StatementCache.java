@@ -0,0 +1,144 @@
+package inf226.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of prepared statements for one connection, keyed by
+ * their SQL text.
+ *
+ * A statement is lent to one user at a time, so two threads never
+ * bind parameters on the same statement. Idle statements are kept
+ * in least-recently-used order, and the oldest one is closed when
+ * the cache grows beyond its capacity.
+ */
+public final class StatementCache implements AutoCloseable {
+    public final Connection connection;
+    private final int capacity;
+    private final LinkedHashMap<String,PreparedStatement> idle;
+    private boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Use of a borrowed statement.
+     */
+    @FunctionalInterface
+    public interface Use<T, X extends Exception> {
+        T apply(PreparedStatement stmt) throws SQLException, X;
+    }
+
+    /**
+     * Create a statement cache.
+     *
+     * @param connection The connection to prepare statements on.
+     * @param capacity   The maximum number of idle statements kept.
+     */
+    public StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.idle = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Borrow the statement for some SQL, use it, and give it back.
+     *
+     * Result sets opened by use should be closed before it returns.
+     */
+    public <T, X extends Exception> T with(String sql, Use<T,X> use)
+        throws SQLException, X {
+        final PreparedStatement stmt = acquire(sql);
+        try {
+            return use.apply(stmt);
+        } finally {
+            release(sql, stmt);
+        }
+    }
+
+    /**
+     * Execute a one-off statement, such as a table definition,
+     * without caching it.
+     */
+    public void execute(String sql) throws SQLException {
+        try (final Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    private PreparedStatement acquire(String sql) throws SQLException {
+        synchronized(idle) {
+            if(closed)
+                throw new SQLException("Statement cache is closed");
+            final PreparedStatement stmt = idle.remove(sql);
+            if(stmt != null) {
+                hits.incrementAndGet();
+                return stmt;
+            }
+        }
+        misses.incrementAndGet();
+        return connection.prepareStatement(sql);
+    }
+
+    private void release(String sql, PreparedStatement stmt) throws SQLException {
+        stmt.clearParameters();
+        synchronized(idle) {
+            // Keep only one idle statement for each SQL text.
+            if(closed || idle.containsKey(sql)) {
+                stmt.close();
+                return;
+            }
+            idle.put(sql, stmt);
+            final Iterator<Map.Entry<String,PreparedStatement>> eldest
+                = idle.entrySet().iterator();
+            while(idle.size() > capacity) {
+                final PreparedStatement evicted = eldest.next().getValue();
+                eldest.remove();
+                evictions.incrementAndGet();
+                evicted.close();
+            }
+        }
+    }
+
+    /**
+     * Number of times a statement was reused.
+     */
+    public long hits() { return hits.get(); }
+
+    /**
+     * Number of times a statement had to be prepared.
+     */
+    public long misses() { return misses.get(); }
+
+    /**
+     * Number of idle statements closed to stay within capacity.
+     */
+    public long evictions() { return evictions.get(); }
+
+    /**
+     * Close all idle statements. Statements which are borrowed
+     * are closed when they are given back.
+     */
+    @Override
+    public void close() throws SQLException {
+        synchronized(idle) {
+            closed = true;
+            for(PreparedStatement stmt : idle.values())
+                stmt.close();
+            idle.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache(hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + ")";
+    }
+}
@@ -3,15 +3,19 @@ package inf226.storage;
 import java.util.function.Consumer;
 import inf226.storage.*;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
+import inf226.util.immutable.List;
+
 /**
  * This provides an interface for an object storage
  * which implements transactional updating of objects.
  *
- * The main limitation of this interface is that you
- * cannot combine updates of several objects into one
- * transaction.
+ * Each call is a transaction of its own. To combine
+ * updates of several objects into one transaction, use
+ * a UnitOfWork.
  **/
 public interface Storage<T,E extends Exception> {
 
@@ -44,4 +48,25 @@ public interface Storage<T,E extends Exception> {
     **/
     public Stored<T> get(UUID id) throws DeletedException,E;
 
+   /**
+    * Get many stored objects at once.
+    *
+    * Objects which have been deleted are left out of the result.
+    **/
+    public Map<UUID,Stored<T>> getAll(Collection<UUID> ids) throws E;
+
+   /**
+    * Save many new objects at once.
+    *
+    * @return The stored objects, in the order of the values.
+    **/
+    public List<Stored<T>> saveAll(Collection<T> values) throws E;
+
+   /**
+    * The name of the storage, used for its conflict counters.
+    **/
+    public default String name() {
+        return getClass().getSimpleName();
+    }
+
 }
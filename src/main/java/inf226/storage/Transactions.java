@@ -0,0 +1,62 @@
+package inf226.storage;
+
+import java.sql.SQLException;
+
+/**
+ * Something which runs transactions over storages, such as the
+ * ConnectionManager of an SQL database.
+ */
+public interface Transactions {
+
+    /**
+     * Begin a transaction.
+     *
+     * Transactions nest: an inner transaction can be rolled back on
+     * its own, and only the outermost one commits.
+     */
+    public Transaction begin() throws SQLException;
+
+    /**
+     * Run an action just before the outermost transaction commits,
+     * while still holding the writer, or right away if the current
+     * thread is not in a transaction. If the action throws, the
+     * transaction is rolled back instead. The action is dropped if
+     * the transaction is rolled back.
+     */
+    public void beforeCommit(Runnable action);
+
+    /**
+     * Run an action right after the outermost transaction commits,
+     * while still holding the writer, or right away if the current
+     * thread is not in a transaction. The commit cannot be undone by
+     * then, so the action should not fail. The action is dropped if
+     * the transaction is rolled back.
+     */
+    public void onCommit(Runnable action);
+
+    /**
+     * Run an action once the current transaction is committed, or
+     * right away if the current thread is not in a transaction.
+     * The action is dropped if the transaction is rolled back.
+     */
+    public void afterCommit(Runnable action);
+
+    /**
+     * Run an action if the current transaction is rolled back, to
+     * undo a change made outside of the transaction itself. Actions
+     * run newest first. Outside of a transaction the action is
+     * dropped, since there is nothing to roll back.
+     */
+    public void onRollback(Runnable undo);
+
+    /**
+     * A transaction. Closing a transaction which has not been
+     * committed rolls it back.
+     */
+    public interface Transaction extends AutoCloseable {
+        public void commit() throws SQLException;
+
+        @Override
+        public void close() throws SQLException;
+    }
+}
@@ -0,0 +1,172 @@
+package inf226.storage;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import inf226.util.Mutable;
+import inf226.util.immutable.List;
+
+/**
+ * A unit of work collects saves, updates and deletes across several
+ * storages, and commits them together in one transaction.
+ *
+ * Nothing is written until commit(). The changes are then made in
+ * the order they were added, and consecutive saves to the same
+ * storage are sent as one batch. Updates and deletes still check
+ * the version of their object, so an UpdatedException from commit()
+ * means that nothing was written and the work should be redone.
+ *
+ * The result of each change is available from its Pending once the
+ * unit has been committed, and can be used by later changes in the
+ * same unit through a Supplier or Function.
+ */
+public final class UnitOfWork {
+    private final Transactions connections;
+    private final ArrayList<Step> steps = new ArrayList<>();
+    private boolean committed = false;
+
+    /**
+     * The result of a change, available when it has been made.
+     */
+    public static final class Pending<T> {
+        private T value = null;
+        private boolean done = false;
+
+        private void set(T value) {
+            this.value = value;
+            this.done = true;
+        }
+
+        public T get() {
+            if(!done)
+                throw new IllegalStateException("The unit of work has not been committed");
+            return value;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void run() throws UpdatedException, DeletedException, SQLException;
+    }
+
+    /* A save of a known value, which can be batched with the saves
+     * to the same storage that follow it.
+     */
+    private static final class Save<T> implements Step {
+        final Storage<T,SQLException> storage;
+        final T value;
+        final Pending<Stored<T>> result = new Pending<>();
+
+        Save(Storage<T,SQLException> storage, T value) {
+            this.storage = storage;
+            this.value = value;
+        }
+
+        @Override
+        public void run() throws SQLException {
+            result.set(storage.save(value));
+        }
+    }
+
+    public UnitOfWork(Transactions connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Save a new object.
+     */
+    public <T> Pending<Stored<T>> save(Storage<T,SQLException> storage, T value) {
+        final Save<T> save = new Save<T>(storage, value);
+        add(save);
+        return save.result;
+    }
+
+    /**
+     * Save a new object which depends on earlier changes in the unit.
+     */
+    public <T> Pending<Stored<T>> saveDeferred(Storage<T,SQLException> storage, Supplier<T> value) {
+        final Pending<Stored<T>> result = new Pending<>();
+        add(() -> result.set(storage.save(value.get())));
+        return result;
+    }
+
+    /**
+     * Update an object, which must still be at its version when
+     * the unit is committed.
+     */
+    public <T> Pending<Stored<T>> update(Storage<T,SQLException> storage,
+                                         Stored<T> object,
+                                         Function<Stored<T>,T> change) {
+        final Pending<Stored<T>> result = new Pending<>();
+        add(() -> result.set(storage.update(object, change.apply(object))));
+        return result;
+    }
+
+    /**
+     * Delete an object, which must still be at its version when
+     * the unit is committed.
+     */
+    public <T> void delete(Storage<T,SQLException> storage, Stored<T> object) {
+        add(() -> storage.delete(object));
+    }
+
+    private void add(Step step) {
+        if(committed)
+            throw new IllegalStateException("The unit of work has already been committed");
+        steps.add(step);
+    }
+
+    /**
+     * Make all the changes in one transaction.
+     */
+    public void commit()
+        throws UpdatedException, DeletedException, SQLException {
+        if(committed)
+            throw new IllegalStateException("The unit of work has already been committed");
+        committed = true;
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            for(int i = 0; i < steps.size(); ) {
+                final int end = batchEnd(i);
+                if(end - i > 1)
+                    saveAll(i, end);
+                else
+                    steps.get(i).run();
+                i = end;
+            }
+            transaction.commit();
+        }
+    }
+
+    /* The end of the run of saves to one storage starting at i.
+     */
+    private int batchEnd(int i) {
+        int end = i + 1;
+        if(steps.get(i) instanceof Save) {
+            final Storage<?,?> storage = ((Save<?>)steps.get(i)).storage;
+            while(end < steps.size()
+                  && steps.get(end) instanceof Save
+                  && ((Save<?>)steps.get(end)).storage == storage)
+                ++end;
+        }
+        return end;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void saveAll(int start, int end) throws SQLException {
+        final ArrayList<Save<T>> saves = new ArrayList<>();
+        final ArrayList<T> values = new ArrayList<>();
+        for(int i = start; i < end; ++i) {
+            final Save<T> save = (Save<T>)steps.get(i);
+            saves.add(save);
+            values.add(save.value);
+        }
+        final List<Stored<T>> stored = saves.get(0).storage.saveAll(values);
+        final Mutable<Integer> index = new Mutable<Integer>(0);
+        stored.forEach(s -> {
+            saves.get(index.get()).result.set(s);
+            index.accept(index.get() + 1);
+        });
+    }
+}
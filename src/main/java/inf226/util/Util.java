@@ -22,28 +22,61 @@ public class Util {
         return result.getMaybe();
     }
 
-   
+
+    /**
+     * Update an object, redoing the update on the newest version
+     * whenever it conflicts, as the standard RetryPolicy allows.
+     *
+     * @throws UpdatedException If the update still conflicts when
+     *         the policy runs out of attempts or time.
+     */
     public static<A,Q, E extends Exception>
         Stored<A> updateSingle(Stored<A> stored,
                                 Storage<A,E> storage,
                                 Function<Stored<A>,A> update)
-            throws E, DeletedException {
-        boolean updated = true;
+            throws E, UpdatedException, DeletedException {
+        return updateSingle(stored, storage, update, RetryPolicy.standard);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static<A,Q, E extends Exception>
+        Stored<A> updateSingle(Stored<A> stored,
+                                Storage<A,E> storage,
+                                Function<Stored<A>,A> update,
+                                RetryPolicy policy)
+            throws E, UpdatedException, DeletedException {
+        final RetryPolicy.Attempts attempts = policy.begin(storage.name());
         while(true) {
             try {
                 return storage.update(stored,update.apply(stored));
             } catch (UpdatedException e) {
+                attempts.conflict(e);
                 stored = (Stored<A>)e.newObject;
             }
         }
     }
-    
+
+    /**
+     * Delete an object, whichever version it is at, as the
+     * standard RetryPolicy allows.
+     */
     public static<A,Q, E extends Exception> void deleteSingle(Stored<A> stored, Storage<A,E> storage)
-        throws E {
+        throws E, UpdatedException {
+        deleteSingle(stored, storage, RetryPolicy.standard);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static<A,Q, E extends Exception> void deleteSingle(Stored<A> stored,
+                                                              Storage<A,E> storage,
+                                                              RetryPolicy policy)
+        throws E, UpdatedException {
+        final RetryPolicy.Attempts attempts = policy.begin(storage.name());
         while(true) {
             try {
                 storage.delete(stored);
+                return;
             } catch (UpdatedException e) {
+                attempts.conflict(e);
                 stored = (Stored<A>)e.newObject;
             } catch (DeletedException e) {
                 return;
@@ -51,4 +84,3 @@ public class Util {
         }
     }
 }
-
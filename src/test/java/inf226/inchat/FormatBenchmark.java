@@ -0,0 +1,91 @@
+package inf226.inchat;
+
+import inf226.storage.ConnectionManager;
+import inf226.storage.Format;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Compare the cost of reading rows of identities and times in
+ * the text and binary formats.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=inf226.inchat.FormatBenchmark
+ */
+public class FormatBenchmark {
+    private static final int rows = 100000;
+    private static final int rounds = 20;
+
+    public static void main(String[] args) throws SQLException {
+        for(Format format : Format.values())
+            run(format);
+    }
+
+    private static void run(Format format) throws SQLException {
+        final File file = new File("bench-" + format + "-" + UUID.randomUUID() + ".db");
+        try (final ConnectionManager connections
+                 = new ConnectionManager("jdbc:sqlite:" + file, 1, 16, format)) {
+            connections.execute("CREATE TABLE Bench (id " + format.uuid + " PRIMARY KEY, version "
+                                + format.uuid + ", time " + format.time + ")");
+            connections.write("INSERT INTO Bench VALUES(?,?,?)", stmt -> {
+                for(int i = 0; i < rows; ++i) {
+                    format.setUUID(stmt, 1, UUID.randomUUID());
+                    format.setUUID(stmt, 2, UUID.randomUUID());
+                    format.setInstant(stmt, 3, Instant.now());
+                    stmt.addBatch();
+                }
+                return stmt.executeBatch();
+            });
+            final long size = connections.read(
+                "SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()", stmt -> {
+                    try (final ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                        return rs.getLong(1);
+                    }
+                });
+
+            // Warm up, then time reading the raw columns and decoding them.
+            scan(connections, format, false);
+            scan(connections, format, true);
+            final long raw = scan(connections, format, false);
+            final long decoded = scan(connections, format, true);
+            System.out.printf("%-6s %8d bytes/row %8.1f ns/row read %8.1f ns/row decode%n",
+                              format, size / rows,
+                              (double)raw / (rows * rounds),
+                              (double)(decoded - raw) / (rows * rounds));
+        } finally {
+            file.delete();
+            new File(file + "-wal").delete();
+            new File(file + "-shm").delete();
+        }
+    }
+
+    private static long scan(ConnectionManager connections, Format format, boolean decode)
+        throws SQLException {
+        final long start = System.nanoTime();
+        for(int round = 0; round < rounds; ++round) {
+            connections.read("SELECT id,version,time FROM Bench", stmt -> {
+                long check = 0;
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        if(decode) {
+                            check += format.getUUID(rs, "id").hashCode();
+                            check += format.getUUID(rs, "version").hashCode();
+                            check += format.getInstant(rs, "time").getNano();
+                        } else {
+                            check += rs.getObject("id").hashCode();
+                            check += rs.getObject("version").hashCode();
+                            check += rs.getObject("time").hashCode();
+                        }
+                    }
+                }
+                return check;
+            });
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -1,42 +1,931 @@
- 
 package inf226.inchat;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import inf226.storage.*;
 
 import inf226.util.*;
 
+import java.time.Instant;
 import java.util.UUID;
 import java.sql.SQLException;
-import java.sql.Connection;
-import java.sql.DriverManager;
 
 public class InchatTest{
+    /* Each test gets its own directory for its databases, which is
+     * removed afterwards.
+     */
+    @TempDir
+    java.nio.file.Path temporary;
+    private final java.util.ArrayList<ConnectionManager> opened = new java.util.ArrayList<>();
+
+    @BeforeEach
+    void announce(TestInfo test) {
+        System.err.println("Running test:" + test.getDisplayName());
+    }
+
+    @AfterEach
+    void closeDatabases() throws SQLException {
+        for(ConnectionManager connections : opened)
+            connections.close();
+    }
+
+    /**
+     * Open the database of the test, in the format of the system
+     * property inchat.storage.format.
+     */
+    private ConnectionManager open() throws SQLException {
+        return opened(new ConnectionManager(database(), 2, 64));
+    }
+
+    /**
+     * Open the database of the test, in a format for a new database.
+     */
+    private ConnectionManager open(Format format) throws SQLException {
+        return opened(new ConnectionManager(database(), 2, 64, format));
+    }
+
+    private String database() {
+        return "jdbc:sqlite:" + temporary.resolve("test.db");
+    }
+
+    private ConnectionManager opened(ConnectionManager connections) {
+        opened.add(connections);
+        return connections;
+    }
+
     @Test
     void chatSetup() throws Maybe.NothingException,SQLException {
-        UUID testID = UUID.randomUUID();
-        System.err.println("Running test:" + testID);
-        final String path = "test" + testID +  ".db";
-        final String dburl = "jdbc:sqlite:" + path;
-        final Connection connection = DriverManager.getConnection(dburl);
-        connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+        final ConnectionManager connections = open();
         UserStorage userStore
-            = new UserStorage(connection);
+            = new UserStorage(connections);
         ChannelStorage channelStore
-            = new ChannelStorage(connection);
+            = new ChannelStorage(connections);
         AccountStorage accountStore
-            = new AccountStorage(connection,userStore,channelStore);
+            = new AccountStorage(connections,userStore);
         SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
-        connection.setAutoCommit(false);
-        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connection);
+            = new SessionStorage(connections,accountStore);
+        Migrations.migrate(connections);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connections);
         Stored<Session> aliceSession = inchat.register("Alice","badpassword").get();
         inchat.register("Bob","worse").get();
         Stored<Session> bobSession = inchat.login("Bob","worse").get();
         Stored<Channel> channel = inchat.createChannel(aliceSession.value.account,"Awesome").get();
         inchat.postMessage(aliceSession.value.account,channel, "Test message.").get();
         inchat.joinChannel(bobSession.value.account,channel.identity).get();
-        connection.close();
+    }
+
+    @Test
+    void channelLoadStatementCount() throws DeletedException,SQLException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        Stored<Channel> channel = channelStore.save(new Channel("Busy", inf226.util.immutable.List.empty()));
+        final int messages = 50;
+        for(int i = 0; i < messages; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        channelStore.eventStore.save(
+            Channel.Event.createJoinEvent(channel.identity, Instant.now(), "Bob"));
+
+        final long before = connections.statementHits() + connections.statementMisses();
+        Stored<Channel> loaded = channelStore.get(channel.identity);
+        assertEquals(messages + 1, loaded.value.events.length);
+        assertEquals("Bob", loaded.value.events.head().defaultValue(null).value.sender);
+        // One statement for the channel row, one for all its events.
+        assertEquals(2, connections.statementHits() + connections.statementMisses() - before);
+
+        // Loading again reuses the statements instead of preparing them.
+        final long misses = connections.statementMisses();
+        channelStore.get(channel.identity);
+        assertEquals(misses, connections.statementMisses());
+    }
+
+    @Test
+    void accountLoadIsLazy() throws DeletedException,SQLException,Maybe.NothingException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionStorage sessionStore
+            = new SessionStorage(connections,accountStore);
+        Migrations.migrate(connections);
+        Stored<Channel> channel = channelStore.save(new Channel("Busy", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 50; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        Stored<User> user = userStore.save(User.create("Alice"));
+        Stored<Account> account = accountStore.save(
+            Account.create(user, "password")
+                   .joinChannel("busy", channel.identity, Account.Role.Owner));
+
+        final long before = connections.statementHits() + connections.statementMisses();
+        Stored<Account> loaded = accountStore.get(account.identity);
+        assertEquals(channel.identity, Util.lookup(loaded.value.channels, "busy").get());
+        // The account, its user and its channel references; no events.
+        assertEquals(3, connections.statementHits() + connections.statementMisses() - before);
+    }
+
+    @Test
+    void bulkOperations() throws SQLException,Maybe.NothingException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        final inf226.util.immutable.List<Stored<Channel>> channels = channelStore.saveAll(
+            java.util.Arrays.asList(new Channel("One", inf226.util.immutable.List.empty()),
+                                    new Channel("Two", inf226.util.immutable.List.empty()),
+                                    new Channel("Three", inf226.util.immutable.List.empty())));
+        assertEquals("One", channels.head().get().value.name);
+        final java.util.ArrayList<Channel.Event> events = new java.util.ArrayList<>();
+        final java.util.ArrayList<UUID> ids = new java.util.ArrayList<>();
+        channels.forEach(channel -> {
+            ids.add(channel.identity);
+            for(int i = 0; i < 10; ++i)
+                events.add(Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        });
+        channelStore.eventStore.saveAll(events);
+        ids.add(UUID.randomUUID());
+
+        final long before = connections.statementHits() + connections.statementMisses();
+        final java.util.Map<UUID,Stored<Channel>> loaded = channelStore.getAll(ids);
+        // One statement for the channel rows, one for all their events.
+        assertEquals(2, connections.statementHits() + connections.statementMisses() - before);
+        assertEquals(3, loaded.size());
+        channels.forEach(channel ->
+            assertEquals(10, loaded.get(channel.identity).value.events.length));
+    }
+
+    @Test
+    void unitOfWork() throws DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        Stored<User> alice = userStore.save(User.create("Alice"));
+        userStore.update(alice, new User("Alicia", alice.value.joined));
+
+        // A stale update rolls back everything else in the unit.
+        final UnitOfWork stale = new UnitOfWork(connections);
+        final UnitOfWork.Pending<Stored<Channel>> lost =
+            stale.save(channelStore, new Channel("Lost", inf226.util.immutable.List.empty()));
+        stale.update(userStore, alice, u -> new User("Alice2", u.value.joined));
+        try {
+            stale.commit();
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            // Expected
+        }
+        try {
+            channelStore.get(lost.get().identity);
+            assertTrue(false);
+        } catch (DeletedException e) {
+            // Expected
+        }
+
+        final UnitOfWork work = new UnitOfWork(connections);
+        final UnitOfWork.Pending<Stored<Channel>> channel =
+            work.save(channelStore, new Channel("Kept", inf226.util.immutable.List.empty()));
+        final UnitOfWork.Pending<Stored<Channel.Event>> first =
+            work.saveDeferred(channelStore.eventStore, () ->
+                Channel.Event.createMessageEvent(channel.get().identity, Instant.now(), "Alice", "First"));
+        work.update(userStore, userStore.get(alice.identity), u -> new User("Alice", u.value.joined));
+        work.commit();
+        assertEquals(channel.get().identity, channelStore.eventStore.get(first.get().identity).value.channel);
+        assertEquals("Alice", userStore.get(alice.identity).value.name.toString());
+    }
+
+    @Test
+    void compareAndSet() throws DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        Stored<Channel> stale = channelStore.save(new Channel("Old", inf226.util.immutable.List.empty()));
+        Stored<Channel> current = channelStore.update(stale, new Channel("New", stale.value.events));
+
+        // A stale update is refused, and reports the current version.
+        try {
+            channelStore.update(stale, new Channel("Lost", stale.value.events));
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            assertEquals(current.version, e.newObject.version);
+        }
+        try {
+            channelStore.delete(stale);
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            assertEquals(current.version, e.newObject.version);
+        }
+
+        channelStore.delete(current);
+        try {
+            channelStore.update(current, new Channel("Gone", current.value.events));
+            assertTrue(false);
+        } catch (DeletedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    void retryPolicy() throws DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        final RetryPolicy.Counters counters = RetryPolicy.counters(channelStore.name());
+        final long conflicts = counters.conflicts();
+        final long retries = counters.retries();
+        final long failures = counters.failures();
+        Stored<Channel> stale = channelStore.save(new Channel("Old", inf226.util.immutable.List.empty()));
+        channelStore.update(stale, new Channel("New", stale.value.events));
+
+        // A stale copy is retried on the current version.
+        final Stored<Channel> renamed = Util.updateSingle(stale, channelStore,
+            c -> new Channel(c.value.name + "!", c.value.events));
+        assertEquals("New!", renamed.value.name);
+        assertEquals(conflicts + 1, counters.conflicts());
+        assertEquals(retries + 1, counters.retries());
+
+        // With a single attempt, the conflict is given up.
+        final RetryPolicy once = new RetryPolicy(1, java.time.Duration.ZERO,
+                                                 java.time.Duration.ZERO, java.time.Duration.ofSeconds(1));
+        try {
+            Util.updateSingle(stale, channelStore, c -> c.value, once);
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            assertEquals(renamed.version, e.newObject.version);
+        }
+        assertEquals(failures + 1, counters.failures());
+    }
+
+    @Test
+    void memoryBackend() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final MemoryTransactions transactions = new MemoryTransactions();
+        MemoryUserStorage userStore
+            = new MemoryUserStorage(transactions);
+        MemoryChannelStorage channelStore
+            = new MemoryChannelStorage(transactions);
+        MemoryAccountStorage accountStore
+            = new MemoryAccountStorage(transactions,userStore);
+        MemorySessionStorage sessionStore
+            = new MemorySessionStorage(transactions,accountStore);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,transactions);
+        Stored<Session> aliceSession = inchat.register("Alice","badpassword").get();
+        assertTrue(inchat.register("Alice","worse").isNothing());
+        assertEquals(aliceSession.value.account.identity, accountStore.lookup("Alice").identity);
+
+        Stored<Channel> channel = channelStore.save(new Channel("Awesome", inf226.util.immutable.List.empty()));
+        channel = inchat.joinChannel(aliceSession.value.account, channel.identity).get();
+        channel = inchat.postMessage(aliceSession.value.account, channel, "Test message.").get();
+        assertEquals(2, channel.value.events.length);
+
+        // Editing an event shows in the channel, and in the delta.
+        final Stored<Channel.Event> message = channel.value.events.head().get();
+        final UUID version = channel.version;
+        channelStore.events().update(message, message.value.setMessage("Edited."));
+        channelStore.noChangeUpdate(channel.identity, Channel.Change.edited(message.identity));
+        assertEquals("Edited.", channelStore.get(channel.identity).value.events.head().get().value.message);
+        assertEquals("Edited.", channelStore.getDelta(channel.identity, version).get()
+                                            .events.head().get().value.message);
+        assertEquals(1, channelStore.getPage(channel.identity, Maybe.nothing(), 1).channel.value.events.length);
+
+        // A stale update rolls back everything else in the unit.
+        final UnitOfWork stale = new UnitOfWork(transactions);
+        final UnitOfWork.Pending<Stored<Channel>> lost =
+            stale.save(channelStore, new Channel("Lost", inf226.util.immutable.List.empty()));
+        stale.update(channelStore, channel, c -> c.value);
+        try {
+            stale.commit();
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            assertEquals(channelStore.getCurrentVersion(channel.identity), e.newObject.version);
+        }
+        try {
+            channelStore.get(lost.get().identity);
+            assertTrue(false);
+        } catch (DeletedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    void eventLog() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final java.nio.file.Path directory = temporary.resolve("events");
+        final ConnectionManager connections = open();
+        // Small segments, so that the log spans several of them.
+        LogEventStorage log = new LogEventStorage(connections, directory, 256);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections, log);
+        Stored<Channel> channel = channelStore.save(new Channel("Logged", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 10; ++i) {
+            log.save(Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        final Stored<Channel.Event> newest = log.getChannelEvents(channel.identity).head().get();
+        final Stored<Channel.Event> edited = log.update(newest, newest.value.setMessage("Edited."));
+
+        // A save in a transaction which is rolled back is undone.
+        final UnitOfWork stale = new UnitOfWork(connections);
+        stale.save(log, Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Mallory", "Lost"));
+        stale.update(channelStore, channel, c -> c.value);
+        channel = channelStore.update(channel, channel.value);
+        try {
+            stale.commit();
+            assertTrue(false);
+        } catch (UpdatedException e) {
+            // Expected
+        }
+        assertEquals(10, channelStore.get(channel.identity).value.events.length);
+
+        // Other threads do not see a save until it is committed.
+        final LogEventStorage shared = log;
+        final UUID channelID = channel.identity;
+        final int[] seen = new int[1];
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            log.save(Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Mallory", "Pending"));
+            assertEquals(11, log.getChannelEvents(channel.identity).length);
+            final Thread reader = new Thread(() -> {
+                seen[0] = shared.getChannelEvents(channelID).length;
+            });
+            reader.start();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            assertEquals(10, seen[0]);
+        }
+        assertEquals(10, log.getChannelEvents(channel.identity).length);
+
+        // Nor once it is in the log, until the database has committed.
+        try (final Transactions.Transaction transaction = connections.begin()) {
+            log.save(Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Mallory", "Logged"));
+            connections.beforeCommit(() -> {
+                final Thread reader = new Thread(() -> {
+                    seen[0] = shared.getChannelEvents(channelID).length;
+                });
+                reader.start();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IllegalStateException("Failing the commit");
+            });
+            transaction.commit();
+            assertTrue(false);
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertEquals(10, seen[0]);
+        assertEquals(10, log.getChannelEvents(channel.identity).length);
+
+        final Channel.Page page = channelStore.getPage(channel.identity, Maybe.nothing(), 4);
+        assertEquals(4, page.channel.value.events.length);
+        assertEquals("Edited.", page.channel.value.events.head().get().value.message);
+        assertEquals(6, channelStore.getPage(channel.identity, page.older, 10).channel.value.events.length);
+
+        // The index is rebuilt from the segments.
+        log.close();
+        log = new LogEventStorage(connections, directory, 256);
+        assertEquals(10, log.getChannelEvents(channel.identity).length);
+        assertEquals(edited.version, log.get(edited.identity).version);
+        assertEquals("Edited.", log.get(edited.identity).value.message);
+
+        log.delete(edited);
+        log.close();
+        log = new LogEventStorage(connections, directory, 256);
+        assertEquals(9, log.getChannelEvents(channel.identity).length);
+        assertEquals("Message 8", log.getChannelEvents(channel.identity).head().get().value.message);
+        log.close();
+    }
+
+    @Test
+    void channelSnapshots() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        // Snapshot after every fifth event.
+        System.setProperty("inchat.snapshot.interval", "5");
+        final ChannelStorage channelStore;
+        try {
+            channelStore = new ChannelStorage(connections);
+        } finally {
+            System.clearProperty("inchat.snapshot.interval");
+        }
+        Stored<Channel> channel = channelStore.save(new Channel("Snapshot", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 12; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        // The first load finds a snapshot due, which is written in
+        // the background, and the second load starts from it.
+        assertEquals(12, channelStore.get(channel.identity).value.events.length);
+        final int snapshots = connections.read("SELECT count(*) FROM ChannelSnapshot", stmt -> {
+            try (final java.sql.ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        });
+        assertEquals(0, snapshots);
+        assertEquals(1, channelStore.saveSnapshots());
+        assertEquals(0, channelStore.saveSnapshots());
+        channelStore.eventStore.save(
+            Channel.Event.createJoinEvent(channel.identity, Instant.now(), "Bob"));
+        Stored<Channel> loaded = channelStore.get(channel.identity);
+        assertEquals(13, loaded.value.events.length);
+        assertEquals("Bob", loaded.value.events.head().get().value.sender);
+        assertEquals("Message 0", loaded.value.events.reverse().head().get().value.message);
+
+        // Editing an event in the snapshot invalidates it.
+        final Stored<Channel.Event> first = loaded.value.events.reverse().head().get();
+        channelStore.eventStore.update(first, first.value.setMessage("Edited."));
+        channelStore.noChangeUpdate(channel.identity, Channel.Change.edited(first.identity));
+        loaded = channelStore.get(channel.identity);
+        assertEquals(13, loaded.value.events.length);
+        assertEquals("Edited.", loaded.value.events.reverse().head().get().value.message);
+    }
+
+    @Test
+    void messageSearch() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        final Stored<Channel> mine = channelStore.save(new Channel("Mine", inf226.util.immutable.List.empty()));
+        final Stored<Channel> other = channelStore.save(new Channel("Other", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 5; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(mine.identity, Instant.now(), "Alice", "Lunch at noon, day " + i));
+        }
+        final Stored<Channel.Event> dinner = channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(mine.identity, Instant.now(), "Alice", "Dinner at eight"));
+        channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(other.identity, Instant.now(), "Bob", "Lunch somewhere else"));
+        final java.util.List<UUID> channels = java.util.List.of(mine.identity);
+
+        // Only the channels searched are matched, a page at a time.
+        final Search.Page first = channelStore.search(channels, "lunch", 0, 3);
+        assertEquals(3, first.hits.length);
+        assertTrue(Search.highlight(first.hits.head().get().snippet, "lunch").contains("<b>Lunch</b>"));
+        final Search.Page second = channelStore.search(channels, "LUNCH", first.next.get(), 3);
+        assertEquals(2, second.hits.length);
+        assertTrue(second.next.isNothing());
+
+        // The index follows edits and deletions.
+        final Stored<Channel.Event> edited =
+            channelStore.eventStore.update(dinner, dinner.value.setMessage("Lunch at eight"));
+        assertEquals(6, channelStore.search(channels, "lunch", 0, 10).hits.length);
+        assertEquals(0, channelStore.search(channels, "dinner", 0, 10).hits.length);
+        channelStore.eventStore.delete(edited);
+        assertEquals(5, channelStore.search(channels, "lunch", 0, 10).hits.length);
+
+        // Query syntax is not passed on to the index.
+        assertEquals(5, channelStore.search(channels, "lunch* (\"noon", 0, 10).hits.length);
+        assertEquals(0, channelStore.search(channels, "***", 0, 10).hits.length);
+        // Snippets are escaped before the matches are marked.
+        assertEquals("&lt;b&gt; <b>Lunch</b> &amp; &lt;/b&gt;",
+                     Search.highlight("<b> Lunch & </b>", "lunch"));
+        assertEquals("&lt;script&gt;", Search.escape("<script>"));
+    }
+
+    @Test
+    void compaction() throws Maybe.NothingException,InterruptedException,DeletedException,SQLException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        final Stored<Channel> counted = channelStore.save(new Channel("Counted", inf226.util.immutable.List.empty()));
+        final Stored<Channel> aged = channelStore.save(new Channel("Aged", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 10; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(counted.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(aged.identity, Instant.now().minus(java.time.Duration.ofDays(3)), "Alice", "Old"));
+        channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(aged.identity, Instant.now(), "Alice", "New"));
+        channelStore.setRetention(counted.identity,
+            new Retention(Maybe.nothing(), Maybe.just(4)));
+        channelStore.setRetention(aged.identity,
+            new Retention(Maybe.just(java.time.Duration.ofDays(1)), Maybe.nothing()));
+        assertEquals(2, channelStore.getRetentions().size());
+
+        final UUID before = channelStore.getCurrentVersion(counted.identity);
+        final java.util.concurrent.CompletableFuture<Stored<Channel>> waiter =
+            channelStore.nextVersion(counted.identity, before, java.time.Duration.ofMinutes(1));
+        try (final Compactor compactor = new Compactor(connections, channelStore, channelStore.eventStore, 4, 0, 1000)) {
+            assertEquals(7, compactor.compact());
+            assertEquals(0, compactor.compact());
+        }
+        final Stored<Channel> compacted = channelStore.get(counted.identity);
+        assertEquals(4, compacted.value.events.length);
+        assertEquals("Message 6", compacted.value.events.reverse().head().get().value.message);
+        // One new version per channel and pass, not per batch.
+        assertTrue(!before.equals(compacted.version));
+        assertEquals(compacted.version, waiter.getNow(null).version);
+        assertEquals(4, waiter.getNow(null).value.events.length);
+        assertTrue(channelStore.getDelta(counted.identity, before).isNothing());
+        assertEquals(1, channelStore.get(aged.identity).value.events.length);
+        assertEquals(0, channelStore.search(java.util.List.of(aged.identity), "old", 0, 10).hits.length);
+
+        channelStore.setRetention(counted.identity, Retention.keepAll);
+        assertEquals(1, channelStore.getRetentions().size());
+    }
+
+    @Test
+    void sessionCache() throws Maybe.NothingException,InterruptedException,DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionCache sessionStore
+            = new SessionCache(new SessionStorage(connections,accountStore), accountStore, 2);
+        Migrations.migrate(connections);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connections);
+        final Stored<Session> session = inchat.register("Alice","badpassword").get();
+
+        // Restoring a session does not load the account again.
+        inchat.restoreSession(session.identity).get();
+        inchat.restoreSession(session.identity).get();
+        assertEquals(2, sessionStore.hits());
+
+        // Updating the account makes the session load again.
+        final Stored<Channel> channel = inchat.createChannel(session.value.account, "Cached").get();
+        final Stored<Session> restored = inchat.restoreSession(session.identity).get();
+        assertEquals(2, sessionStore.hits());
+        assertEquals(channel.identity, Util.lookup(restored.value.account.value.channels, "Cached").get());
+
+        // Expired sessions are not restored, and are swept.
+        final Stored<Session> expired = sessionStore.save(
+            new Session(session.value.account, Instant.now().minusSeconds(10)));
+        assertTrue(inchat.restoreSession(expired.identity).isNothing());
+        try (final SessionSweeper sweeper = new SessionSweeper(sessionStore, 1, 0, 1000)) {
+            assertEquals(1, sweeper.sweep());
+        }
+        try {
+            sessionStore.get(expired.identity);
+            assertTrue(false);
+        } catch (DeletedException e) {
+            // Expected
+        }
+
+        // Logging out drops the session from the cache.
+        inchat.logout(restored);
+        assertTrue(inchat.restoreSession(session.identity).isNothing());
+    }
+
+    @Test
+    void sessionTokens() throws Maybe.NothingException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionStorage sessionStore
+            = new SessionStorage(connections,accountStore);
+        Migrations.migrate(connections);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connections);
+        final Stored<Session> session = inchat.register("Alice","badpassword").get();
+        // Revoking more than one live session advances the epoch.
+        final SessionTokens tokens = new SessionTokens(new byte[32], 1);
+        final String token = tokens.issue(session);
+
+        final Stored<Session> restored =
+            inchat.restoreSession(tokens.verify(token, Instant.now()).get()).get();
+        assertEquals(session.identity, restored.identity);
+        assertEquals(session.version, restored.version);
+        assertEquals(session.value.account.identity, restored.value.account.identity);
+
+        // Tampered, foreign and expired tokens are refused.
+        final String tampered = (token.charAt(0) == 'A' ? "B" : "A") + token.substring(1);
+        assertTrue(tokens.verify(tampered, Instant.now()).isNothing());
+        assertTrue(new SessionTokens(new byte[]{1}, 1).verify(token, Instant.now()).isNothing());
+        assertTrue(tokens.verify(token, session.value.expiry).isNothing());
+
+        final Stored<Session> other =
+            sessionStore.save(new Session(session.value.account, session.value.expiry));
+        final String otherToken = tokens.issue(other);
+        tokens.revoke(session);
+        assertTrue(tokens.verify(token, Instant.now()).isNothing());
+        assertTrue(!tokens.verify(otherToken, Instant.now()).isNothing());
+        tokens.revoke(new Stored<Session>(new Session(session.value.account, session.value.expiry)));
+        assertTrue(tokens.verify(otherToken, Instant.now()).isNothing());
+        assertTrue(!tokens.verify(tokens.issue(other), Instant.now()).isNothing());
+
+        // Revocations and the epoch outlive a restart if they are stored.
+        final TokenRevocationStorage revocations = new TokenRevocationStorage(connections);
+        final SessionTokens stored = new SessionTokens(new byte[32], 2, java.time.Duration.ofMinutes(1), revocations);
+        final String loggedOut = stored.issue(other);
+        final String staying = stored.issue(session);
+        stored.revoke(other);
+        final SessionTokens restarted = new SessionTokens(new byte[32], 2, java.time.Duration.ofMinutes(1), revocations);
+        assertTrue(restarted.verify(loggedOut, Instant.now()).isNothing());
+        assertTrue(!restarted.verify(staying, Instant.now()).isNothing());
+        stored.revoke(new Stored<Session>(new Session(session.value.account, session.value.expiry)));
+        stored.revoke(new Stored<Session>(new Session(session.value.account, session.value.expiry)));
+        assertTrue(new SessionTokens(new byte[32], 2, java.time.Duration.ofMinutes(1), revocations)
+                   .verify(staying, Instant.now()).isNothing());
+
+        // A token is trusted on its own only until it is due a recheck.
+        final SessionTokens.Token fresh = restarted.verify(restarted.issue(session), Instant.now()).get();
+        assertTrue(restarted.fresh(fresh, Instant.now()));
+        assertTrue(!restarted.fresh(fresh, Instant.now().plusSeconds(61)));
+        // An older token has its session looked up, which logging out deleted.
+        inchat.logout(session);
+        assertTrue(inchat.restoreSession(fresh.session).isNothing());
+    }
+
+    @Test
+    void userDirectory() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionStorage sessionStore
+            = new SessionStorage(connections,accountStore);
+        Migrations.migrate(connections);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connections);
+        final Stored<Session> session = inchat.register("Alice","badpassword").get();
+        assertTrue(inchat.duplicate("Alice"));
+        assertTrue(!inchat.duplicate("Bob"));
+        assertTrue(inchat.register("Alice","otherpassword").isNothing());
+
+        // A new storage is warmed from the database.
+        final UserStorage warmed = new UserStorage(connections);
+        assertTrue(warmed.exists("Alice"));
+        assertEquals(session.value.account.value.user.identity,
+                     warmed.lookup("Alice").get().identity);
+
+        // Names are taken once committed, so not in a rolled back
+        // transaction.
+        try (final ConnectionManager.Transaction transaction = connections.begin()) {
+            userStore.save(User.create("Bob"));
+            assertTrue(!userStore.exists("Bob"));
+        }
+        assertTrue(!userStore.exists("Bob"));
+
+        // Renaming and deleting users free their names.
+        final Stored<User> carol = userStore.save(User.create("Carol"));
+        final Stored<User> dave = userStore.update(carol, new User("Dave", carol.value.joined));
+        assertTrue(!userStore.exists("Carol"));
+        assertTrue(userStore.exists("Dave"));
+        userStore.delete(dave);
+        assertTrue(!userStore.exists("Dave"));
+        assertTrue(userStore.lookup("Dave").isNothing());
+
+        // The filter is rebuilt as it fills up.
+        final UserDirectory directory = new UserDirectory(0);
+        for(int i = 0; i < 5000; ++i)
+            directory.add("user" + i, UUID.randomUUID());
+        for(int i = 0; i < 5000; ++i)
+            assertTrue(directory.contains("user" + i));
+        assertTrue(!directory.contains("user5000"));
+    }
+
+    @Test
+    void credentials() throws Maybe.NothingException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionStorage sessionStore
+            = new SessionStorage(connections,accountStore);
+        Migrations.migrate(connections);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connections);
+        final Stored<Session> session = inchat.register("Alice","badpassword").get();
+        inchat.createChannel(session.value.account, "Busy").get();
+
+        final Credentials credentials = accountStore.credentials("Alice").get();
+        assertEquals(session.value.account.identity, credentials.account);
+        assertEquals(session.value.account.value.user.identity, credentials.user);
+        assertTrue(credentials.checkPassword("badpassword"));
+        assertTrue(!credentials.checkPassword("otherpassword"));
+        assertTrue(accountStore.credentials("Bob").isNothing());
+
+        // One query through the indexes.
+        final String plan = queryPlan(connections, AccountStorage.credentialsQuery);
+        assertTrue(plan.contains("UserName"));
+        assertTrue(plan.contains("AccountUser"));
+    }
+
+    @Test
+    void channelWaiters() throws Exception {
+        final MemoryTransactions transactions = new MemoryTransactions();
+        MemoryChannelStorage channelStore
+            = new MemoryChannelStorage(transactions);
+        final Stored<Channel> channel = channelStore.save(new Channel("Waiting", inf226.util.immutable.List.empty()));
+
+        // Waiters time out, or can be cancelled.
+        final java.util.concurrent.CompletableFuture<Stored<Channel>> timed =
+            channelStore.nextVersion(channel.identity, channel.version, java.time.Duration.ofMillis(10));
+        try {
+            timed.get();
+            assertTrue(false);
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof java.util.concurrent.TimeoutException);
+        }
+        final java.util.concurrent.CompletableFuture<Stored<Channel>> cancelled =
+            channelStore.nextVersion(channel.identity, channel.version, java.time.Duration.ofMinutes(1));
+        assertTrue(cancelled.cancel(false));
+
+        // The next version completes the waiters.
+        final java.util.concurrent.CompletableFuture<Stored<Channel>> next =
+            channelStore.nextVersion(channel.identity, channel.version, java.time.Duration.ofMinutes(1));
+        assertTrue(!next.isDone());
+        channelStore.noChangeUpdate(channel.identity);
+        assertEquals(channelStore.getCurrentVersion(channel.identity), next.get().version);
+
+        // An old version is answered right away.
+        assertTrue(channelStore.nextVersion(channel.identity, channel.version,
+                                            java.time.Duration.ofMinutes(1)).isDone());
+    }
+
+    @Test
+    void channelPages() throws DeletedException,SQLException,Maybe.NothingException {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        Stored<Channel> channel = channelStore.save(new Channel("Paged", inf226.util.immutable.List.empty()));
+        for(int i = 0; i < 25; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+
+        Channel.Page page = channelStore.getPage(channel.identity, Maybe.nothing(), 10);
+        assertEquals(10, page.channel.value.events.length);
+        assertEquals("Message 24", page.channel.value.events.head().get().value.message);
+        page = channelStore.getPage(channel.identity, page.older, 10);
+        assertEquals("Message 14", page.channel.value.events.head().get().value.message);
+        page = channelStore.getPage(channel.identity, page.older, 10);
+        assertEquals(5, page.channel.value.events.length);
+        assertEquals("Message 0", page.channel.value.events.last.get().value.message);
+        assertTrue(page.older.isNothing());
+    }
+
+    @Test
+    void groupCommit() throws Exception {
+        final ConnectionManager connections = open();
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        final Stored<Channel> channel = channelStore.save(new Channel("Busy", inf226.util.immutable.List.empty()));
+        final GroupCommit writes = new GroupCommit(connections, 8, 50);
+        final java.util.ArrayList<java.util.concurrent.CompletableFuture<Stored<Channel.Event>>> posts
+            = new java.util.ArrayList<>();
+        for(int i = 0; i < 20; ++i) {
+            final String message = "Message " + i;
+            posts.add(writes.submit(() -> channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", message))));
+        }
+        // A failing write is rolled back without taking its batch with it.
+        final java.util.concurrent.CompletableFuture<Stored<Channel.Event>> failed
+            = writes.submit(() -> {
+                    channelStore.eventStore.save(
+                        Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Mallory", "Lost"));
+                    throw new DeletedException();
+                });
+        for(java.util.concurrent.CompletableFuture<Stored<Channel.Event>> post : posts)
+            post.get();
+        assertTrue(failed.handle((v, e) -> e != null).get());
+        assertEquals(20, channelStore.get(channel.identity).value.events.length);
+        writes.close();
+    }
+
+    @Test
+    void cachingStorage() throws DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        CachingStorage<User,SQLException> users
+            = new CachingStorage<>(userStore, userStore::getCurrentVersion, 1);
+        Stored<User> alice = users.save(User.create("Alice"));
+        assertEquals(alice.version, users.get(alice.identity).version);
+        assertEquals(1, users.hits());
+
+        // A change behind the cache's back is seen through the version.
+        userStore.update(alice, new User("Alicia", alice.value.joined));
+        assertEquals("Alicia", users.get(alice.identity).value.name.toString());
+        assertEquals(1, users.misses());
+
+        Stored<User> bob = users.save(User.create("Bob"));
+        assertEquals(1, users.evictions());
+        users.get(bob.identity);
+        assertEquals(2, users.hits());
+    }
+
+    @Test
+    void binaryFormat() throws DeletedException,SQLException {
+        final ConnectionManager connections = open(Format.binary);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        Stored<Channel> channel = channelStore.save(new Channel("Binary", inf226.util.immutable.List.empty()));
+        final Instant time = Instant.parse("2021-10-17T12:34:56.789012Z");
+        Stored<Channel.Event> event = channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(channel.identity, time, "Alice", "Hello"));
+        Stored<Channel.Event> loaded = channelStore.eventStore.get(event.identity);
+        assertEquals(event.version, loaded.version);
+        assertEquals(channel.identity, loaded.value.channel);
+        assertEquals(time, loaded.value.time);
+        connections.close();
+
+        // The format is kept by the database, not chosen on reopening.
+        assertEquals(Format.binary, open(Format.text).format);
+    }
+
+    @Test
+    void changeFeed() throws Maybe.NothingException {
+        final ChangeFeed feed = new ChangeFeed(2);
+        final UUID v0 = UUID.randomUUID();
+        final UUID v1 = UUID.randomUUID();
+        final UUID v2 = UUID.randomUUID();
+        final UUID v3 = UUID.randomUUID();
+        final UUID event = UUID.randomUUID();
+        feed.record(v0, v1, Maybe.just(Channel.Change.added(event)));
+        feed.record(v1, v2, Maybe.just(Channel.Change.edited(event)));
+        assertEquals(2, feed.since(v0).get().second.length);
+        assertEquals(v2, feed.since(v0).get().first);
+        assertEquals(1, feed.since(v1).get().second.length);
+        // Older versions fall out of the feed.
+        feed.record(v2, v3, Maybe.just(Channel.Change.deleted(event)));
+        assertTrue(feed.since(v0).isNothing());
+        // Unknown changes force a full reload.
+        feed.record(v3, UUID.randomUUID(), Maybe.nothing());
+        assertTrue(feed.since(v2).isNothing());
+    }
+
+    @Test
+    void migrationsAddIndexes() throws Maybe.NothingException,DeletedException,UpdatedException,SQLException {
+        final ConnectionManager connections = open();
+        UserStorage userStore
+            = new UserStorage(connections);
+        ChannelStorage channelStore
+            = new ChannelStorage(connections);
+        AccountStorage accountStore
+            = new AccountStorage(connections,userStore);
+        SessionStorage sessionStore
+            = new SessionStorage(connections,accountStore);
+        final int version = Migrations.migrate(connections);
+        // Migrating again does nothing.
+        assertEquals(version, Migrations.migrate(connections));
+
+        assertTrue(queryPlan(connections, "SELECT id FROM Event WHERE channel = ? ORDER BY seq ASC")
+                   .contains("EventChannelSeq"));
+        assertTrue(queryPlan(connections, "SELECT id FROM User WHERE name = ?")
+                   .contains("UserName"));
+        assertTrue(queryPlan(connections, "SELECT Account.id from Account INNER JOIN User ON user=User.id where User.name=?")
+                   .contains("AccountUser"));
+        assertTrue(queryPlan(connections, "SELECT account FROM AccountChannel WHERE channel = ?")
+                   .contains("AccountChannelChannel"));
+
+        // The place of a deleted event is not handed out again.
+        final Stored<Channel> channel = channelStore.save(new Channel("Ordered", inf226.util.immutable.List.empty()));
+        final Stored<Channel.Event> first = channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "First"));
+        final long after = channelStore.eventStore.getChannelEventsAfter(channel.identity, 0).second.get();
+        channelStore.eventStore.delete(first);
+        channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Second"));
+        assertEquals("Second", channelStore.eventStore.getChannelEventsAfter(channel.identity, after)
+                     .first.head().get().value.message);
+    }
+
+    /**
+     * The query plan SQLite chooses for a query, one step per line.
+     */
+    private static String queryPlan(ConnectionManager connections, String sql)
+        throws SQLException {
+        // EXPLAIN does not read the database, so a reader which has not
+        // read since the indexes were created would plan without them.
+        // Reading first, on the same reader, brings its schema up to date.
+        return connections.read("SELECT count(*) FROM sqlite_master", refresh -> {
+            refresh.executeQuery().close();
+            return connections.read("EXPLAIN QUERY PLAN " + sql, stmt -> {
+                // Any value will do, but a NULL would match no rows at all.
+                final int parameters = stmt.getParameterMetaData().getParameterCount();
+                for(int i = 1; i <= parameters; ++i)
+                    stmt.setString(i, "");
+                final StringBuilder plan = new StringBuilder();
+                try (final java.sql.ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next())
+                        plan.append(rs.getString("detail")).append("\n");
+                }
+                System.err.println(sql + ":\n" + plan);
+                return plan.toString();
+            });
+        });
     }
 }
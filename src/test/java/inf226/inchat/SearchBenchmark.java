@@ -0,0 +1,86 @@
+package inf226.inchat;
+
+import inf226.storage.ConnectionManager;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measure the latency of message searches as the number of
+ * messages grows.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=inf226.inchat.SearchBenchmark
+ */
+public class SearchBenchmark {
+    private static final int channels = 20;
+    private static final int batch = 10000;
+    private static final int steps = 10;
+    private static final int queries = 200;
+    private static final String[] words = {
+        "lunch", "meeting", "deadline", "coffee", "release", "review",
+        "build", "server", "weekend", "holiday", "bug", "deploy"
+    };
+
+    public static void main(String[] args) throws SQLException {
+        final File file = new File("bench-search-" + UUID.randomUUID() + ".db");
+        final Random random = new Random(226);
+        try (final ConnectionManager connections
+                 = new ConnectionManager("jdbc:sqlite:" + file, 1, 16)) {
+            final ChannelStorage channelStore = new ChannelStorage(connections);
+            final List<UUID> ids = new ArrayList<>();
+            for(int i = 0; i < channels; ++i)
+                ids.add(channelStore.save(new Channel("Bench " + i,
+                                                      inf226.util.immutable.List.empty())).identity);
+            // Search the channels of an account which joined half of them.
+            final List<UUID> joined = ids.subList(0, channels / 2);
+
+            for(int step = 1; step <= steps; ++step) {
+                final List<Channel.Event> events = new ArrayList<>();
+                for(int i = 0; i < batch; ++i) {
+                    events.add(Channel.Event.createMessageEvent(
+                        ids.get(random.nextInt(channels)), Instant.now(), "Alice",
+                        sentence(random)));
+                }
+                channelStore.eventStore.saveAll(events);
+
+                // Warm up, then time rare and common queries.
+                search(channelStore, joined, random);
+                final long start = System.nanoTime();
+                final long hits = search(channelStore, joined, random);
+                final long elapsed = System.nanoTime() - start;
+                System.out.printf("%8d messages %8.1f us/query %6.1f hits/query%n",
+                                  step * batch,
+                                  (double)elapsed / (queries * 1000),
+                                  (double)hits / queries);
+            }
+        } finally {
+            file.delete();
+            new File(file + "-wal").delete();
+            new File(file + "-shm").delete();
+        }
+    }
+
+    private static String sentence(Random random) {
+        final StringBuilder sentence = new StringBuilder();
+        for(int i = 0; i < 8; ++i)
+            sentence.append(words[random.nextInt(words.length)]).append(' ');
+        return sentence.toString();
+    }
+
+    private static long search(ChannelStorage channelStore, List<UUID> channels, Random random)
+        throws SQLException {
+        long hits = 0;
+        for(int i = 0; i < queries; ++i) {
+            final String query = words[random.nextInt(words.length)]
+                + (i % 2 == 0 ? "" : " " + words[random.nextInt(words.length)]);
+            hits += channelStore.search(channels, query, 0, 20).hits.length;
+        }
+        return hits;
+    }
+}